@@ -0,0 +1,46 @@
+package zoogas.bench;
+
+import java.util.Random;
+
+import zoogas.core.Board;
+import zoogas.core.Particle;
+import zoogas.core.Point;
+
+import zoogas.gui.NullRenderer;
+
+// BenchBoards: helpers to build reproducible, populated Boards for the benchmarks.
+// Rules are compiled inline (no background compiler, no on-disk cache) so that benchmarks measure the engine itself.
+public class BenchBoards {
+    // particles sprayed onto the board (these are the TOOLS.txt particles)
+    static String[] seedParticles = { "animal", "cage_builder", "conga", "cell_builder", "zoo_guest", "cement", "perfume", "mutator", "beacon", "lava", "acid" };
+    static String spaceParticleName = "_";
+
+    // newBoard: load the rules and fill the board with space
+    public static Board newBoard(String rules, int size) {
+        Board board = new Board(size);
+        board.setSeed(42);
+        board.setRuleCacheDir(null);
+        board.getRuleCompiler().setCompileBudget(-1);
+        board.loadPatternSetFromFile(rules);
+        board.fill(board.initSpaceParticle(spaceParticleName));
+        return board;
+    }
+
+    // seededBoard: a new board, sprayed with the seed particles at random (but reproducible) positions, then run for warmupTime
+    public static Board seededBoard(String rules, int size, int seeds, double warmupTime) {
+        Board board = newBoard(rules, size);
+        Random rnd = new Random(42);
+        for (int i = 0; i < seeds; ++i)
+            board.writeCell(new Point(rnd.nextInt(size), rnd.nextInt(size)), board.getOrCreateParticle(seedParticles[i % seedParticles.length]));
+        board.update(warmupTime, new NullRenderer());
+        return board;
+    }
+
+    // firstActiveDir: the first direction in which a Particle has transformation rules, or 0 if none
+    public static int firstActiveDir(Board board, Particle p) {
+        for (int dir = 0; dir < board.neighborhoodSize(); ++dir)
+            if (p.isActive(dir))
+                return dir;
+        return 0;
+    }
+}
@@ -0,0 +1,36 @@
+package zoogas.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import zoogas.core.Board;
+
+import zoogas.gui.NullRenderer;
+
+// BoardUpdateBench: a full Board.update (one unit of simulated time, i.e. one refresh of ZooGas.gameLoop) on a seeded 128x128 board.
+// Each iteration starts from the same seeded board, so results are comparable between versions.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BoardUpdateBench {
+    @Param({ "ECOLOGY.txt", "Standard.txt" })
+    public String rules;
+
+    Board board;
+    NullRenderer renderer = new NullRenderer();
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        board = BenchBoards.seededBoard(rules, 128, 600, 10);
+    }
+
+    @Benchmark
+    public long update() {
+        board.update(1, renderer);
+        return board.getEventCount();
+    }
+}
@@ -0,0 +1,70 @@
+package zoogas.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import zoogas.core.Board;
+import zoogas.core.Particle;
+import zoogas.core.Point;
+import zoogas.core.rules.EventContext;
+import zoogas.core.rules.UpdateEvent;
+
+// BondBench: Board.bondEnergy and UpdateEvent.bindBonds, on the bonded cells of a board that has been running for a while
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BondBench {
+    @Param({ "ECOLOGY.txt" })
+    public String rules;
+
+    Board board;
+    List<Point> bonded = new ArrayList<Point>(); // cells with at least one bond
+    List<UpdateEvent> events = new ArrayList<UpdateEvent>(); // proposed updates at bonded cells
+    List<Point> eventSource = new ArrayList<Point>(), eventTarget = new ArrayList<Point>();
+    int nextCell = 0, nextEvent = 0;
+    EventContext context = new EventContext();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        board = BenchBoards.seededBoard(rules, 128, 600, 100);
+        Point p = new Point(), n = new Point();
+        for (p.x = 0; p.x < board.size; ++p.x)
+            for (p.y = 0; p.y < board.size; ++p.y)
+                if (board.incoming(p).size() > 0 || board.outgoing(p).size() > 0) {
+                    Point sc = new Point(p);
+                    bonded.add(sc);
+                    Particle source = board.readCell(sc);
+                    for (int dir = 0; dir < board.neighborhoodSize(); ++dir) {
+                        board.getNeighbor(sc, n, dir);
+                        if (board.onBoard(n)) {
+                            UpdateEvent e = source.samplePair(dir, board.readCell(n), board.getRandom());
+                            if (e != null) {
+                                events.add(e);
+                                eventSource.add(sc);
+                                eventTarget.add(new Point(n));
+                            }
+                        }
+                    }
+                }
+        if (bonded.size() == 0 || events.size() == 0)
+            throw new RuntimeException("No bonded cells on the board after warmup");
+    }
+
+    @Benchmark
+    public double bondEnergy() {
+        Point p = bonded.get(nextCell++ % bonded.size());
+        return board.bondEnergy(p);
+    }
+
+    @Benchmark
+    public boolean bindBonds() {
+        int i = nextEvent++ % events.size();
+        return events.get(i).bindBonds(eventSource.get(i), eventTarget.get(i), board, context);
+    }
+}
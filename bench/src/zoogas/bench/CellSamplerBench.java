@@ -0,0 +1,63 @@
+package zoogas.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import zoogas.core.Board;
+import zoogas.core.CellSampler;
+import zoogas.core.RandomSource;
+import zoogas.core.SplitMix64;
+
+// CellSamplerBench: rate-proportional cell selection (QuadTree.sampleQuadLeaf vs SumTreeSampler) and rate updates (QuadTree.updateQuadTree etc)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellSamplerBench {
+    @Param({ "quad", "flat" })
+    public String sampler;
+
+    @Param({ "128" })
+    public int size;
+
+    CellSampler cells;
+    RandomSource random = new SplitMix64(42);
+    int[] xs, ys;
+    double[] rates;
+    int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        cells = Board.createCellSampler(sampler, size, size);
+        Random rnd = new Random(42);
+        for (int x = 0; x < size; ++x)
+            for (int y = 0; y < size; ++y)
+                cells.setRate(x, y, rnd.nextDouble() < .9 ? 0 : rnd.nextDouble()); // mostly-idle board, as in a typical zoo
+
+        // pre-generate the update positions, so the benchmark does not measure the RNG
+        xs = new int[4096];
+        ys = new int[4096];
+        rates = new double[4096];
+        for (int i = 0; i < xs.length; ++i) {
+            xs[i] = rnd.nextInt(size);
+            ys[i] = rnd.nextInt(size);
+            rates[i] = rnd.nextDouble() < .9 ? 0 : rnd.nextDouble();
+        }
+    }
+
+    @Benchmark
+    public int sample() {
+        return cells.sample(random);
+    }
+
+    @Benchmark
+    public double setRate() {
+        int i = next++ & (xs.length - 1);
+        cells.setRate(xs[i], ys[i], rates[i]);
+        return cells.totalRate();
+    }
+}
@@ -0,0 +1,35 @@
+package zoogas.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import zoogas.core.RandomSource;
+import zoogas.core.SplitMix64;
+
+// RandomSourceBench: the shared Math.random() generator vs a per-thread SplitMix64 stream, with several threads drawing at once
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RandomSourceBench {
+    RandomSource random;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        random = new SplitMix64(Thread.currentThread().getId());
+    }
+
+    @Benchmark
+    public double mathRandom() {
+        return Math.random();
+    }
+
+    @Benchmark
+    public double splitMix64() {
+        return random.nextDouble();
+    }
+}
@@ -0,0 +1,41 @@
+package zoogas.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import zoogas.core.CompiledRandomVariable;
+import zoogas.core.RandomSource;
+import zoogas.core.RandomVariable;
+import zoogas.core.SplitMix64;
+
+// RandomVariableBench: sampling a compiled rule outcome distribution, as in Particle.samplePair
+// (RandomVariable.sample just delegates to the CompiledRandomVariable that close() caches, so only that is measured)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RandomVariableBench {
+    @Param({ "1", "4", "32" })
+    public int outcomes;
+
+    CompiledRandomVariable<Integer> compiled;
+    RandomSource random = new SplitMix64(42);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random rnd = new Random(42);
+        RandomVariable<Integer> rv = new RandomVariable<Integer>();
+        for (int i = 0; i < outcomes; ++i)
+            rv.add(i, rnd.nextDouble() / outcomes);
+        compiled = rv.close();
+    }
+
+    @Benchmark
+    public Integer compiledSample() {
+        return compiled.sample(random);
+    }
+}
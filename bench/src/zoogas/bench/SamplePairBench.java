@@ -0,0 +1,72 @@
+package zoogas.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import zoogas.core.Board;
+import zoogas.core.Particle;
+import zoogas.core.RandomSource;
+import zoogas.core.rules.UpdateEvent;
+
+// SamplePairBench: Particle.samplePair with the compiled rules already in the RuleTable (warm),
+// and on the first lookup, which compiles the rules from the regexes (cold)
+@State(Scope.Thread)
+@Fork(1)
+public class SamplePairBench {
+    @Param({ "ECOLOGY.txt" })
+    public String rules;
+
+    // warm: compile once, then sample repeatedly
+    @State(Scope.Thread)
+    public static class Warm {
+        Particle source, target;
+        RandomSource random;
+        int dir;
+
+        @Setup(Level.Trial)
+        public void setup(SamplePairBench bench) {
+            Board board = BenchBoards.newBoard(bench.rules, 32);
+            source = board.getOrCreateParticle("cage_builder");
+            target = board.getOrCreateParticle(BenchBoards.spaceParticleName);
+            dir = BenchBoards.firstActiveDir(board, source);
+            random = board.getRandom();
+            source.samplePair(dir, target, random);
+        }
+    }
+
+    // cold: a fresh Board (and so, fresh Particles with empty RuleTables) for every measurement
+    @State(Scope.Thread)
+    public static class Cold {
+        Particle source, target;
+        RandomSource random;
+        int dir;
+
+        @Setup(Level.Iteration)
+        public void setup(SamplePairBench bench) {
+            Board board = BenchBoards.newBoard(bench.rules, 32);
+            source = board.getOrCreateParticle("cage_builder");
+            target = board.getOrCreateParticle(BenchBoards.spaceParticleName);
+            dir = BenchBoards.firstActiveDir(board, source);
+            random = board.getRandom();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public UpdateEvent warm(Warm w) {
+        return w.source.samplePair(w.dir, w.target, w.random);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 50)
+    public UpdateEvent cold(Cold c) {
+        return c.source.samplePair(c.dir, c.target, c.random);
+    }
+}
@@ -0,0 +1,176 @@
+package zoogas;
+
+import java.awt.image.BufferedImage;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import zoogas.core.Board;
+import zoogas.core.Particle;
+import zoogas.core.Point;
+import zoogas.core.RuleCache;
+import zoogas.core.RuleTableCache;
+import zoogas.core.rules.ParticleSet;
+
+import zoogas.gui.NullRenderer;
+
+// Headless: runs a Board without a display, as fast as possible, and reports engine throughput.
+// The board is initialized the same way as in ZooGas.start(): from an image, or from the INIT particle.
+public class Headless {
+    // command-line argument defaults
+    static long defaultEvents = 10000000;
+    static double reportInterval = 1; // simulated time between progress reports & heap samples
+
+    // main()
+    public static void main(String[] args) {
+        int size = ZooGas.defaultBoardSize;
+        String patternSetFilename = ZooGas.defaultPatternSetFilename;
+        String initImageFilename = null;
+        String initParticleFilename = "TheZooParticles.txt";
+        String samplerName = null;
+        String ruleCacheDir = null; // no on-disk cache by default, so that benchmark runs neither depend on it nor rewrite it
+        long compileBudget = -1; // compile inline by default, so the benchmark does not skip events
+        long ruleMemory = RuleTableCache.defaultBudget;
+        int threads = Board.defaultThreads;
+        Long seed = null; // null means seed from the clock
+        long maxEvents = defaultEvents;
+        double maxTime = Double.MAX_VALUE;
+        boolean verbose = false;
+
+        for (int i = 0; i < args.length; ++i) {
+            String opt = args[i];
+            if ("-?".equals(opt) || "-h".equals(opt) || "--help".equals(opt)) {
+                System.err.println("Usage: java zoogas.Headless [<option> [<args>]]");
+                System.err.println("Valid options:");
+                System.err.println("\t[-r|--rules <file>]    - Load rules from specified file (default \"" + ZooGas.defaultPatternSetFilename + "\")");
+                System.err.println("\t[-i|--image <file>]    - Initialize the board from an image (default: use the INIT particle)");
+                System.err.println("\t[-P|--particles <file>] - Particles to match against the image colors (default \"" + initParticleFilename + "\")");
+                System.err.println("\t[-z|--size <n>]        - Board size in cells (default " + ZooGas.defaultBoardSize + ")");
+                System.err.println("\t[-n|--events <n>]      - Stop after <n> events (default " + defaultEvents + ")");
+                System.err.println("\t[-T|--time <t>]        - Stop after simulated time <t>");
+                System.err.println("\t[-S|--sampler <name>]  - Use the named cell sampler, \"" + Board.sumTreeSamplerName + "\" or \"" + Board.quadTreeSamplerName + "\"");
+                System.err.println("\t[-b|--compile-budget <ms>] - Wait up to <ms> for uncompiled rules (0 = skip the event, -1 = compile inline; default -1)");
+                System.err.println("\t[-C|--rule-cache <dir>] - Cache compiled rules in <dir>, or \"none\" (default none; ZooGas uses \"" + RuleCache.defaultCacheDir + "\")");
+                System.err.println("\t[-m|--rule-memory <MB>] - Budget for compiled rules in memory, in MB (0 = no limit; default " + (RuleTableCache.defaultBudget >> 20) + ")");
+                System.err.println("\t[-j|--threads <n>]     - Update the board on <n> threads, in parallel tiles (default " + Board.defaultThreads + ")");
+                System.err.println("\t[-R|--seed <n>]        - Seed the random number generators with <n>, to reproduce a run (default: seed from the clock)");
+                System.err.println("\t[-v|--verbose]         - Print progress after every " + reportInterval + " units of simulated time");
+                System.exit(0);
+                return;
+            }
+            else if ("-v".equals(opt) || "--verbose".equals(opt)) {
+                verbose = true;
+                continue;
+            }
+
+            if (i + 1 >= args.length) {
+                System.err.println("Error: no argument given for option " + opt);
+                System.exit(1);
+                return;
+            }
+            String arg = args[++i];
+            if ("-r".equals(opt) || "--rules".equals(opt))
+                patternSetFilename = arg;
+            else if ("-i".equals(opt) || "--image".equals(opt))
+                initImageFilename = arg;
+            else if ("-P".equals(opt) || "--particles".equals(opt))
+                initParticleFilename = arg;
+            else if ("-z".equals(opt) || "--size".equals(opt))
+                size = Integer.parseInt(arg);
+            else if ("-n".equals(opt) || "--events".equals(opt))
+                maxEvents = Long.parseLong(arg);
+            else if ("-T".equals(opt) || "--time".equals(opt))
+                maxTime = Double.parseDouble(arg);
+            else if ("-S".equals(opt) || "--sampler".equals(opt))
+                samplerName = arg;
+            else if ("-b".equals(opt) || "--compile-budget".equals(opt))
+                compileBudget = Long.parseLong(arg);
+            else if ("-m".equals(opt) || "--rule-memory".equals(opt))
+                ruleMemory = Long.parseLong(arg) << 20;
+            else if ("-j".equals(opt) || "--threads".equals(opt))
+                threads = Integer.parseInt(arg);
+            else if ("-R".equals(opt) || "--seed".equals(opt))
+                seed = Long.parseLong(arg);
+            else if ("-C".equals(opt) || "--rule-cache".equals(opt))
+                ruleCacheDir = "none".equals(arg) ? null : arg;
+            else {
+                System.err.println("Error: Unknown option: " + opt);
+                System.exit(1);
+                return;
+            }
+        }
+
+        // create & initialize the board
+        Board board = new Board(size);
+        if (samplerName != null)
+            board.setCellSampler(samplerName);
+        board.getRuleCompiler().setCompileBudget(compileBudget);
+        board.getRuleTableCache().setBudget(ruleMemory);
+        board.setThreads(threads);
+        if (seed != null)
+            board.setSeed(seed);
+        board.setRuleCacheDir(ruleCacheDir);
+        board.loadPatternSetFromFile(patternSetFilename);
+        Particle spaceParticle = board.initSpaceParticle(ZooGas.spaceParticleName);
+
+        if (initImageFilename != null) {
+            try {
+                BufferedImage img = ImageIO.read(new File(initImageFilename));
+                board.initFromImage(img, ParticleSet.fromFile(initParticleFilename));
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+        else {
+            board.fill(spaceParticle);
+            String initParticleName = "INIT/" + String.valueOf(size / 2);
+            Particle initParticle = board.getOrCreateParticle(initParticleName);
+            if (initParticle == null)
+                throw new RuntimeException("Initialization particle " + initParticleName + " not found");
+            board.writeCell(new Point(size / 2, size / 2), initParticle);
+        }
+
+        // run
+        NullRenderer renderer = new NullRenderer();
+        Runtime runtime = Runtime.getRuntime();
+        long peakHeap = 0;
+        double t = 0;
+        long startTime = System.nanoTime();
+        while (t < maxTime && board.getEventCount() < maxEvents && board.gotUpdates()) {
+            t += board.update(Math.min(reportInterval, maxTime - t), maxEvents - board.getEventCount(), renderer);
+
+            long heap = runtime.totalMemory() - runtime.freeMemory();
+            peakHeap = Math.max(peakHeap, heap);
+            if (((double)heap) / (double)runtime.maxMemory() > ZooGas.cacheFlushFraction)
+                board.flushCaches();
+
+            if (verbose)
+                System.err.println("t=" + String.format("%.2f", t) + " events=" + board.getEventCount() + " " + board.debugDumpStats());
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        // report
+        long events = board.getEventCount(), proposed = board.getProposedCount(), accepted = board.getAcceptedCount();
+        System.out.println("Rules:            " + patternSetFilename + " on a " + size + "x" + size + " board");
+        System.out.println("Seed:             " + board.getSeed());
+        System.out.println("Simulated time:   " + String.format("%.3f", t));
+        System.out.println("Wall-clock time:  " + String.format("%.3f", seconds) + " s");
+        System.out.println("Events:           " + events + " (" + String.format("%.0f", events / seconds) + " events/sec)");
+        System.out.println("Proposed updates: " + proposed);
+        System.out.println("Accepted updates: " + accepted + " (" + String.format("%.4f", proposed > 0 ? ((double)accepted) / proposed : 0) + " of proposed, "
+                           + (proposed - accepted) + " rejected)");
+        if (threads > 1)
+            System.out.println("Deferred events:  " + board.getDeferredCount() + " (re-run serially because they reached outside their tile)");
+        System.out.println("Heap:             " + (peakHeap >> 20) + " MB peak, " + ((runtime.totalMemory() - runtime.freeMemory()) >> 20) + " MB at exit, " + (runtime.maxMemory() >> 20) + " MB max");
+        System.out.println("Board:            " + board.debugDumpStats());
+        System.out.println("Rule compiler:    " + board.getRuleCompiler().statsString());
+        System.out.println("Rule tables:      " + board.getRuleTableCache().statsString());
+        System.out.println("Noun patterns:    " + board.nounStatsString());
+        if (board.getRuleCompiler().getRuleCache() != null)
+            System.out.println("Rule cache:       " + board.getRuleCompiler().getRuleCache().statsString());
+    }
+}
@@ -98,7 +98,7 @@ public class Loader extends JFrame implements ItemListener, ActionListener {
                                 public void run() {
                                     while (isSelected()) {
                                         if (loader != null) {
-                                            loader.refreshObserved();
+                                            loader.refreshObserved(false);
                                         }
                                         try {
                                             Thread.currentThread().sleep(5000);
@@ -274,7 +274,7 @@ public class Loader extends JFrame implements ItemListener, ActionListener {
             return;
         }
         else if ("manualRefresh".equals(e.getActionCommand())) {
-            refreshObserved();
+            refreshObserved(true);
             return;
         }
         else if ("AutoRefresh".equals(e.getActionCommand())) {
@@ -291,8 +291,9 @@ public class Loader extends JFrame implements ItemListener, ActionListener {
         }
     }
 
-    private void refreshObserved() {
-        toWorldServer.sendRefreshObserved();
+    // refreshObserved: subscribe to the observer feeds of boards with players; resubscribing resends their keyframes
+    private void refreshObserved(boolean resubscribe) {
+        toWorldServer.sendRefreshObserved(resubscribe);
     }
 
     public void setConnected(boolean connected) {
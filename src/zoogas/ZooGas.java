@@ -8,6 +8,7 @@ import java.awt.Graphics;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseAdapter;
@@ -34,6 +35,9 @@ import zoogas.core.Particle;
 import zoogas.core.Challenge;
 
 import zoogas.core.Point;
+import zoogas.core.RuleCache;
+import zoogas.core.RuleCompiler;
+import zoogas.core.RuleTableCache;
 
 import zoogas.core.SprayTool;
 import zoogas.core.rules.ParticleSet;
@@ -43,6 +47,7 @@ import zoogas.core.rules.RuleMatch;
 import zoogas.core.rules.RuleSyntax;
 
 import zoogas.gui.BoardRenderer;
+import zoogas.gui.BondOverlay;
 import zoogas.gui.PlayerRenderer;
 import zoogas.gui.ToolBox;
 
@@ -117,6 +122,7 @@ public class ZooGas implements KeyListener {
     JPanel toolBoxPanel;
     JPanel statusPanel;
     BoardRenderer renderer;
+    BondOverlay bondOverlay = null; // created the first time bonds are shown
     int boardSize; // width & height of board in pixels
     int belowBoardHeight = 0; // size in pixels of whatever appears below the board -- currently unused but left as a placeholder
     int toolBarWidth = 140, toolLabelWidth = 200, toolHeight = 22; // size in pixels of various parts of the tool bar (right of the board)
@@ -142,6 +148,8 @@ public class ZooGas implements KeyListener {
     double updatesPerSecond = 0;
     long timeCheckPeriod = 20; // board refreshes between calling challengeGiver.check() and recalculating debug stats (updatesPerSecond)
     String lastDumpStats = ""; // hacky way to avoid concurrency issues
+    boolean lastSlowPressed = false; // slowPressed, as of the last call to repaintBoard
+    List<Rectangle> lastBalloonBands = new ArrayList<Rectangle>(); // the bands of the board repainted for speech balloons by the last call to repaintBoard
 
     // connection
     protected ClientToServer toWorldServer = null;
@@ -215,6 +223,61 @@ public class ZooGas implements KeyListener {
                 }
                 gas.targetUpdateRate = Integer.parseInt(args[++i]);
             }
+            else if ("-S".equals(args[i]) || "--sampler".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    System.err.println("Error: no cell sampler specified");
+                    System.err.println("-S/--sampler usage: [-S|--sampler] <" + Board.sumTreeSamplerName + "|" + Board.quadTreeSamplerName + ">");
+                    System.exit(0);
+                    return;
+                }
+                gas.board.setCellSampler(args[++i]);
+            }
+            else if ("-b".equals(args[i]) || "--compile-budget".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    System.err.println("Error: no compile budget specified");
+                    System.err.println("-b/--compile-budget usage: [-b|--compile-budget] <milliseconds>");
+                    System.exit(0);
+                    return;
+                }
+                gas.board.getRuleCompiler().setCompileBudget(Long.parseLong(args[++i]));
+            }
+            else if ("-C".equals(args[i]) || "--rule-cache".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    System.err.println("Error: no rule cache directory specified");
+                    System.err.println("-C/--rule-cache usage: [-C|--rule-cache] <directory|none>");
+                    System.exit(0);
+                    return;
+                }
+                String dir = args[++i];
+                gas.board.setRuleCacheDir("none".equals(dir) ? null : dir);
+            }
+            else if ("-m".equals(args[i]) || "--rule-memory".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    System.err.println("Error: no rule memory budget specified");
+                    System.err.println("-m/--rule-memory usage: [-m|--rule-memory] <MB>");
+                    System.exit(0);
+                    return;
+                }
+                gas.board.getRuleTableCache().setBudget(Long.parseLong(args[++i]) << 20);
+            }
+            else if ("-j".equals(args[i]) || "--threads".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    System.err.println("Error: no thread count specified");
+                    System.err.println("-j/--threads usage: [-j|--threads] <n>");
+                    System.exit(0);
+                    return;
+                }
+                gas.board.setThreads(Integer.parseInt(args[++i]));
+            }
+            else if ("-R".equals(args[i]) || "--seed".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    System.err.println("Error: no random seed specified");
+                    System.err.println("-R/--seed usage: [-R|--seed] <n>");
+                    System.exit(0);
+                    return;
+                }
+                gas.board.setSeed(Long.parseLong(args[++i]));
+            }
             else if ("-?".equals(args[i]) || "-h".equals(args[i]) || "--help".equals(args[i])) {
                 System.err.println("Usage: <progname> [<option> [<args>]]");
                 System.err.println("Valid options:");
@@ -225,6 +288,12 @@ public class ZooGas implements KeyListener {
                 System.err.println("\t[-t|--tools <file>]  - Load tools from specified file (default \"" + defaultToolboxFilename + "\")");
                 System.err.println("\t[-r|--rules <file>]  - Load rules from specified file (default \"" + defaultPatternSetFilename + "\")");
                 System.err.println("\t[-u|--updates <n>]   - Specify desired updates per second (default " + defaultTargetUpdateRate + ")");
+                System.err.println("\t[-S|--sampler <name>] - Use the named cell sampler, \"" + Board.sumTreeSamplerName + "\" or \"" + Board.quadTreeSamplerName + "\" (default \"" + Board.defaultSamplerName + "\")");
+                System.err.println("\t[-b|--compile-budget <ms>] - Wait up to <ms> for uncompiled rules (0 = skip the event, -1 = compile inline; default " + RuleCompiler.defaultCompileBudget + ")");
+                System.err.println("\t[-C|--rule-cache <dir>] - Cache compiled rules in <dir>, or \"none\" (default \"" + RuleCache.defaultCacheDir + "\")");
+                System.err.println("\t[-m|--rule-memory <MB>] - Budget for compiled rules in memory, in MB (0 = no limit; default " + (RuleTableCache.defaultBudget >> 20) + ")");
+                System.err.println("\t[-j|--threads <n>]   - Update the board on <n> threads, in parallel tiles (default " + Board.defaultThreads + ")");
+                System.err.println("\t[-R|--seed <n>]      - Seed the random number generators with <n> (default: seed from the clock)");
                 System.err.println("\t[-?|-h|--help]       - Display this very useful help message");
                 System.exit(0);
                 return;
@@ -491,7 +560,9 @@ public class ZooGas implements KeyListener {
                     challengeGiver.check();
                     challengeGiver.animate();
                 }
-                zooGasFrame.repaint();
+                repaintBoard();
+                toolBoxPanel.repaint();
+                statusPanel.repaint();
 
                 timeDiff = System.currentTimeMillis() - updateStartTime;
                 if (timeDiff < targetTimePerUpdate) {
@@ -503,6 +574,36 @@ public class ZooGas implements KeyListener {
         }
     }
 
+    // repaintBoard: repaint the board tiles drawn since the last frame, and the bands of the board where speech balloons are (or were, in the last frame).
+    // Bonds and enclosures are drawn all over the board, so while they are shown (and in the frame after) the whole board is repainted
+    private void repaintBoard() {
+        if (slowPressed || lastSlowPressed) {
+            lastSlowPressed = slowPressed;
+            renderer.repaintDirty(boardPanel); // clear the dirty tiles
+            boardPanel.repaint();
+            return;
+        }
+        renderer.repaintDirty(boardPanel);
+
+        int h = boardPanel.getFontMetrics(boardPanel.getFont()).getHeight();
+        ArrayList<Rectangle> bands = new ArrayList<Rectangle>();
+        if (board.onBoard(cursorPos))
+            bands.add(balloonBand(cursorPos, -h, 4 * h)); // see drawCursorNoun
+        for (int v = 0; v < verbHistoryLength; ++v)
+            if (verbHistory[v] != null)
+                bands.add(balloonBand(placeHistory[v], -3 * h, h)); // see drawVerbs
+        for (Rectangle r : lastBalloonBands)
+            boardPanel.repaint(r);
+        for (Rectangle r : bands)
+            boardPanel.repaint(r);
+        lastBalloonBands = bands;
+    }
+
+    // balloonBand: the full-width band of the board from above to below pixels around a cell
+    private Rectangle balloonBand(Point cell, int above, int below) {
+        return new Rectangle(0, renderer.getGraphicsCoords(cell).y + above, boardSize, below - above);
+    }
+
     // main evolution loop
     private void evolveStuff() {
         board.update(patternMatchesPerRefresh, renderer);
@@ -555,32 +656,13 @@ public class ZooGas implements KeyListener {
     }
 
     /**
-     *Draws all active bonds between particles using random colors
+     *Draws all active bonds between particles, from the cached BondOverlay
      * @param g
      */
     protected void drawBonds(Graphics g) {
-        Point p = new Point();
-        for (p.x = 0; p.x < board.size; ++p.x) {
-            for (p.y = 0; p.y < board.size; ++p.y) {
-                for (Map.Entry<String, Point> kv : board.incoming(p).entrySet()) {
-                    Point delta = kv.getValue();
-                    if (delta != null) {
-                        Point q = p.add(kv.getValue());
-                        if (board.onBoard(q))
-                            drawBond(g, p, q);
-                        /* TODO: consider using new Points in this loop
-			 */
-                    }
-                }
-            }
-        }
-    }
-    private void drawBond(Graphics g, Point p, Point q) {
-        g.setColor(new Color((float)Math.random(), (float)Math.random(), (float)Math.random()));
-        Point pg = renderer.getGraphicsCoords(p);
-        Point qg = renderer.getGraphicsCoords(q);
-        int k = renderer.getPixelsPerCell() >> 1;
-        g.drawLine(pg.x + k, pg.y + k, qg.x + k, qg.y + k);
+        if (bondOverlay == null)
+            bondOverlay = new BondOverlay(board, renderer.getPixelsPerCell());
+        bondOverlay.draw(g);
     }
 
     // highlight enclosures of size >= 10
@@ -589,14 +671,13 @@ public class ZooGas implements KeyListener {
         int minSize = 10;
         Image image = new BufferedImage(boardSize, boardSize, BufferedImage.TYPE_INT_ARGB);
         Graphics ig = image.getGraphics();
-        for (List<Point> enclosure : Challenge.getEnclosures(board, wallPrefix, false))
-            if (enclosure.size() >= minSize) {
-                ig.setColor(new Color((float)Math.random(), (float)Math.random(), (float)Math.random()));
-                for (Point p : enclosure) {
-                    Point q = renderer.getGraphicsCoords(p);
-                    ig.fillRect((int)(q.x + Math.random() * renderer.getPixelsPerCell()), (int)(q.y + Math.random() * renderer.getPixelsPerCell()), 1, 1);
-                }
+        for (List<Point> enclosure : board.getEnclosureIndex(Collections.singleton(wallPrefix), false).getEnclosures(minSize, 0)) {
+            ig.setColor(new Color((float)Math.random(), (float)Math.random(), (float)Math.random()));
+            for (Point p : enclosure) {
+                Point q = renderer.getGraphicsCoords(p);
+                ig.fillRect((int)(q.x + Math.random() * renderer.getPixelsPerCell()), (int)(q.y + Math.random() * renderer.getPixelsPerCell()), 1, 1);
             }
+        }
 
         g.drawImage(image, 0, 0, null);
     }
@@ -880,6 +961,11 @@ public class ZooGas implements KeyListener {
                 case 'm':
                     for (String ss : board.getNameToParticleMap().keySet())
                         System.err.println("Particle " + ss + " count " + board.getNameToParticleMap().get(ss).getReferenceCount());
+                    System.err.println("Rule compiler: " + board.getRuleCompiler().statsString());
+                    if (board.getRuleCompiler().getRuleCache() != null)
+                        System.err.println("Rule cache: " + board.getRuleCompiler().getRuleCache().statsString());
+                    if (board.online())
+                        System.err.println("Network: " + board.networkStatsString());
                     break;
                 case '`':
                     if (statusPanel.isVisible()) {
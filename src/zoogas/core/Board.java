@@ -9,10 +9,16 @@ import java.net.*;
 
 import java.io.*;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
 
 import zoogas.ZooGas;
 
+import zoogas.core.rules.EventContext;
 import zoogas.core.rules.ParticleSet;
 import zoogas.core.rules.PatternSet;
 import zoogas.core.rules.UpdateEvent;
@@ -30,7 +36,11 @@ public class Board extends MooreTopology {
     public int size = 0; // size of board in cells
 
     // main board data
-    private Cell[][] cell = null;
+    private CellStore cell = null;
+    private PopulationIndex population = null; // cells occupied by each particle id
+    private volatile DirtyCellSet dirtyCells = null; // cells written since the observer stream last looked (null until someone asks)
+    private BondRegistry bondRegistry = null; // cells with outgoing bonds, kept up to date by addBond and removeBonds
+    private volatile EnclosureIndex[] enclosureIndex = new EnclosureIndex[0]; // enclosure indices kept up to date by writeCell (copy-on-write)
 
     // default off-board "void" value
     Particle spaceParticle = null;
@@ -41,9 +51,18 @@ public class Board extends MooreTopology {
     // particle name registry
     protected Map<String, Particle> nameToParticle = new ConcurrentHashMap<String, Particle>(); // updated by Particle constructor
     protected Map<String, SortedSet<Particle>> prefixToParticles = new ConcurrentHashMap<String, SortedSet<Particle>>(); // updated by Particle constructor
+    private volatile Particle[] particleById = new Particle[256]; // dense id lookup; slot 0 is reserved for "no particle"
+    private int nextParticleId = 1;
+    private final Object registryLock = new Object(); // guards the registry; separate from the Board lock, so RuleCompiler threads can create Particles while the Board is updating
+
+    // background compiler for transformation rules
+    private RuleCompiler ruleCompiler = new RuleCompiler(1);
+    private RuleTableCache ruleTableCache = new RuleTableCache(this); // memory budget for the compiled rules
+    private String ruleCacheDir = RuleCache.defaultCacheDir; // directory for the on-disk RuleCache (null to disable)
 
     // off-board connections
-    private HashMap<Point, RemoteCellCoord> remoteCell = null; // map of connections from off-board Point's to RemoteCellCoord's
+    private RemoteCellCoord[] remoteCell = null; // connections from the ring of off-board cells around the edge to RemoteCellCoord's, indexed by borderIndex
+    private int remoteCells = 0; // number of connected off-board cells
 
     // networking
     private UpdateServer updateServer = null; // UpdateServer fields UDP requests for cross-border interactions
@@ -52,22 +71,64 @@ public class Board extends MooreTopology {
     private String localhost = null;
     private ClientToServer toWorldServer;
 
-    // fast quad tree
-    public QuadTree quad = null;
+    // event counters (LongAdders, since parallel tiles update them concurrently)
+    private LongAdder eventCount = new LongAdder(); // number of (cell, neighbor) pairs sampled by update()
+    private LongAdder proposedCount = new LongAdder(); // number of local events for which a rule proposed an update
+    private LongAdder acceptedCount = new LongAdder(); // number of proposed updates that were accepted and written
+    private LongAdder deferredCount = new LongAdder(); // number of parallel events that reached outside their tile, and were re-run serially
+
+    // rate-proportional cell sampler
+    public static final String quadTreeSamplerName = "quad", sumTreeSamplerName = "flat";
+    public static String defaultSamplerName = sumTreeSamplerName;
+    private String samplerName = defaultSamplerName; // sampler used for serial updates
+    private CellSampler sampler = null;
+
+    // tiles: the board is divided into square tiles, each with a lock that guards its cells' population shard and sampler rates.
+    // in parallel mode, tiles are updated concurrently, in four checkerboard phases
+    public static int defaultTileSize = 16, minTileSize = 8;
+    private int tileSize = 0, tilesPerSide = 0;
+    private Object[] tileLock = null;
+
+    // parallel update
+    public static int defaultThreads = 1;
+    public static double defaultPhaseTime = 0.25; // simulated time covered by each cycle of four phases
+    public static double minParallelEvents = 256; // cycles expected to have fewer events than this are run serially
+    private int threads = 1;
+    private double phaseTime = defaultPhaseTime;
+    private ExecutorService tileWorkers = null;
+    private TileRun[] tileRun = null;
+
+    // random numbers: each thread that updates the board draws from its own stream, split from a seeded root.
+    // random is used by the updating thread (serial updates, parallel cycle scheduling, deferred events, tools),
+    // remoteRandom by network requests, and each TileRun has its own
+    private long seed = 0;
+    private RandomSource random = null;
+    private RandomSource remoteRandom = null;
 
     // constructor
     public Board(int size) {
+        if (size > Coord.maxCoord)
+            throw new RuntimeException("Board size " + size + " is too large (the limit is " + Coord.maxCoord + ")");
         this.size = size;
-        cell = new Cell[size][size];
-        for (int x = 0; x < size; ++x)
-            for (int y = 0; y < size; ++y)
-                cell[x][y] = new Cell();
-
-        // quad tree
-        quad = new QuadTree(size);
+        cell = new CellStore(size, size);
+        bondRegistry = new BondRegistry(cell.cells());
+
+        // tiles
+        tileSize = Math.min(size, Math.max(minTileSize, defaultTileSize));
+        tilesPerSide = (size + tileSize - 1) / tileSize;
+        tileLock = new Object[tilesPerSide * tilesPerSide];
+        for (int t = 0; t < tileLock.length; ++t)
+            tileLock[t] = new Object();
+        population = new PopulationIndex(cell.cells(), tileLock.length);
+
+        // cell sampler
+        sampler = createCellSampler(samplerName, size, size);
+        setSeed(System.nanoTime());
+        if (defaultThreads > 1)
+            setThreads(defaultThreads);
 
         // net init
-        remoteCell = new HashMap<Point, RemoteCellCoord>();
+        remoteCell = new RemoteCellCoord[4 * size + 4];
         try {
             localhost = InetAddress.getLocalHost().getHostAddress();
         }
@@ -82,6 +143,10 @@ public class Board extends MooreTopology {
         return p.x >= 0 && p.x < size && p.y >= 0 && p.y < size;
     }
 
+    public final boolean onBoard(int x, int y) {
+        return x >= 0 && x < size && y >= 0 && y < size;
+    }
+
     // helper to get direction (quick implementation; reimplement in superclass for performance optimization)
     public int getNeighborDirection(Point p, Point q) {
         Point n = new Point();
@@ -131,29 +196,91 @@ public class Board extends MooreTopology {
     }
 
     // scheduling methods
+    // createCellSampler: factory method for CellSampler implementations, by name
+    public static CellSampler createCellSampler(String name, int width, int height) {
+        if (quadTreeSamplerName.equals(name)) {
+            if (width != height)
+                throw new RuntimeException("While building quad tree: board is not square");
+            return new QuadTree(width);
+        }
+        else if (sumTreeSamplerName.equals(name))
+            return new SumTreeSampler(width, height);
+        throw new RuntimeException("Unknown cell sampler: " + name);
+    }
+
+    // setCellSampler: switch to a different CellSampler implementation for serial updates
+    public final void setCellSampler(String name) {
+        createCellSampler(name, size, size); // check the name is valid
+        samplerName = name;
+        if (threads == 1)
+            rebuildSampler(createCellSampler(name, size, size));
+    }
+
+    // rebuildSampler: switch to a new CellSampler, copying over the rates of all cells currently on the board
+    private synchronized final void rebuildSampler(CellSampler newSampler) {
+        Point p = new Point();
+        for (p.x = 0; p.x < size; ++p.x)
+            for (p.y = 0; p.y < size; ++p.y) {
+                Particle pc = readCell(p);
+                if (pc != null)
+                    newSampler.setRate(p.x, p.y, pc.normalizedTotalTransformRate());
+            }
+        sampler = newSampler;
+    }
+
+    public final CellSampler getCellSampler() {
+        return sampler;
+    }
+
     // gotUpdates() is true if total board update rate is >0
     public final boolean gotUpdates() {
-        return quad.topQuadRate() > 0;
+        return sampler.totalRate() > 0;
     }
 
     // getWaitTime: returns wait time to next event
     public final double getWaitTime() {
-        return -Math.log(Math.random()) / quad.topQuadRate();
+        return exponentialWaitTime(random, sampler.totalRate());
+    }
+
+    private static double exponentialWaitTime(RandomSource random, double rate) {
+        return -Math.log(1 - random.nextDouble()) / rate; // 1 - nextDouble() is in (0,1]
     }
 
-    // getRandomPair places coordinates of a random cell in p, sampled proportionally to its update rate
+    // getRandomCell places coordinates of a random cell in p, sampled proportionally to its update rate
     public final void getRandomCell(Point p) {
-        quad.sampleQuadLeaf(p);
+        Coord.unpack(sampler.sample(random), p);
     }
 
     // getRandomPair places coordinates of a random pair in (p,n) and returns direction from p to n
     public final int getRandomPair(Point p, Point n) {
         getRandomCell(p);
-        int dir = readCell(p).sampleDir();
+        int dir = readCell(p).sampleDir(random);
         getNeighbor(p, n, dir);
         return dir;
     }
 
+    // random number methods
+    // setSeed: restart all the random number streams used by the update engine from the given seed.
+    // Two Boards seeded alike, given the same rules, initial state and update calls, follow the same trajectory
+    // (in parallel mode, as long as rule compilation is not left to the background; see RuleCompiler.setCompileBudget)
+    public synchronized final void setSeed(long seed) {
+        this.seed = seed;
+        random = new SplitMix64(seed);
+        remoteRandom = random.split();
+        if (tileRun != null)
+            for (TileRun run : tileRun)
+                run.random = random.split();
+    }
+
+    public final long getSeed() {
+        return seed;
+    }
+
+    // getRandom: the random number stream for the updating thread
+    public final RandomSource getRandom() {
+        return random;
+    }
+
     // net init methods
     public final void initServer(int port, ZooGas gas) {
         this.boardServerPort = port;
@@ -181,11 +308,16 @@ public class Board extends MooreTopology {
 
     // read/write methods for cells
     public final int getCellWriteCount(Point p) {
-        return cell[p.x][p.y].writeCount;
+        return cell.getWriteCount(cell.index(p.x, p.y));
     }
 
     public final Particle readCell(Point p) {
-        return cell[p.x][p.y].particle;
+        return particleById[cell.getParticleId(cell.index(p.x, p.y))];
+    }
+
+    // getCellRGB: the color of a cell, by CellStore index (as drained from a DirtyCellSet)
+    public final int getCellRGB(int index) {
+        return particleById[cell.getParticleId(index)].color.getRGB();
     }
 
     public final void writeCell(Point p, Particle pc) {
@@ -194,147 +326,494 @@ public class Board extends MooreTopology {
 
     private final void writeCell(Point p, Particle pc, Particle old_pc) {
         if (old_pc != pc) {
-            cell[p.x][p.y].particle = pc;
-            ++cell[p.x][p.y].writeCount;
-            if (old_pc != null)
-                old_pc.removeReference(new Point(p));
-            pc.addReference(new Point(p)); // Note: must be new point!
-            quad.updateQuadTree(new Point(p), pc.normalizedTotalTransformRate());
+            if (pc.id == 0 || particleById[pc.id] != pc)
+                registerParticle(pc); // particle was deregistered by flushCaches, but is coming back onto the board
+            int index = cell.index(p.x, p.y);
+            int tile = tileOf(p.x, p.y);
+            synchronized (tileLock[tile]) {
+                int oldId = cell.setParticleId(index, pc.id);
+                if (oldId != 0)
+                    population.remove(tile, oldId, index);
+                population.add(tile, pc.id, index);
+                sampler.setRate(p.x, p.y, pc.normalizedTotalTransformRate());
+            }
+            DirtyCellSet dirty = dirtyCells;
+            if (dirty != null)
+                dirty.mark(index);
+            for (EnclosureIndex e : enclosureIndex)
+                e.cellWritten(index, old_pc, pc);
         }
     }
 
+    // tile index of a cell
+    private final int tileOf(int x, int y) {
+        return (y / tileSize) * tilesPerSide + x / tileSize;
+    }
+
+    // population accessors
+    public final int getPopulation(Particle p) {
+        return population.count(p.id);
+    }
+
+    public final PopulationIndex getPopulationIndex() {
+        return population;
+    }
+
+    // getDirtyCells: start tracking the cells written by writeCell (if not already), and return the set they are marked in
+    public synchronized final DirtyCellSet getDirtyCells() {
+        if (dirtyCells == null)
+            dirtyCells = new DirtyCellSet(cell.cells());
+        return dirtyCells;
+    }
+
+    // helpers to convert a PopulationIndex (or DirtyCellSet) cell back to board coordinates
+    public final int cellX(int index) {
+        return index % size;
+    }
+
+    public final int cellY(int index) {
+        return index / size;
+    }
+
     // bond accessors
+    // incoming, outgoing: a cell's bonds as a map from bond name to offset. These allocate, so they are for tools and views;
+    // the update loop uses the bond-id methods below, which read the packed bonds (see Bonds) straight from the CellStore
     public Map<String, Point> incoming(Point p) {
-        return cell[p.x][p.y].incoming;
+        return bondMap(cell.readIncoming(cell.index(p.x, p.y), new BondList()));
     }
 
     public Map<String, Point> outgoing(Point p) {
-        return cell[p.x][p.y].outgoing;
+        return bondMap(cell.readOutgoing(cell.index(p.x, p.y), new BondList()));
+    }
+
+    private static Map<String, Point> bondMap(BondList bonds) {
+        Map<String, Point> map = new HashMap<String, Point>();
+        for (int i = 0; i < bonds.size(); ++i)
+            map.put(Bonds.name(Bonds.idOf(bonds.get(i))), Bonds.delta(bonds.get(i)));
+        return map;
+    }
+
+    public final BondList incoming(Point p, BondList dest) {
+        return cell.readIncoming(cell.index(p.x, p.y), dest);
+    }
+
+    public final BondList outgoing(Point p, BondList dest) {
+        return cell.readOutgoing(cell.index(p.x, p.y), dest);
     }
 
     public Point incoming(Point p, String bond) {
-        return cell[p.x][p.y].incoming.get(bond);
+        int b = cell.getIncoming(cell.index(p.x, p.y), Bonds.id(bond));
+        return b == 0 ? null : Bonds.delta(b);
     }
 
     public Point incomingCoord(Point p, String bond) {
-        Point delta = incoming(p, bond);
-        if (delta != null)
-            return p.add(delta);
-        return null;
+        return incomingCoord(p, Bonds.id(bond));
     }
 
-    public Point outgoing(Point p, String bond) {
-        if (cell[p.x][p.y].outgoing.containsKey(bond)) {
-            Point delta = cell[p.x][p.y].outgoing.get(bond);
-            Point q = p.add(delta);
-            return q;
+    public final Point incomingCoord(Point p, int bondId) {
+        int b = cell.getIncoming(cell.index(p.x, p.y), bondId);
+        return b == 0 ? null : new Point(p.x + Bonds.dx(b), p.y + Bonds.dy(b));
+    }
+
+    // incomingBond, outgoingBond: the packed bond with the given id (see Bonds), or 0 if there is none
+    public final int incomingBond(int x, int y, int bondId) {
+        return cell.getIncoming(cell.index(x, y), bondId);
+    }
+
+    public final int outgoingBond(int x, int y, int bondId) {
+        return cell.getOutgoing(cell.index(x, y), bondId);
+    }
+
+    // outgoingWithin: true if all the on-board outgoing bond partners of cell (x,y) lie within the rectangle [x0,x1) * [y0,y1).
+    // bondEnergy follows each outgoing bond p->r one hop further, to r's own partner, so parallel tiles test r with this
+    public final boolean outgoingWithin(int x, int y, int x0, int y0, int x1, int y1) {
+        int index = cell.index(x, y);
+        for (int k = 0; k < cell.outgoingSlots(index); ++k) {
+            int b = cell.outgoingSlot(index, k);
+            int sx = x + Bonds.dx(b), sy = y + Bonds.dy(b);
+            if (b != 0 && onBoard(sx, sy) && (sx < x0 || sx >= x1 || sy < y0 || sy >= y1))
+                return false;
         }
-        return null;
+        return true;
+    }
+
+    public Point outgoing(Point p, String bond) {
+        return outgoingCoord(p, Bonds.id(bond));
+    }
+
+    public final Point outgoingCoord(Point p, int bondId) {
+        int b = cell.getOutgoing(cell.index(p.x, p.y), bondId);
+        return b == 0 ? null : new Point(p.x + Bonds.dx(b), p.y + Bonds.dy(b));
     }
 
     public void removeBonds(Point p) {
-        Map<String, Point> in = incoming(p), out = outgoing(p);
-        if (in.size() > 0 || out.size() > 0) {
-            Point q;
-            for (Map.Entry<String, Point> kv : in.entrySet()) {
-                q = p.add(kv.getValue());
-                if (onBoard(q))
-                    outgoing(q).remove(kv.getKey());
-                //		System.err.println("Removing bond "+kv.getKey()+" from "+q+" to "+p);
+        int pIndex = cell.index(p.x, p.y);
+        if (cell.hasBonds(pIndex)) {
+            for (int k = 0; k < cell.incomingSlots(pIndex); ++k) {
+                int b = cell.incomingSlot(pIndex, k);
+                int qx = p.x + Bonds.dx(b), qy = p.y + Bonds.dy(b);
+                if (b != 0 && onBoard(qx, qy)) {
+                    int qIndex = cell.index(qx, qy);
+                    cell.removeOutgoing(qIndex, Bonds.idOf(b));
+                    bondRegistry.setBonded(qIndex, cell.hasOutgoing(qIndex));
+                }
             }
-            in.clear();
-            for (Map.Entry<String, Point> kv : out.entrySet()) {
-                q = p.add(kv.getValue());
-                if (onBoard(q))
-                    incoming(q).remove(kv.getKey());
-                //		System.err.println("Removing bond "+kv.getKey()+" from "+p+" to "+q);
+            for (int k = 0; k < cell.outgoingSlots(pIndex); ++k) {
+                int b = cell.outgoingSlot(pIndex, k);
+                int qx = p.x + Bonds.dx(b), qy = p.y + Bonds.dy(b);
+                if (b != 0 && onBoard(qx, qy))
+                    cell.removeIncoming(cell.index(qx, qy), Bonds.idOf(b));
             }
-            out.clear();
+            boolean hadOutgoing = cell.hasOutgoing(pIndex);
+            cell.clearBonds(pIndex);
+            if (hadOutgoing)
+                bondRegistry.setBonded(pIndex, false);
         }
     }
 
     public void addBond(Point p, Point q, String bond) {
-        int ns = neighborhoodSize();
-        int dir = getNeighborDirection(p, q);
-        int rev = reverseDir(dir);
-        outgoing(p).put(bond, q.subtract(p));
-        incoming(q).put(bond, p.subtract(q));
-        //	System.err.println("Adding bond "+bond+" from "+p+" to "+q);
-    }
-
-    public void addIncoming(Point p, Map<String, Point> bondDir) {
-        if (bondDir != null && bondDir.size() > 0) {
-            for (Map.Entry<String, Point> kv : bondDir.entrySet()) {
-                Point q = p.add(kv.getValue());
-                if (onBoard(q))
-                    addBond(q, p, kv.getKey());
+        addBond(cell.index(p.x, p.y), cell.index(q.x, q.y), Bonds.pack(Bonds.intern(bond), q.x - p.x, q.y - p.y));
+    }
+
+    // addBond: add the packed bond p2q from cell pIndex to cell qIndex (which must be the cell it points to)
+    private final void addBond(int pIndex, int qIndex, int p2q) {
+        cell.putOutgoing(pIndex, p2q);
+        cell.putIncoming(qIndex, Bonds.reverse(p2q));
+        bondRegistry.noteReach(Bonds.dx(p2q), Bonds.dy(p2q));
+        bondRegistry.setBonded(pIndex, true);
+    }
+
+    // getEnclosureIndex: the EnclosureIndex for a set of wall prefixes, created on the first call and then kept up to date by writeCell
+    public synchronized final EnclosureIndex getEnclosureIndex(Set<String> wallPrefixes, boolean allowDiagonalConnections) {
+        for (EnclosureIndex e : enclosureIndex)
+            if (e.allowsDiagonalConnections() == allowDiagonalConnections && e.getWallPrefixes().equals(wallPrefixes))
+                return e;
+        EnclosureIndex e = new EnclosureIndex(this, wallPrefixes, allowDiagonalConnections);
+        EnclosureIndex[] indices = Arrays.copyOf(enclosureIndex, enclosureIndex.length + 1);
+        indices[enclosureIndex.length] = e;
+        enclosureIndex = indices; // register before filling, so no writes are missed
+        e.fill();
+        return e;
+    }
+
+    // getBondRegistry: the index of cells with outgoing bonds, for views of the bonds
+    public final BondRegistry getBondRegistry() {
+        return bondRegistry;
+    }
+
+    // addIncoming, addOutgoing: add the bonds in a BondList (offsets from p to the partner cells); null means no bonds
+    public void addIncoming(Point p, BondList bonds) {
+        if (bonds != null)
+            for (int i = 0; i < bonds.size(); ++i) {
+                int b = bonds.get(i);
+                int qx = p.x + Bonds.dx(b), qy = p.y + Bonds.dy(b);
+                if (onBoard(qx, qy))
+                    addBond(cell.index(qx, qy), cell.index(p.x, p.y), Bonds.reverse(b));
             }
-        }
     }
 
-    public void addOutgoing(Point p, Map<String, Point> bondDir) {
-        if (bondDir != null && bondDir.size() > 0) {
-            for (Map.Entry<String, Point> kv : bondDir.entrySet()) {
-                Point q = p.add(kv.getValue());
-                if (onBoard(q))
-                    addBond(p, q, kv.getKey());
+    public void addOutgoing(Point p, BondList bonds) {
+        if (bonds != null)
+            for (int i = 0; i < bonds.size(); ++i) {
+                int b = bonds.get(i);
+                int qx = p.x + Bonds.dx(b), qy = p.y + Bonds.dy(b);
+                if (onBoard(qx, qy))
+                    addBond(cell.index(p.x, p.y), cell.index(qx, qy), b);
             }
-        }
     }
 
     // fill/init method
     public final void fill(Particle particle) {
-        for (int x = 0; x < size; ++x) {
-            for (int y = 0; y < size; ++y) {
-                Point p = new Point(x, y);
+        Point p = new Point();
+        for (p.x = 0; p.x < size; ++p.x)
+            for (p.y = 0; p.y < size; ++p.y)
                 writeCell(p, particle);
-            }
-        }
     }
 
     // update()
     public final void update(double maxTime, BoardRenderer renderer) {
+        update(maxTime, Long.MAX_VALUE, renderer);
+    }
+
+    // update(maxTime,maxEvents,renderer): run until maxTime has elapsed or maxEvents pairs have been sampled.
+    // returns the elapsed time
+    public final double update(double maxTime, long maxEvents, BoardRenderer renderer) {
+        if (threads > 1)
+            return updateParallel(maxTime, maxEvents, renderer);
+        return updateSerial(maxTime, maxEvents, renderer);
+    }
+
+    private final double updateSerial(double maxTime, long maxEvents, BoardRenderer renderer) {
+        Point p = new Point(), n = new Point(); // reused for every event; renderers copy any coordinates they keep
         double t = 0;
-        while (gotUpdates()) {
-            t += getWaitTime();
-            if (t >= maxTime)
-                break;
+        for (long events = 0; events < maxEvents && gotUpdates(); ++events) {
+            double dt = getWaitTime();
+            if (t + dt >= maxTime)
+                return maxTime;
+            t += dt;
+            eventCount.increment();
 
-            Point p = new Point(), n = new Point(); // Must stay inside the loop; Points are stored (as Particles)
             int dir = getRandomPair(p, n);
             Particle oldSource = readCell(p);
             Particle oldTarget = onBoard(n) ? readCell(n) : null;
-            UpdateEvent newPair = evolvePair(p, n, dir);
-            if (newPair != null) {
-                Particle newSource = newPair.getSource();
-                Particle newTarget = newPair.getTarget();
+            UpdateEvent newPair = evolvePair(p, n, dir, null);
+            render(renderer, p, n, oldSource, oldTarget, newPair);
+        }
+        return gotUpdates() ? t : maxTime;
+    }
+
+    // render: tell the renderer about the cells changed by an update
+    private final void render(BoardRenderer renderer, Point p, Point n, Particle oldSource, Particle oldTarget, UpdateEvent newPair) {
+        if (newPair != null) {
+            Particle newSource = newPair.getSource();
+            Particle newTarget = newPair.getTarget();
+
+            if (newSource != oldSource)
+                renderer.drawCell(p);
+
+            if (onBoard(n) && newTarget != oldTarget)
+                renderer.drawCell(n);
+
+            if (newPair.getVerb() != null)
+                renderer.showVerb(newPair, p);
+        }
+    }
+
+    // parallel update methods
+    // setThreads: number of threads used by update(). With more than one thread, tiles are updated in parallel
+    public synchronized final void setThreads(int n) {
+        if (n == threads)
+            return;
+        if (tileWorkers != null) {
+            tileWorkers.shutdown();
+            tileWorkers = null;
+        }
+        threads = Math.max(n, 1);
+        if (threads > 1) {
+            tileWorkers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "TileWorker");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            tileRun = new TileRun[tileLock.length];
+            for (int t = 0; t < tileRun.length; ++t) {
+                tileRun[t] = new TileRun(t);
+                tileRun[t].random = random.split();
+            }
+            rebuildSampler(new TiledSampler(size, size, tileSize));
+        }
+        else {
+            tileRun = null;
+            rebuildSampler(createCellSampler(samplerName, size, size));
+        }
+    }
 
-                if (newSource != oldSource)
-                    renderer.drawCell(p);
+    public final int getThreads() {
+        return threads;
+    }
 
-                if (onBoard(n) && newTarget != oldTarget)
-                    renderer.drawCell(n);
+    public final void setPhaseTime(double tau) {
+        phaseTime = tau;
+    }
 
-                if (newPair.getVerb() != null)
-                    renderer.showVerb(newPair);
+    // updateParallel: the parallel version of update().
+    // Each cycle advances the whole board by phaseTime (tau). The tiles are colored like a 2x2 checkerboard,
+    // and each cycle runs the four colors in a random order; within a phase, all tiles of that color run in parallel,
+    // each running its own Gillespie loop for time tau, using its own total rate.
+    // Tiles of the same color are separated by one whole tile, so each tile can own the cells within tileSize/2 of it:
+    // an event that would touch a cell outside that region (via a long bond) is deferred, and re-run serially at the end of the phase.
+    // The Board lock is held for each cycle, so remote (network) updates are interleaved between cycles.
+    // As tau -> 0, this converges on the serial algorithm. Cycles with few expected events are run serially.
+    private final double updateParallel(double maxTime, long maxEvents, BoardRenderer renderer) {
+        TiledSampler tiledSampler = (TiledSampler)sampler;
+        long startEvents = getEventCount();
+        double t = 0;
+        while (t < maxTime && getEventCount() - startEvents < maxEvents && gotUpdates()) {
+            double tau = Math.min(phaseTime, maxTime - t);
+            synchronized (this) {
+                if (tiledSampler.totalRate() * tau < minParallelEvents)
+                    updateSerial(tau, Long.MAX_VALUE, renderer); // not worth the overhead of the phases
+                else
+                    runCycle(tiledSampler, tau, renderer);
             }
+            t += tau;
         }
+        return gotUpdates() ? t : maxTime;
     }
 
-    // evolvePair(sourceCoords,targetCoords,dir) : delegate to appropriate evolve* method.
+    private final void runCycle(TiledSampler tiledSampler, double tau, BoardRenderer renderer) {
+        int[] colors = { 0, 1, 2, 3 };
+        for (int i = colors.length - 1; i > 0; --i) { // shuffle
+            int j = random.nextInt(i + 1), c = colors[i];
+            colors[i] = colors[j];
+            colors[j] = c;
+        }
+        for (int color : colors) {
+            List<TileRun> runs = new ArrayList<TileRun>();
+            for (int t = 0; t < tileRun.length; ++t)
+                if (tileColor(t) == color && tiledSampler.tileTotalRate(t) > 0) {
+                    tileRun[t].start(tiledSampler, tau, renderer);
+                    runs.add(tileRun[t]);
+                }
+            try {
+                tileWorkers.invokeAll(runs);
+            }
+            catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+
+            // re-run the events that reached outside their tiles
+            for (TileRun run : runs)
+                run.finish();
+        }
+    }
+
+    private final int tileColor(int t) {
+        return ((t / tilesPerSide) & 1) * 2 + ((t % tilesPerSide) & 1);
+    }
+
+    // TileRun: the events for one tile in one phase
+    class TileRun implements Callable<Object> {
+        final int tile;
+        final int x0, y0, x1, y1; // the region owned by this tile during its phase: [x0,x1) * [y0,y1)
+        RandomSource random; // this tile's own stream, split from the Board's
+        TiledSampler tiledSampler;
+        double tau;
+        BoardRenderer renderer;
+        final Point p = new Point(), n = new Point(); // the current pair, reused for every event
+        int[] deferred = new int[48]; // (source, target, dir) triples to re-run serially, with coordinates packed (see Coord)
+        int deferredSize = 0;
+
+        TileRun(int tile) {
+            this.tile = tile;
+            int margin = tileSize / 2;
+            int tx = (tile % tilesPerSide) * tileSize, ty = (tile / tilesPerSide) * tileSize;
+            x0 = tx - margin;
+            y0 = ty - margin;
+            x1 = tx + tileSize + margin;
+            y1 = ty + tileSize + margin;
+        }
+
+        void start(TiledSampler tiledSampler, double tau, BoardRenderer renderer) {
+            this.tiledSampler = tiledSampler;
+            this.tau = tau;
+            this.renderer = renderer;
+        }
+
+        public Object call() {
+            double t = 0;
+            while (true) {
+                double rate = tiledSampler.tileTotalRate(tile);
+                if (rate <= 0)
+                    break;
+                t += exponentialWaitTime(random, rate);
+                if (t >= tau)
+                    break;
+                eventCount.increment();
+
+                int pc = tiledSampler.sampleTile(tile, random);
+                Coord.unpack(pc, p);
+                Particle oldSource = readCell(p);
+                int dir = oldSource.sampleDir(random);
+                Coord.unpack(getNeighbor(pc, dir), n);
+                Particle oldTarget = onBoard(n) ? readCell(n) : null;
+
+                // events whose bonds reach outside this tile's region are deferred
+                if (!bondsWithin(p) || (oldTarget != null && !bondsWithin(n))) {
+                    defer(p, n, dir);
+                    continue;
+                }
+
+                UpdateEvent newPair = evolvePair(p, n, dir, this);
+                if (newPair != null)
+                    synchronized (renderer) {
+                        render(renderer, p, n, oldSource, oldTarget, newPair);
+                    }
+            }
+            return null;
+        }
+
+        // contains: true if q is in this tile's region (cells off the board are never written, so they count as inside)
+        final boolean contains(Point q) {
+            return contains(q.x, q.y);
+        }
+
+        final boolean contains(int x, int y) {
+            return !onBoard(x, y) || (x >= x0 && x < x1 && y >= y0 && y < y1);
+        }
+
+        final boolean contains(UpdateEvent e, EventContext ctx) {
+            return e.bondLabelsWithin(Board.this, ctx, x0, y0, x1, y1);
+        }
+
+        // bondsWithin: true if every cell that bondEnergy reads for cell p is in this tile's region:
+        // the bond partners of p, and the outgoing partners of its outgoing partners.
+        // Bonds can be longer than the margin around the tile, so this can't be settled by the region's size alone
+        final boolean bondsWithin(Point p) {
+            int index = cell.index(p.x, p.y);
+            for (int k = 0; k < cell.incomingSlots(index); ++k) {
+                int b = cell.incomingSlot(index, k);
+                if (b != 0 && !contains(p.x + Bonds.dx(b), p.y + Bonds.dy(b)))
+                    return false;
+            }
+            for (int k = 0; k < cell.outgoingSlots(index); ++k) {
+                int b = cell.outgoingSlot(index, k);
+                int rx = p.x + Bonds.dx(b), ry = p.y + Bonds.dy(b);
+                if (b != 0 && (!contains(rx, ry) || (onBoard(rx, ry) && !outgoingWithin(rx, ry, x0, y0, x1, y1))))
+                    return false;
+            }
+            return true;
+        }
+
+        final void defer(Point p, Point n, int dir) {
+            if (deferredSize + 3 > deferred.length)
+                deferred = Arrays.copyOf(deferred, 2 * deferred.length);
+            deferred[deferredSize++] = Coord.pack(p.x, p.y);
+            deferred[deferredSize++] = Coord.pack(n.x, n.y);
+            deferred[deferredSize++] = dir;
+            deferredCount.increment();
+        }
+
+        // finish: called by the updating thread (which holds the Board lock) once all tiles in the phase are done
+        final void finish() {
+            for (int i = 0; i < deferredSize; i += 3) {
+                Coord.unpack(deferred[i], p);
+                Coord.unpack(deferred[i + 1], n);
+                int dir = deferred[i + 2];
+                Particle oldSource = readCell(p);
+                Particle oldTarget = onBoard(n) ? readCell(n) : null;
+                if (oldSource.isActive(dir))
+                    render(renderer, p, n, oldSource, oldTarget, evolvePair(p, n, dir, null));
+            }
+            deferredSize = 0;
+        }
+    }
+
+    // evolvePair(sourceCoords,targetCoords,dir,run) : delegate to appropriate evolve* method.
     // in what follows, one cell is designated the "source", and its neighbor is the "target".
     // "dir" is the direction from source to target.
+    // "run" is the TileRun for parallel updates (which must not take the Board lock), or null for serial updates.
     // returns a UpdateEvent describing the new state and verb (may be null).
-    private final UpdateEvent evolvePair(Point sourceCoords, Point targetCoords, int dir) {
+    private final UpdateEvent evolvePair(Point sourceCoords, Point targetCoords, int dir, TileRun run) {
         UpdateEvent pp = null;
         if (onBoard(targetCoords)) {
-            pp = evolveLocalSourceAndLocalTarget(sourceCoords, targetCoords, dir);
+            if (run == null)
+                pp = evolveLocalSourceAndLocalTarget(sourceCoords, targetCoords, dir);
+            else
+                pp = evolveTargetForSource(sourceCoords, targetCoords, readCell(sourceCoords), readCell(targetCoords), dir, 0, run.random, run);
         }
         else {
             // request remote evolveLocalTargetForRemoteSource
-            RemoteCellCoord remoteCoords = remoteCell.get(targetCoords);
-            if (remoteCoords == null)
-                pp = evolveLocalSourceAndDummyTarget(sourceCoords, targetCoords, dir);
+            int border = borderIndex(targetCoords.x, targetCoords.y);
+            RemoteCellCoord remoteCoords = border < 0 ? null : remoteCell[border];
+            if (remoteCoords == null) {
+                if (run == null)
+                    pp = evolveLocalSourceAndDummyTarget(sourceCoords, targetCoords, dir);
+                else
+                    pp = evolveTargetForSource(sourceCoords, targetCoords, readCell(sourceCoords), spaceParticle, dir, 0, run.random, run);
+            }
             else
                 evolveLocalSourceAndRemoteTarget(sourceCoords, remoteCoords, dir);
         }
@@ -349,13 +828,14 @@ public class Board extends MooreTopology {
 
             if (oldSourceState.name.equals(spaceParticle.name)) {
                 System.err.println("Oops, this can't be good: empty space (" + spaceParticle.name + ") is active. Rules:");
-                Set<Particle> actives = oldSourceState.transform.get(dir).keySet();
-                for (Particle a : actives)
-                    System.err.println("_ " + a.name);
+                for (int id : oldSourceState.transform[dir].targetIds()) {
+                    Particle a = getParticleById(id);
+                    System.err.println("_ " + (a == null ? ("#" + id) : a.name));
+                }
             }
 
             double energyBarrier = -bondEnergy(sourceCoords); // activation energy for a cross-border move involves breaking all local bonds
-            connectServer.sendEvolveDatagram(remoteCoords.getAddress(), remoteCoords.getPort(), remoteCoords.getPoint(), oldSourceState, sourceCoords, dir, energyBarrier, localhost, boardServerPort, getCellWriteCount(sourceCoords));
+            updateServer.sendEvolve(remoteCoords, oldSourceState, sourceCoords, dir, energyBarrier, getCellWriteCount(sourceCoords));
         }
     }
 
@@ -370,7 +850,7 @@ public class Board extends MooreTopology {
     // evolveLocalTargetForRemoteSource : handle a remote request for update.
     // Return the new source state (the caller of this method will send this returned state back over the network as a RETURN datagram).
     synchronized public final Particle evolveLocalTargetForRemoteSource(Point targetCoords, Particle oldSourceState, int dir, double energyBarrier) {
-        UpdateEvent pp = evolveTargetForSource(null, targetCoords, oldSourceState, readCell(targetCoords), dir, energyBarrier);
+        UpdateEvent pp = evolveTargetForSource(null, targetCoords, oldSourceState, readCell(targetCoords), dir, energyBarrier, remoteRandom, null);
         return pp == null ? oldSourceState : pp.getSource();
     }
 
@@ -386,69 +866,76 @@ public class Board extends MooreTopology {
     // write the updated target, and return the updated (source,target) pair.
     // The source cell coords are provided, but may be null if the source cell is off-board.
     public final UpdateEvent evolveTargetForSource(Point sourceCoords, Point targetCoords, Particle oldSourceState, Particle oldTargetState, int dir, double energyBarrier) {
+        return evolveTargetForSource(sourceCoords, targetCoords, oldSourceState, oldTargetState, dir, energyBarrier, random, null);
+    }
+
+    private final UpdateEvent evolveTargetForSource(Point sourceCoords, Point targetCoords, Particle oldSourceState, Particle oldTargetState, int dir, double energyBarrier, RandomSource random, TileRun run) {
         // sample new state-pair
-        UpdateEvent proposedUpdate = oldSourceState.samplePair(dir, oldTargetState);
+        UpdateEvent proposedUpdate = oldSourceState.samplePair(dir, oldTargetState, random);
         UpdateEvent acceptedUpdate = null;
 
-        // if move is non-null, bonds match and energy difference is acceptable, then write the update
-        if (proposedUpdate != null)
-            if (proposedUpdate.bindBonds(sourceCoords, targetCoords, this))
-                if (acceptUpdate(proposedUpdate, energyBarrier)) { // must call bindBonds before acceptUpdate
-                    proposedUpdate.write(this);
-                    acceptedUpdate = proposedUpdate;
-                }
+        // if move is non-null, bonds match and energy difference is acceptable, then write the update.
+        // UpdateEvents are shared between cells (and so between parallel tiles), so the binding state goes in this thread's EventContext
+        if (proposedUpdate != null) {
+            EventContext ctx = eventContext.get();
+            boolean bound = proposedUpdate.bindBonds(sourceCoords, targetCoords, this, ctx);
+            if (bound && run != null && !run.contains(proposedUpdate, ctx)) {
+                run.defer(sourceCoords, targetCoords, dir);
+                return null;
+            }
+            proposedCount.increment();
+            if (bound && acceptUpdate(proposedUpdate, ctx, energyBarrier, random)) { // must call bindBonds before acceptUpdate
+                proposedUpdate.write(this, ctx);
+                acceptedUpdate = proposedUpdate;
+                acceptedCount.increment();
+            }
+        }
 
         // return
         return acceptedUpdate;
     }
 
     // method to accept or reject a move based on the "Hastings ratio" for a given energy delta
-    public final boolean acceptUpdate(UpdateEvent e, double energyBarrier) {
-        double energyDelta = energyBarrier + e.energyDelta(this);
-        boolean accept = energyDelta > 0 ? true : (Math.random() < Math.pow(10, energyDelta));
+    // (ctx must hold the binding made by e.bindBonds)
+    public final boolean acceptUpdate(UpdateEvent e, EventContext ctx, double energyBarrier) {
+        return acceptUpdate(e, ctx, energyBarrier, random);
+    }
+
+    private final boolean acceptUpdate(UpdateEvent e, EventContext ctx, double energyBarrier, RandomSource random) {
+        double energyDelta = energyBarrier + e.energyDelta(this, ctx);
+        boolean accept = energyDelta > 0 ? true : (random.nextDouble() < Math.pow(10, energyDelta));
         return accept;
     }
 
     // method to calculate the interaction energy of a cell (p) with its bond partners, as well as the self-energy of the particle.
     // if q != null, then q will be excluded from the set of partners.
-    public final double bondEnergy(Point p, Point q, Particle pState, Map<String, Point> incoming, Map<String, Point> outgoing) {
+    // bonds are packed ints (see Bonds), so nothing is allocated; the incoming & outgoing lists may be null (no bonds)
+    public final double bondEnergy(Point p, Point q, Particle pState, BondList incoming, BondList outgoing) {
         double E = pState.energy;
         // chain is m->n->p->r->s
-        Point m = new Point();
-        Point n2p = null;
         if (incoming != null)
-            for (Map.Entry<String, Point> kv : incoming.entrySet()) {
-                String bondName = kv.getKey();
-                Point p2n = kv.getValue();
-                Point n = p.add(p2n);
-                n2p = p2n.multiply(-1);
-                if (onBoard(n) && (q == null || !n.equals(q))) {
-                    Point n2m = incoming(n, bondName);
-                    Point m2n = null;
-                    if (n2m != null)
-                        m2n = n2m.multiply(-1);
-                    E += patternSet.getEnergy(readCell(n).name, pState.name, bondName, n2p, n2m == null ? null : m2n);
+            for (int i = 0; i < incoming.size(); ++i) {
+                int p2n = incoming.get(i);
+                int nx = p.x + Bonds.dx(p2n), ny = p.y + Bonds.dy(p2n);
+                if (onBoard(nx, ny) && !isCell(q, nx, ny)) {
+                    int nIndex = cell.index(nx, ny);
+                    int n2m = cell.getIncoming(nIndex, Bonds.idOf(p2n));
+                    E += patternSet.getEnergy(particleAt(nIndex), pState, Bonds.reverse(p2n), n2m == 0 ? 0 : Bonds.reverse(n2m));
                 }
             }
         if (outgoing != null)
-            for (Map.Entry<String, Point> kv : outgoing.entrySet()) {
-                String bondName = kv.getKey();
-                Point p2r = kv.getValue();
-                Point r = p.add(p2r);
-                if (onBoard(r) && (q == null || !r.equals(q))) {
-                    Point p2n = null;
-                    if (incoming != null) {
-                        p2n = incoming.get(bondName);
-                        if (p2n != null)
-                            n2p = p2n.multiply(-1);
-                    }
-                    E += patternSet.getEnergy(pState.name, readCell(r).name, bondName, p2r, p2n == null ? null : n2p);
-                    Point r2s = outgoing(r, bondName);
-                    if (r2s != null) {
-                        Point s = r.add(r2s);
-                        if (onBoard(s) && (q == null || !s.equals(q))) {
-                            E += patternSet.getEnergy(readCell(r).name, readCell(s).name, bondName, r2s, p2r);
-                        }
+            for (int i = 0; i < outgoing.size(); ++i) {
+                int p2r = outgoing.get(i), bondId = Bonds.idOf(p2r);
+                int rx = p.x + Bonds.dx(p2r), ry = p.y + Bonds.dy(p2r);
+                if (onBoard(rx, ry) && !isCell(q, rx, ry)) {
+                    int p2n = incoming == null ? 0 : incoming.find(bondId);
+                    int rIndex = cell.index(rx, ry);
+                    E += patternSet.getEnergy(pState, particleAt(rIndex), p2r, p2n == 0 ? 0 : Bonds.reverse(p2n));
+                    int r2s = cell.getOutgoing(rIndex, bondId);
+                    if (r2s != 0) {
+                        int sx = rx + Bonds.dx(r2s), sy = ry + Bonds.dy(r2s);
+                        if (onBoard(sx, sy) && !isCell(q, sx, sy))
+                            E += patternSet.getEnergy(particleAt(rIndex), particleAt(cell.index(sx, sy)), r2s, p2r);
                     }
                 }
             }
@@ -456,51 +943,62 @@ public class Board extends MooreTopology {
     }
 
     // wrapper for bondEnergy with no excluded point
-    public final double bondEnergy(Point p, Particle pState, Map<String, Point> incoming, Map<String, Point> outgoing) {
+    public final double bondEnergy(Point p, Particle pState, BondList incoming, BondList outgoing) {
         return bondEnergy(p, null, pState, incoming, outgoing);
     }
 
     // method to calculate the bond energy of two cells with given states and bonds, as well as the self-energies of the two particles.
-    public final double bondEnergy(Point p, Point q, Particle pState, Particle qState, Map<String, Point> pIn, Map<String, Point> pOut, Map<String, Point> qIn, Map<String, Point> qOut) {
+    public final double bondEnergy(Point p, Point q, Particle pState, Particle qState, BondList pIn, BondList pOut, BondList qIn, BondList qOut) {
         // chain is n->p->q->r
         double E = 0;
-        Point p2q = q.subtract(p);
+        int dx = q.x - p.x, dy = q.y - p.y;
         if (pOut != null)
-            for (Map.Entry<String, Point> kv : pOut.entrySet()) {
-                String bondName = kv.getKey();
-                Point p2qMaybe = kv.getValue();
-                Point qMaybe = p.add(p2qMaybe);
-                if (qMaybe.equals(q)) {
-                    Point p2n = null;
-                    Point n2p = null;
-                    if (pIn != null) {
-                        p2n = pIn.get(bondName);
-                        if (p2n != null) {
-                            Point n = p.add(p2n);
-                            n2p = p2n.multiply(-1);
-                        }
-                    }
-                    E += patternSet.getEnergy(pState.name, qState.name, bondName, p2q, p2n == null ? null : n2p);
-                    if (qOut != null) {
-                        Point q2r = qOut.get(bondName);
-                        if (q2r != null) {
-                            Point r = q.add(q2r);
-                            if (onBoard(r))
-                                E += patternSet.getEnergy(qState.name, readCell(r).name, bondName, q2r, p2q);
-                        }
+            for (int i = 0; i < pOut.size(); ++i) {
+                int p2q = pOut.get(i), bondId = Bonds.idOf(p2q);
+                if (Bonds.dx(p2q) == dx && Bonds.dy(p2q) == dy) {
+                    int p2n = pIn == null ? 0 : pIn.find(bondId);
+                    E += patternSet.getEnergy(pState, qState, p2q, p2n == 0 ? 0 : Bonds.reverse(p2n));
+                    int q2r = qOut == null ? 0 : qOut.find(bondId);
+                    if (q2r != 0) {
+                        int rx = q.x + Bonds.dx(q2r), ry = q.y + Bonds.dy(q2r);
+                        if (onBoard(rx, ry))
+                            E += patternSet.getEnergy(qState, particleAt(cell.index(rx, ry)), q2r, p2q);
                     }
                 }
             }
         return E + bondEnergy(p, q, pState, pIn, pOut) + bondEnergy(q, p, qState, qIn, qOut);
     }
 
-    // bondEnergy wrappers that read incoming & outgoing bond sets from the Board
+    // bondEnergy wrappers that read incoming & outgoing bond sets from the Board (into per-thread scratch lists)
     public final double bondEnergy(Point p) {
-        return bondEnergy(p, null, readCell(p), incoming(p), outgoing(p));
+        BondList[] scratch = bondScratch.get();
+        return bondEnergy(p, null, readCell(p), incoming(p, scratch[0]), outgoing(p, scratch[1]));
     }
 
     public final double bondEnergy(Point p, Point q) {
-        return bondEnergy(p, q, readCell(p), readCell(q), incoming(p), outgoing(p), incoming(q), outgoing(q));
+        BondList[] scratch = bondScratch.get();
+        return bondEnergy(p, q, readCell(p), readCell(q), incoming(p, scratch[0]), outgoing(p, scratch[1]), incoming(q, scratch[2]), outgoing(q, scratch[3]));
+    }
+
+    // eventContext: each thread's scratch space for evaluating UpdateEvents (see evolveTargetForSource)
+    private final ThreadLocal<EventContext> eventContext = new ThreadLocal<EventContext>() {
+        protected EventContext initialValue() {
+            return new EventContext();
+        }
+    };
+
+    private final ThreadLocal<BondList[]> bondScratch = new ThreadLocal<BondList[]>() {
+        protected BondList[] initialValue() {
+            return new BondList[] { new BondList(), new BondList(), new BondList(), new BondList() };
+        }
+    };
+
+    private final Particle particleAt(int index) {
+        return particleById[cell.getParticleId(index)];
+    }
+
+    private static boolean isCell(Point q, int x, int y) {
+        return q != null && q.x == x && q.y == y;
     }
 
     // method returning a description of a cell neighborhood (including incoming & outgoing bonds) as a String
@@ -563,37 +1061,73 @@ public class Board extends MooreTopology {
     }
 
     public final void addRemoteCellCoord(Point p, InetSocketAddress remoteBoard, Point pRemote) {
-        Point q = new Point(p);
-        remoteCell.put(q, new RemoteCellCoord(remoteBoard, pRemote));
+        int border = borderIndex(p.x, p.y);
+        if (border < 0) {
+            System.err.println("Can't connect cell " + p + " to " + remoteBoard + ": only cells just off the edge of the board can be connected");
+            return;
+        }
+        if (remoteCell[border] == null)
+            ++remoteCells;
+        remoteCell[border] = new RemoteCellCoord(remoteBoard, pRemote);
     }
 
-    // Particle name-indexing methods
-    protected final void registerParticle(Particle p) {
-        nameToParticle.put(p.name, p);
-        SortedSet<Particle> particles;
-        if (!prefixToParticles.containsKey(p.prefix)) {
-            particles = new TreeSet<Particle>();
-            prefixToParticles.put(p.prefix, particles);
+    // borderIndex: index of (x,y) in the ring of off-board cells around the edge of the board (corners included), or -1 if (x,y) is not in that ring
+    private final int borderIndex(int x, int y) {
+        if (x >= -1 && x <= size) {
+            if (y == -1)
+                return x + 1;
+            if (y == size)
+                return size + 3 + x;
         }
-        else {
-            particles = prefixToParticles.get(p.prefix);
+        if (y >= 0 && y < size) {
+            if (x == -1)
+                return 2 * size + 4 + y;
+            if (x == size)
+                return 3 * size + 4 + y;
         }
+        return -1;
+    }
+
+    // Particle name-indexing methods
+    // registerParticle also hands out the dense integer id that the cell store uses in place of a Particle reference
+    protected final void registerParticle(Particle p) {
+        synchronized (registryLock) {
+            if (p.id == 0) {
+                if (nextParticleId == particleById.length)
+                    particleById = Arrays.copyOf(particleById, 2 * particleById.length);
+                p.id = nextParticleId++;
+            }
+            particleById[p.id] = p;
+
+            nameToParticle.put(p.name, p);
+            SortedSet<Particle> particles;
+            if (!prefixToParticles.containsKey(p.prefix)) {
+                particles = new TreeSet<Particle>();
+                prefixToParticles.put(p.prefix, particles);
+            }
+            else {
+                particles = prefixToParticles.get(p.prefix);
+            }
 
-        particles.add(p);
+            particles.add(p);
+        }
     }
 
     protected final void deregisterParticle(Particle p) {
-        nameToParticle.remove(p.name);
-        SortedSet<Particle> prefixSet = prefixToParticles.get(p.prefix);
-        if (prefixSet != null) {
-            prefixSet.remove(p);
-            if (prefixSet.size() != 0)
-                prefixToParticles.remove(p.prefix);
-        }
-        else {
-            System.err.println("Warning: found no prefix set for " + p.name);
+        synchronized (registryLock) {
+            particleById[p.id] = null; // the id is kept by the Particle, so it can be re-registered later
+            nameToParticle.remove(p.name);
+            SortedSet<Particle> prefixSet = prefixToParticles.get(p.prefix);
+            if (prefixSet != null) {
+                prefixSet.remove(p);
+                if (prefixSet.size() != 0)
+                    prefixToParticles.remove(p.prefix);
+            }
+            else {
+                System.err.println("Warning: found no prefix set for " + p.name);
+            }
+            System.err.println("Deregistering " + p.name);
         }
-        System.err.println("Deregistering " + p.name);
     }
 
     public Map<String, Particle> getNameToParticleMap() {
@@ -604,6 +1138,10 @@ public class Board extends MooreTopology {
         return nameToParticle.get(name);
     }
 
+    public final Particle getParticleById(int id) {
+        return particleById[id];
+    }
+
     public final boolean gotPrefix(String prefix) {
         return prefixToParticles.containsKey(prefix);
     }
@@ -623,18 +1161,49 @@ public class Board extends MooreTopology {
         return nameToParticle.values();
     }
 
-    // flush particle cache, and flush all particles' transformation rule & energy caches
+    // flush particle cache, and flush all particles' transformation rule caches (except for pairs of particles that are both on the board)
     public void flushCaches() {
         for (Particle p : knownParticles()) {
-            if (p.getReferenceCount() <= 0)
+            if (getPopulation(p) <= 0)
                 deregisterParticle(p);
         }
+        ruleTableCache.evictUnpinned();
+    }
+
+    // rule compiler accessors
+    public final RuleCompiler getRuleCompiler() {
+        return ruleCompiler;
+    }
+
+    public final RuleTableCache getRuleTableCache() {
+        return ruleTableCache;
+    }
+
+    // nounStatsString: NOUN pattern matching statistics, or null if no PatternSet is loaded
+    public final String nounStatsString() {
+        return patternSet == null ? null : patternSet.nounStatsString();
+    }
+
+    // setRuleCacheDir: must be called before loadPatternSetFromFile; null disables the cache
+    public final void setRuleCacheDir(String dir) {
+        ruleCacheDir = dir;
     }
 
     // method to init PatternSet from file
     public final void loadPatternSetFromFile(String filename) {
         patternSet = PatternSet.fromFile(filename, this);
 
+        // map the on-disk cache of compiled rules for this PatternSet, and write it back on exit
+        if (ruleCacheDir != null && patternSet != null && patternSet.getRuleHash() != null) {
+            final RuleCache cache = new RuleCache(ruleCacheDir, this, patternSet);
+            ruleCompiler.setRuleCache(cache);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        cache.save();
+                    }
+                });
+        }
+
         if (toWorldServer != null)
             toWorldServer.sendAllClientRules(patternSet, patternSet.getByteSize());
     }
@@ -650,7 +1219,12 @@ public class Board extends MooreTopology {
         return updateServer != null;
     }
     public final boolean connected() {
-        return remoteCell.size() > 0;
+        return remoteCells > 0;
+    }
+
+    // networkStatsString: cross-border traffic statistics, or null if this Board is not online
+    public final String networkStatsString() {
+        return updateServer == null ? null : updateServer.statsString();
     }
 
     // read from image
@@ -682,6 +1256,23 @@ public class Board extends MooreTopology {
             }
     }
 
+    // event counter accessors
+    public final long getEventCount() {
+        return eventCount.sum();
+    }
+
+    public final long getProposedCount() {
+        return proposedCount.sum();
+    }
+
+    public final long getAcceptedCount() {
+        return acceptedCount.sum();
+    }
+
+    public final long getDeferredCount() {
+        return deferredCount.sum();
+    }
+
     // debug
     public String debugDumpStats() {
         int transRules = 0, outcomes = 0;
@@ -689,7 +1280,7 @@ public class Board extends MooreTopology {
             transRules += p.transformationRules();
             outcomes += p.outcomes();
         }
-        return nameToParticle.size() + " states, " + transRules + " rules, " + outcomes + " outcomes";
+        return nameToParticle.size() + " states, " + transRules + " rules, " + outcomes + " outcomes, compile queue " + ruleCompiler.getQueueDepth();
     }
 
 }
@@ -0,0 +1,52 @@
+package zoogas.core;
+
+import java.util.Arrays;
+
+// BondList: a reusable list of packed bonds (see Bonds), holding at most one bond per bond id.
+// Used for the bonds an UpdateEvent will create, and as scratch space for reading a cell's bonds.
+public class BondList {
+    private int[] bond = new int[4];
+    private int size = 0;
+
+    public final int size() {
+        return size;
+    }
+
+    public final boolean isEmpty() {
+        return size == 0;
+    }
+
+    public final int get(int i) {
+        return bond[i];
+    }
+
+    public final void clear() {
+        size = 0;
+    }
+
+    // find: the bond with the given id, or 0 if there is none
+    public final int find(int id) {
+        for (int i = 0; i < size; ++i)
+            if (Bonds.idOf(bond[i]) == id)
+                return bond[i];
+        return 0;
+    }
+
+    // put: add a bond, replacing any bond with the same id
+    public final void put(int b) {
+        int id = Bonds.idOf(b);
+        for (int i = 0; i < size; ++i)
+            if (Bonds.idOf(bond[i]) == id) {
+                bond[i] = b;
+                return;
+            }
+        if (size == bond.length)
+            bond = Arrays.copyOf(bond, 2 * size);
+        bond[size++] = b;
+    }
+
+    // isEmpty: true if the list is null or empty
+    public static boolean isEmpty(BondList list) {
+        return list == null || list.size == 0;
+    }
+}
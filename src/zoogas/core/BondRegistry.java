@@ -0,0 +1,87 @@
+package zoogas.core;
+
+import java.util.Arrays;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// BondRegistry: a live index of the bonds on a Board, kept up to date by Board.addBond and Board.removeBonds.
+// Bonds are stored in the CellStore, by cell; the registry records which cells have outgoing bonds (as a bitmap of cell indices),
+// how far any bond reaches, and which cells' outgoing bonds have changed since a view last looked (in a DirtyCellSet).
+// All methods are lock-free, so parallel Board tiles can share one registry.
+public class BondRegistry {
+    private final AtomicLongArray bonded; // cells with at least one outgoing bond
+    private final AtomicInteger bondedCells = new AtomicInteger(0);
+    private final AtomicInteger maxReach = new AtomicInteger(0); // largest |dx| or |dy| of any bond added so far
+    private final DirtyCellSet changed;
+
+    // constructor
+    public BondRegistry(int cells) {
+        bonded = new AtomicLongArray((cells + 63) >>> 6);
+        changed = new DirtyCellSet(cells);
+    }
+
+    // update methods, called by Board
+    // setBonded: record whether a cell has outgoing bonds, and mark it as changed
+    final void setBonded(int cell, boolean hasOutgoing) {
+        int w = cell >>> 6;
+        long bit = 1L << cell;
+        long old;
+        do {
+            old = bonded.get(w);
+            if (((old & bit) != 0) == hasOutgoing)
+                break;
+        } while (!bonded.compareAndSet(w, old, old ^ bit));
+        if (((old & bit) != 0) != hasOutgoing)
+            bondedCells.addAndGet(hasOutgoing ? 1 : -1);
+        changed.mark(cell);
+    }
+
+    // noteReach: record the offset of a new bond
+    final void noteReach(int dx, int dy) {
+        int reach = Math.max(Math.abs(dx), Math.abs(dy));
+        int old;
+        while (reach > (old = maxReach.get()) && !maxReach.compareAndSet(old, reach))
+            ;
+    }
+
+    // query methods
+    public final boolean isBonded(int cell) {
+        return (bonded.get(cell >>> 6) & (1L << cell)) != 0;
+    }
+
+    // getBondedCellCount: the number of cells with outgoing bonds
+    public final int getBondedCellCount() {
+        return bondedCells.get();
+    }
+
+    // getMaxReach: an upper bound on |dx| and |dy| of every bond on the board
+    public final int getMaxReach() {
+        return maxReach.get();
+    }
+
+    // bondedCells: the cells with outgoing bonds, in increasing order, in dest (growing it if necessary); dest[0] is the count
+    public final int[] bondedCells(int[] dest) {
+        if (dest == null || dest.length < 65)
+            dest = new int[65];
+        int n = 0;
+        for (int w = 0; w < bonded.length(); ++w) {
+            long bits = bonded.get(w);
+            if (bits == 0)
+                continue;
+            if (n + 65 > dest.length)
+                dest = Arrays.copyOf(dest, 2 * dest.length + 64);
+            while (bits != 0) {
+                dest[++n] = (w << 6) | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        dest[0] = n;
+        return dest;
+    }
+
+    // drainChanged: the cells whose outgoing bonds have changed since the last call (see DirtyCellSet.drain)
+    public final int[] drainChanged(int[] dest) {
+        return changed.drain(dest);
+    }
+}
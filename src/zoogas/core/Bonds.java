@@ -0,0 +1,80 @@
+package zoogas.core;
+
+import java.util.Arrays;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Bonds: interned bond names, and bonds packed into ints.
+// Bond names are interned into small integer ids (1..maxBondId) when a PatternSet is loaded,
+// so that cells, UpdateEvents and energy lookups can refer to bonds without Strings.
+// A packed bond is (id << 24) | ((dx & 0xfff) << 12) | (dy & 0xfff): the bond id in the top byte,
+// then the offset to the partner cell as two signed 12-bit fields. Since ids start at 1, the int 0 means "no bond".
+public final class Bonds {
+    public static final int maxBondId = 255;
+    public static final int maxOffset = 2047; // largest |dx| or |dy| that can be packed
+
+    private static ConcurrentHashMap<String, Integer> idByName = new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] nameById = new String[] { null };
+
+    private Bonds() {
+    }
+
+    // interning methods
+    // intern: the id for a bond name, assigning a new one if necessary
+    public static int intern(String name) {
+        Integer id = idByName.get(name);
+        return id != null ? id : assignId(name);
+    }
+
+    // id: the id for a bond name, or 0 if it has never been interned (so no cell can have a bond with that name)
+    public static int id(String name) {
+        Integer id = idByName.get(name);
+        return id != null ? id : 0;
+    }
+
+    public static String name(int id) {
+        return nameById[id];
+    }
+
+    private static synchronized int assignId(String name) {
+        Integer id = idByName.get(name);
+        if (id == null) {
+            if (nameById.length > maxBondId)
+                throw new RuntimeException("Too many bond names (the limit is " + maxBondId + "); could not add '" + name + "'");
+            String[] names = Arrays.copyOf(nameById, nameById.length + 1);
+            id = nameById.length;
+            names[id] = name;
+            nameById = names;
+            idByName.put(name, id);
+        }
+        return id;
+    }
+
+    // packing methods
+    public static int pack(int id, int dx, int dy) {
+        if (dx < -maxOffset || dx > maxOffset || dy < -maxOffset || dy > maxOffset)
+            throw new RuntimeException("Bond offset (" + dx + "," + dy + ") is too long to store");
+        return (id << 24) | ((dx & 0xfff) << 12) | (dy & 0xfff);
+    }
+
+    public static int idOf(int bond) {
+        return bond >>> 24;
+    }
+
+    public static int dx(int bond) {
+        return (bond << 8) >> 20;
+    }
+
+    public static int dy(int bond) {
+        return (bond << 20) >> 20;
+    }
+
+    // reverse: the same bond, seen from the other end
+    public static int reverse(int bond) {
+        return pack(idOf(bond), -dx(bond), -dy(bond));
+    }
+
+    public static Point delta(int bond) {
+        return new Point(dx(bond), dy(bond));
+    }
+}
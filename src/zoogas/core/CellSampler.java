@@ -0,0 +1,15 @@
+package zoogas.core;
+
+// CellSampler: data structure that stores an update rate for every cell on the board,
+// and samples cells in proportion to those rates.
+// Board uses this to choose which cell to update next.
+public interface CellSampler {
+    // set the update rate of the cell at (x,y)
+    public void setRate(int x, int y, double rate);
+
+    // total update rate of all cells
+    public double totalRate();
+
+    // return the packed coordinates (see Coord) of a random cell, sampled proportionally to its update rate
+    public int sample(RandomSource random);
+}
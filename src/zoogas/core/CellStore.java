@@ -0,0 +1,245 @@
+package zoogas.core;
+
+import java.util.Arrays;
+
+// CellStore: packed, allocation-free storage for the state of every cell on a Board.
+// Cells are addressed by a flat index (y * width + x).
+// Particles are stored as the dense integer ids handed out by Board.registerParticle (0 means "no particle"),
+// write counts live in a parallel int array,
+// and bonds are packed ints (see Bonds) in fixed inline slots, with an overflow array only for cells that have more bonds than fit.
+public class CellStore {
+    // dimensions
+    private final int width, height;
+
+    // main cell data
+    private final int[] particleId;
+    private final int[] writeCount;
+
+    // bonds, packed into ints (see Bonds): bondSlots inline slots per cell for each direction, then a per-cell overflow array for the rare cells with more.
+    // A slot holds 0 or one packed bond, so it is always read and written as a whole, and parallel tiles can safely read bonds that cross into their neighbors
+    public static final int bondSlots = 4;
+    private final int[] incoming, outgoing;
+    private final int[][] incomingOverflow, outgoingOverflow; // null for cells that have never needed more than bondSlots bonds
+
+    // constructor
+    public CellStore(int width, int height) {
+        this.width = width;
+        this.height = height;
+        particleId = new int[width * height];
+        writeCount = new int[width * height];
+        incoming = new int[width * height * bondSlots];
+        outgoing = new int[width * height * bondSlots];
+        incomingOverflow = new int[width * height][];
+        outgoingOverflow = new int[width * height][];
+    }
+
+    // geometry
+    public final int width() {
+        return width;
+    }
+
+    public final int height() {
+        return height;
+    }
+
+    public final int cells() {
+        return particleId.length;
+    }
+
+    public final int index(int x, int y) {
+        return y * width + x;
+    }
+
+    // particle ids & write counts
+    public final int getParticleId(int index) {
+        return particleId[index];
+    }
+
+    // returns the previous particle id
+    public final int setParticleId(int index, int id) {
+        int old = particleId[index];
+        particleId[index] = id;
+        ++writeCount[index];
+        return old;
+    }
+
+    public final int getWriteCount(int index) {
+        return writeCount[index];
+    }
+
+    // bond accessors
+    // getIncoming, getOutgoing: the packed bond with the given id, or 0 if there is none
+    public final int getIncoming(int index, int bondId) {
+        return find(incoming, incomingOverflow, index, bondId);
+    }
+
+    public final int getOutgoing(int index, int bondId) {
+        return find(outgoing, outgoingOverflow, index, bondId);
+    }
+
+    // incomingSlots, incomingSlot (and the outgoing versions) iterate over a cell's bonds without allocating:
+    // for k in [0, incomingSlots(index)), incomingSlot(index, k) is a packed bond, or 0 for an empty slot
+    public final int incomingSlots(int index) {
+        return slots(incomingOverflow, index);
+    }
+
+    public final int incomingSlot(int index, int k) {
+        return slot(incoming, incomingOverflow, index, k);
+    }
+
+    public final int outgoingSlots(int index) {
+        return slots(outgoingOverflow, index);
+    }
+
+    public final int outgoingSlot(int index, int k) {
+        return slot(outgoing, outgoingOverflow, index, k);
+    }
+
+    // readIncoming, readOutgoing: copy a cell's bonds into dest, and return it
+    public final BondList readIncoming(int index, BondList dest) {
+        return read(incoming, incomingOverflow, index, dest);
+    }
+
+    public final BondList readOutgoing(int index, BondList dest) {
+        return read(outgoing, outgoingOverflow, index, dest);
+    }
+
+    public final boolean hasBonds(int index) {
+        return hasAny(incoming, incomingOverflow, index) || hasAny(outgoing, outgoingOverflow, index);
+    }
+
+    public final boolean hasOutgoing(int index) {
+        return hasAny(outgoing, outgoingOverflow, index);
+    }
+
+    // putIncoming, putOutgoing: add a packed bond, replacing any bond with the same id
+    public final void putIncoming(int index, int bond) {
+        put(incoming, incomingOverflow, index, bond);
+    }
+
+    public final void putOutgoing(int index, int bond) {
+        put(outgoing, outgoingOverflow, index, bond);
+    }
+
+    public final void removeIncoming(int index, int bondId) {
+        remove(incoming, incomingOverflow, index, bondId);
+    }
+
+    public final void removeOutgoing(int index, int bondId) {
+        remove(outgoing, outgoingOverflow, index, bondId);
+    }
+
+    public final void clearBonds(int index) {
+        Arrays.fill(incoming, index * bondSlots, (index + 1) * bondSlots, 0);
+        Arrays.fill(outgoing, index * bondSlots, (index + 1) * bondSlots, 0);
+        incomingOverflow[index] = null;
+        outgoingOverflow[index] = null;
+    }
+
+    // private bond methods, shared by both directions
+    private static int slots(int[][] overflow, int index) {
+        int[] extra = overflow[index];
+        return extra == null ? bondSlots : bondSlots + extra.length;
+    }
+
+    private static int slot(int[] inline, int[][] overflow, int index, int k) {
+        if (k < bondSlots)
+            return inline[index * bondSlots + k];
+        int[] extra = overflow[index];
+        return extra == null || k - bondSlots >= extra.length ? 0 : extra[k - bondSlots];
+    }
+
+    // find relies on bond ids starting at 1, so an empty slot never matches (and looking up id 0 finds nothing)
+    private static int find(int[] inline, int[][] overflow, int index, int bondId) {
+        for (int i = index * bondSlots, end = i + bondSlots; i < end; ++i)
+            if (Bonds.idOf(inline[i]) == bondId)
+                return inline[i];
+        int[] extra = overflow[index];
+        if (extra != null)
+            for (int b : extra)
+                if (Bonds.idOf(b) == bondId)
+                    return b;
+        return 0;
+    }
+
+    private static BondList read(int[] inline, int[][] overflow, int index, BondList dest) {
+        dest.clear();
+        for (int i = index * bondSlots, end = i + bondSlots; i < end; ++i)
+            if (inline[i] != 0)
+                dest.put(inline[i]);
+        int[] extra = overflow[index];
+        if (extra != null)
+            for (int b : extra)
+                if (b != 0)
+                    dest.put(b);
+        return dest;
+    }
+
+    private static boolean hasAny(int[] inline, int[][] overflow, int index) {
+        for (int i = index * bondSlots, end = i + bondSlots; i < end; ++i)
+            if (inline[i] != 0)
+                return true;
+        int[] extra = overflow[index];
+        if (extra != null)
+            for (int b : extra)
+                if (b != 0)
+                    return true;
+        return false;
+    }
+
+    private static void put(int[] inline, int[][] overflow, int index, int bond) {
+        int id = Bonds.idOf(bond), empty = -1;
+        for (int i = index * bondSlots, end = i + bondSlots; i < end; ++i) {
+            if (inline[i] == 0) {
+                if (empty < 0)
+                    empty = i;
+            }
+            else if (Bonds.idOf(inline[i]) == id) {
+                inline[i] = bond;
+                return;
+            }
+        }
+        int[] extra = overflow[index];
+        if (extra != null)
+            for (int k = 0; k < extra.length; ++k)
+                if (extra[k] != 0 && Bonds.idOf(extra[k]) == id) {
+                    extra[k] = bond;
+                    return;
+                }
+        if (empty >= 0) {
+            inline[empty] = bond;
+            return;
+        }
+        // all inline slots are full: copy the overflow array, so that readers never see it half-written
+        int[] grown;
+        if (extra == null)
+            grown = new int[bondSlots];
+        else {
+            int k = 0;
+            while (k < extra.length && extra[k] != 0)
+                ++k;
+            if (k < extra.length) {
+                extra[k] = bond;
+                return;
+            }
+            grown = Arrays.copyOf(extra, 2 * extra.length);
+        }
+        grown[extra == null ? 0 : extra.length] = bond;
+        overflow[index] = grown;
+    }
+
+    private static void remove(int[] inline, int[][] overflow, int index, int bondId) {
+        for (int i = index * bondSlots, end = i + bondSlots; i < end; ++i)
+            if (inline[i] != 0 && Bonds.idOf(inline[i]) == bondId) {
+                inline[i] = 0;
+                return;
+            }
+        int[] extra = overflow[index];
+        if (extra != null)
+            for (int k = 0; k < extra.length; ++k)
+                if (extra[k] != 0 && Bonds.idOf(extra[k]) == bondId) {
+                    extra[k] = 0;
+                    return;
+                }
+    }
+}
@@ -7,7 +7,6 @@ import java.util.List;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Vector;
@@ -331,62 +330,9 @@ public class Challenge {
         return getEnclosures(b, wallPrefixes, allowDiagonalConnections);
     }
 
+    // getEnclosures: the connected regions of non-wall cells (see Board.getEnclosureIndex)
     public static List<List<Point>> getEnclosures(Board b, Set<String> wallPrefixes, boolean allowDiagonalConnections) {
-
-        // create an array of enclosure indices
-        int size = b.size;
-        int[][] mark = new int[size][size];
-
-        // mark the walls as -1
-        for (String wallPrefix : wallPrefixes)
-            if (b.gotPrefix(wallPrefix))
-                for (Particle p : b.getParticlesByPrefix(wallPrefix))
-                    for (Point q : p.getOccupiedPoints())
-                        mark[q.x][q.y] = -1;
-
-        // create list-of-lists
-        LinkedList<List<Point>> enclosures = new LinkedList<List<Point>>();
-
-        // loop over the board, starting a breadth-first search from every unvisited cell
-        int dirs = b.neighborhoodSize();
-        int minDir = 0, dirStep = 1;
-        if (!allowDiagonalConnections) {
-            // hardwire the fact that in the MooreTopology, the diagonal directions are even-numbered
-            // TODO: make this robust to changes in the implementation of MooreTopology
-            minDir = 1;
-            dirStep = 2;
-        }
-        Stack<Point> toVisit = new Stack<Point>();
-        Point p = new Point(), n = new Point();
-        int currentMark = 0;
-        for (int x = 0; x < size; ++x)
-            for (int y = 0; y < size; ++y)
-                if (mark[x][y] == 0) {
-                    ++currentMark;
-                    LinkedList<Point> newList = new LinkedList<Point>();
-
-                    p.x = x;
-                    p.y = y;
-
-                    BreadthFirstSearch:
-                    while (true) {
-                        for (int d = minDir; d < dirs; d += dirStep) {
-                            b.getNeighbor(p, n, d);
-                            if (b.onBoard(n) && mark[n.x][n.y] == 0)
-                                toVisit.push(new Point(n));
-                        }
-                        mark[p.x][p.y] = currentMark;
-                        newList.addFirst(new Point(p));
-                        while (mark[p.x][p.y] != 0) {
-                            if (toVisit.empty())
-                                break BreadthFirstSearch;
-                            p = toVisit.pop();
-                        }
-                    }
-                    enclosures.addLast(newList);
-                }
-
-        return enclosures;
+        return b.getEnclosureIndex(wallPrefixes, allowDiagonalConnections).getEnclosures(0, 0);
     }
 
     // expect check() to be called once per turn
@@ -539,17 +485,17 @@ public class Challenge {
         public boolean check() {
             n = 0;
             total = 0;
-            for (List<Point> areaList : getEnclosures(board, wallPrefixSet, allowDiagonalConnections)) {
-                int areaSize = areaList.size();
-                if (areaSize >= minArea && (maxArea == 0 || areaSize <= maxArea)) {
-                    TreeSet<Point> area = new TreeSet<Point>(areaList);
-                    cond.setArea(area);
-                    ++total;
-                    if (cond.check()) {
-                        ++n;
-                        if (n >= count)
-                            return true;
-                    }
+            EnclosureIndex index = board.getEnclosureIndex(wallPrefixSet, allowDiagonalConnections);
+            if (index.getEnclosureCount(minArea, maxArea) < count)
+                return false; // not enough enclosures of the right size, whatever is in them
+            for (List<Point> areaList : index.getEnclosures(minArea, maxArea)) {
+                TreeSet<Point> area = new TreeSet<Point>(areaList);
+                cond.setArea(area);
+                ++total;
+                if (cond.check()) {
+                    ++n;
+                    if (n >= count)
+                        return true;
                 }
             }
             if (n > 0)
@@ -692,22 +638,33 @@ public class Challenge {
 
         // member variables set by check()
         protected int totalParticles;
-        protected Map<Particle, Set<Point>> particleLocations;
+        protected Map<Particle, Integer> particleCounts;
 
         public boolean check() {
             Set<Point> area = getArea();
             Set<Particle> particles = board.getParticlesByPrefix(particlePrefix);
+            PopulationIndex population = board.getPopulationIndex();
+            int[] cells = null;
+            Point q = new Point();
 
-            particleLocations = new TreeMap<Particle, Set<Point>>();
+            particleCounts = new TreeMap<Particle, Integer>();
             totalParticles = 0;
             for (Particle particle : particles) {
-                Set<Point> pArea = particle.getOccupiedPoints();
-
-                if (area != null)
-                    pArea.retainAll(area);
+                int count = 0;
+                if (area == null)
+                    count = population.count(particle.getId());
+                else {
+                    cells = population.copyCells(particle.getId(), cells);
+                    for (int i = 1; i <= cells[0]; ++i) {
+                        q.x = board.cellX(cells[i]);
+                        q.y = board.cellY(cells[i]);
+                        if (area.contains(q))
+                            ++count;
+                    }
+                }
 
-                particleLocations.put(particle, pArea);
-                totalParticles += pArea.size();
+                particleCounts.put(particle, count);
+                totalParticles += count;
             }
             if (totalParticles > 0)
                 feedback = "There " + (totalParticles > 1 ? "are " : "is ") + totalParticles + " so far";
@@ -734,9 +691,9 @@ public class Challenge {
         public boolean check() {
             super.check();
             entropy = 0;
-            for (Set<Point> locations : particleLocations.values()) {
-                if (locations.size() > 0) {
-                    double p = (double)locations.size() / (double)totalParticles;
+            for (int count : particleCounts.values()) {
+                if (count > 0) {
+                    double p = (double)count / (double)totalParticles;
                     entropy -= p * Math.log(p);
                 }
             }
@@ -816,13 +773,13 @@ public class Challenge {
             Point sprayPoint;
             if (areaSet != null) {
                 Vector<Point> area = new Vector<Point>(areaSet);
-                int n = (int)(Math.random() * area.size());
+                int n = board.getRandom().nextInt(area.size());
                 sprayPoint = area.elementAt(n);
             }
             else { // no parent area; spray anywhere on the board
                 sprayPoint = new Point();
-                sprayPoint.x = (int)(Math.random() * board.size);
-                sprayPoint.y = (int)(Math.random() * board.size);
+                sprayPoint.x = board.getRandom().nextInt(board.size);
+                sprayPoint.y = board.getRandom().nextInt(board.size);
             }
             boolean success = tool.spray(sprayPoint, board, renderer, oldPrefix);
             tool.refill();
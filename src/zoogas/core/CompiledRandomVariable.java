@@ -0,0 +1,67 @@
+package zoogas.core;
+
+// immutable, allocation-free sampler produced by RandomVariable.close()
+// outcomes are stored in flat arrays, ordered by cumulative weight, and sampled by binary search
+public class CompiledRandomVariable<V> {
+    // private data
+    private final double[] start; // start[i] is the cumulative weight of all outcomes before outcome i
+    private final Object[] outcome;
+    private final double totalWeight, closedWeight; // if closedWeight > totalWeight, the remaining probability mass samples a null outcome
+
+    // constructor
+    CompiledRandomVariable(double[] start, Object[] outcome, double totalWeight, double closedWeight) {
+        this.start = start;
+        this.outcome = outcome;
+        this.totalWeight = totalWeight;
+        this.closedWeight = closedWeight;
+    }
+
+    // public methods
+    public final int size() {
+        return outcome.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    public final V getOutcome(int i) {
+        return (V)outcome[i];
+    }
+
+    public final double getWeight(int i) {
+        return (i + 1 < start.length ? start[i + 1] : totalWeight) - start[i];
+    }
+
+    public final double getStart(int i) {
+        return start[i];
+    }
+
+    public final double getTotalWeight() {
+        return totalWeight;
+    }
+
+    public final double getClosedWeight() {
+        return closedWeight;
+    }
+
+    public final V sample(RandomSource random) {
+        if (outcome.length > 0) {
+            double p = random.nextDouble() * closedWeight;
+            if (p <= totalWeight)
+                return getOutcome(lastStartBelow(p));
+        }
+        return null;
+    }
+
+    // private methods
+    // index of the last outcome whose start is strictly below p (or the first outcome, if p is zero)
+    private final int lastStartBelow(double p) {
+        int lo = 0, hi = start.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (start[mid] < p)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,34 @@
+package zoogas.core;
+
+// Coord: cell coordinates packed into an int, used by the update loop, the CellSamplers and the Topologies so that sampling
+// a pair of cells allocates nothing. Points are kept for the API edges (GUI, network, rule loading).
+// A packed coordinate is (x << 16) | (y & 0xffff): two signed 16-bit fields, so cells just off the board (-1 or size) pack too.
+public final class Coord {
+    public static final int maxCoord = 32767; // largest |x| or |y| that can be packed
+
+    private Coord() {
+    }
+
+    public static int pack(int x, int y) {
+        return (x << 16) | (y & 0xffff);
+    }
+
+    public static int pack(Point p) {
+        return pack(p.x, p.y);
+    }
+
+    public static int x(int c) {
+        return c >> 16;
+    }
+
+    public static int y(int c) {
+        return (short)c;
+    }
+
+    // unpack: place the coordinates in p, and return it
+    public static Point unpack(int c, Point p) {
+        p.x = x(c);
+        p.y = y(c);
+        return p;
+    }
+}
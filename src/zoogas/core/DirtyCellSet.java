@@ -0,0 +1,51 @@
+package zoogas.core;
+
+import java.util.Arrays;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// DirtyCellSet: the set of cells written since it was last drained, as a bitmap of cell indices (see CellStore.index).
+// mark() is lock-free, so parallel Board tiles can share one set; drain() may run concurrently with marking,
+// and a cell marked during a drain is either returned by it or kept for the next one.
+public class DirtyCellSet {
+    private final AtomicLongArray words;
+
+    // constructor
+    public DirtyCellSet(int cells) {
+        words = new AtomicLongArray((cells + 63) >>> 6);
+    }
+
+    // mark a cell as written
+    public final void mark(int cell) {
+        int w = cell >>> 6;
+        long bit = 1L << cell;
+        long old;
+        do {
+            old = words.get(w);
+            if ((old & bit) != 0)
+                return;
+        } while (!words.compareAndSet(w, old, old | bit));
+    }
+
+    // drain: move the marked cells into dest (growing it if necessary), in increasing order, and clear them.
+    // dest[0] is the number of cells, dest[1..n] are the cells
+    public final int[] drain(int[] dest) {
+        if (dest == null || dest.length < 65)
+            dest = new int[65];
+        int n = 0;
+        for (int w = 0; w < words.length(); ++w) {
+            if (words.get(w) == 0)
+                continue;
+            long bits = words.getAndSet(w, 0);
+            if (n + 65 > dest.length)
+                dest = Arrays.copyOf(dest, 2 * dest.length + 64);
+            while (bits != 0) {
+                int b = Long.numberOfTrailingZeros(bits);
+                dest[++n] = (w << 6) | b;
+                bits &= bits - 1;
+            }
+        }
+        dest[0] = n;
+        return dest;
+    }
+}
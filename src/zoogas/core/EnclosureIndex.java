@@ -0,0 +1,403 @@
+package zoogas.core;
+
+import java.util.*;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// EnclosureIndex: the enclosures of a Board, i.e. the connected regions of cells that are not walls
+// (cells whose Particle prefix is one of wallPrefixes), kept up to date by Board.writeCell.
+//
+// The board is divided into square tiles of tileSize cells. Each tile labels its own connected components,
+// and records the pairs of components that touch across its east and south borders (and its corners, if diagonal connections are allowed).
+// writeCell only flips a bit and marks the tile dirty; queries relabel just the dirty tiles (and restitch the borders around them).
+// The components are joined across tiles by a union-find, whose size is the number of components, not the number of cells,
+// and which is kept between queries: each enclosure also links its components into a list, so that a query can dissolve just
+// the enclosures that touch a relabeled tile or a restitched border, and rejoin their components from the stitches around them.
+// Listing the cells of an enclosure costs time proportional to the area of the tiles it covers.
+public class EnclosureIndex {
+    public static int tileSize = 16;
+
+    // constructor (see Board.getEnclosureIndex)
+    EnclosureIndex(Board board, Set<String> wallPrefixes, boolean allowDiagonalConnections) {
+        this.board = board;
+        this.wallPrefixes = new TreeSet<String>(wallPrefixes);
+        this.allowDiagonalConnections = allowDiagonalConnections;
+        size = board.size;
+        tilesPerSide = (size + tileSize - 1) / tileSize;
+        int tiles = tilesPerSide * tilesPerSide;
+
+        wall = new AtomicLongArray((size * size + 63) >>> 6);
+        dirtyTiles = new DirtyCellSet(tiles);
+        label = new int[size * size];
+        compCount = new int[tiles];
+        compSize = new int[tiles * tileSize * tileSize];
+        parent = new int[compSize.length];
+        next = new int[compSize.length];
+        enclosureSlot = new int[compSize.length];
+        Arrays.fill(enclosureSlot, -1);
+        stitch = new int[tiles][];
+        stitchCount = new int[tiles];
+        stack = new int[tileSize * tileSize];
+    }
+
+    // data
+    private Board board;
+    private Set<String> wallPrefixes;
+    private boolean allowDiagonalConnections;
+    private int size, tilesPerSide;
+
+    // updated by writeCell
+    private AtomicLongArray wall; // bitmap of wall cells
+    private DirtyCellSet dirtyTiles; // tiles with walls added or removed since the last query
+    private volatile byte[] wallById = new byte[0]; // cached wall test for each Particle id: 0 if not yet cached, 1 if not a wall, 2 if a wall
+
+    // tile components (only touched by queries, which hold this object's lock).
+    // A component's id is tile * tileSize * tileSize + k, where k counts the components of its tile
+    private int[] label; // component id of each cell, or -1 for walls
+    private int[] compCount; // number of components in each tile
+    private int[] compSize; // number of cells in each component
+    private int[][] stitch; // pairs of component ids that touch across each tile's east/south borders (and corners)
+    private int[] stitchCount; // number of ints used in each tile's stitch array
+    private int[] stack; // scratch space for labeling a tile
+
+    // enclosures, as of the last query
+    private int[] parent; // union-find over component ids
+    private int[] next; // the components of each enclosure, as a circular list
+    private int[] enclosureRoot = new int[0], enclosureArea = new int[0]; // root component id and number of cells of each enclosure
+    private int[] enclosureSlot; // index of each root in enclosureRoot, or -1 if the component is not a root
+    private int enclosures = 0;
+    private int[] drained = null;
+    private int[] pending = new int[64]; // scratch space: components to rejoin
+    private boolean built = false;
+
+    public final Set<String> getWallPrefixes() {
+        return wallPrefixes;
+    }
+
+    public final boolean allowsDiagonalConnections() {
+        return allowDiagonalConnections;
+    }
+
+    // cellWritten: called by Board.writeCell, from any thread
+    final void cellWritten(int cell, Particle oldState, Particle newState) {
+        boolean isWall = isWall(newState);
+        if (isWall == isWall(oldState))
+            return;
+        setWall(cell, isWall);
+        dirtyTiles.mark(tileOf(cell % size, cell / size));
+    }
+
+    // fill: set the wall bits from the Board's current cells (called once, when the index is created)
+    final void fill() {
+        Point p = new Point();
+        for (p.y = 0; p.y < size; ++p.y)
+            for (p.x = 0; p.x < size; ++p.x)
+                if (isWall(board.readCell(p)))
+                    setWall(p.y * size + p.x, true);
+    }
+
+    // query methods
+    // getEnclosureCount: the number of enclosures with minArea <= area <= maxArea (maxArea = 0 for unlimited)
+    public synchronized int getEnclosureCount(int minArea, int maxArea) {
+        refresh();
+        int n = 0;
+        for (int e = 0; e < enclosures; ++e)
+            if (inRange(enclosureArea[e], minArea, maxArea))
+                ++n;
+        return n;
+    }
+
+    // getEnclosureAreas: the areas of the enclosures with minArea <= area <= maxArea (maxArea = 0 for unlimited), largest first
+    public synchronized int[] getEnclosureAreas(int minArea, int maxArea) {
+        refresh();
+        int[] areas = new int[getEnclosureCount(minArea, maxArea)];
+        int n = 0;
+        for (int e = 0; e < enclosures; ++e)
+            if (inRange(enclosureArea[e], minArea, maxArea))
+                areas[n++] = enclosureArea[e];
+        Arrays.sort(areas);
+        for (int i = 0, j = n - 1; i < j; ++i, --j) {
+            int a = areas[i];
+            areas[i] = areas[j];
+            areas[j] = a;
+        }
+        return areas;
+    }
+
+    // getEnclosures: the cells of each enclosure with minArea <= area <= maxArea (maxArea = 0 for unlimited)
+    public synchronized List<List<Point>> getEnclosures(int minArea, int maxArea) {
+        refresh();
+        HashMap<Integer, List<Point>> byRoot = new HashMap<Integer, List<Point>>();
+        for (int e = 0; e < enclosures; ++e)
+            if (inRange(enclosureArea[e], minArea, maxArea))
+                byRoot.put(enclosureRoot[e], new ArrayList<Point>(enclosureArea[e]));
+        if (byRoot.isEmpty())
+            return new ArrayList<List<Point>>();
+
+        int perTile = tileSize * tileSize;
+        for (int t = 0; t < compCount.length; ++t) {
+            boolean wanted = false;
+            for (int k = 0; k < compCount[t] && !wanted; ++k)
+                wanted = byRoot.containsKey(find(t * perTile + k));
+            if (!wanted)
+                continue;
+            int x0 = (t % tilesPerSide) * tileSize, y0 = (t / tilesPerSide) * tileSize;
+            for (int y = y0; y < Math.min(size, y0 + tileSize); ++y)
+                for (int x = x0; x < Math.min(size, x0 + tileSize); ++x) {
+                    int id = label[y * size + x];
+                    if (id >= 0) {
+                        List<Point> cells = byRoot.get(find(id));
+                        if (cells != null)
+                            cells.add(new Point(x, y));
+                    }
+                }
+        }
+        return new ArrayList<List<Point>>(byRoot.values());
+    }
+
+    // private methods
+    private static boolean inRange(int area, int minArea, int maxArea) {
+        return area >= minArea && (maxArea == 0 || area <= maxArea);
+    }
+
+    private final boolean isWall(Particle p) {
+        if (p == null)
+            return false;
+        byte[] cache = wallById;
+        int id = p.getId();
+        if (id < cache.length && cache[id] != 0)
+            return cache[id] == 2;
+        return cacheWall(p);
+    }
+
+    private synchronized boolean cacheWall(Particle p) {
+        boolean isWall = wallPrefixes.contains(p.prefix);
+        int id = p.getId();
+        if (id >= wallById.length)
+            wallById = Arrays.copyOf(wallById, Math.max(2 * wallById.length, id + 1));
+        wallById[id] = (byte)(isWall ? 2 : 1);
+        return isWall;
+    }
+
+    private final void setWall(int cell, boolean isWall) {
+        int w = cell >>> 6;
+        long bit = 1L << cell, old;
+        do {
+            old = wall.get(w);
+        } while (!wall.compareAndSet(w, old, isWall ? (old | bit) : (old & ~bit)));
+    }
+
+    private final boolean isWallCell(int x, int y) {
+        int cell = y * size + x;
+        return (wall.get(cell >>> 6) & (1L << cell)) != 0;
+    }
+
+    private final int tileOf(int x, int y) {
+        return (y / tileSize) * tilesPerSide + x / tileSize;
+    }
+
+    // refresh: relabel the dirty tiles, restitch the borders around them, and rejoin the components of the enclosures they touch
+    private void refresh() {
+        int tiles = compCount.length, perTile = tileSize * tileSize;
+        BitSet relabel = new BitSet(tiles);
+        if (!built) {
+            dirtyTiles.drain(null);
+            relabel.set(0, tiles);
+            built = true;
+        }
+        else {
+            drained = dirtyTiles.drain(drained);
+            if (drained[0] == 0)
+                return;
+            for (int i = 1; i <= drained[0]; ++i)
+                relabel.set(drained[i]);
+        }
+        BitSet restitch = new BitSet(tiles);
+        for (int t = relabel.nextSetBit(0); t >= 0; t = relabel.nextSetBit(t + 1))
+            addStitchers(t, restitch);
+
+        // dissolve the enclosures that include a component of a relabeled tile, or a stitch that is about to be recomputed
+        int n = 0;
+        for (int t = relabel.nextSetBit(0); t >= 0; t = relabel.nextSetBit(t + 1))
+            for (int k = 0; k < compCount[t]; ++k)
+                n = dissolve(find(t * perTile + k), relabel, n);
+        for (int t = restitch.nextSetBit(0); t >= 0; t = restitch.nextSetBit(t + 1))
+            for (int i = 0; i < stitchCount[t]; i += 2)
+                n = dissolve(find(stitch[t][i]), relabel, n);
+
+        // relabel and restitch
+        for (int t = relabel.nextSetBit(0); t >= 0; t = relabel.nextSetBit(t + 1)) {
+            labelTile(t);
+            for (int k = 0; k < compCount[t]; ++k)
+                n = addPending(t * perTile + k, n);
+        }
+        for (int t = restitch.nextSetBit(0); t >= 0; t = restitch.nextSetBit(t + 1))
+            stitchTile(t);
+
+        // rejoin: each pending component starts as an enclosure of its own, and is joined by the stitches of the tiles that may reference it
+        BitSet join = new BitSet(tiles);
+        for (int i = 0; i < n; ++i) {
+            int c = pending[i];
+            parent[c] = c;
+            next[c] = c;
+            addEnclosure(c);
+            addStitchers(c / perTile, join);
+        }
+        for (int t = join.nextSetBit(0); t >= 0; t = join.nextSetBit(t + 1))
+            for (int i = 0; i < stitchCount[t]; i += 2)
+                union(stitch[t][i], stitch[t][i + 1]);
+    }
+
+    // addStitchers: add a tile, and the tiles whose stitches may reference its components, to a set of tiles.
+    // Those are its west and north neighbors (whose east and south borders it lies across) and, for diagonal connections,
+    // its north-west, north-east and south-west neighbors (whose corners, or east borders' diagonals, reach into it)
+    private void addStitchers(int t, BitSet tiles) {
+        int tx = t % tilesPerSide, ty = t / tilesPerSide;
+        tiles.set(t);
+        if (tx > 0)
+            tiles.set(t - 1);
+        if (ty > 0)
+            tiles.set(t - tilesPerSide);
+        if (allowDiagonalConnections) {
+            if (tx > 0 && ty > 0)
+                tiles.set(t - tilesPerSide - 1);
+            if (tx + 1 < tilesPerSide && ty > 0)
+                tiles.set(t - tilesPerSide + 1);
+            if (tx > 0 && ty + 1 < tilesPerSide)
+                tiles.set(t + tilesPerSide - 1);
+        }
+    }
+
+    // dissolve: remove an enclosure, queueing those of its components outside the relabeled tiles to be rejoined.
+    // Does nothing if root is not the root of an enclosure (e.g. it has already been dissolved)
+    private int dissolve(int root, BitSet relabel, int n) {
+        if (enclosureSlot[root] < 0)
+            return n;
+        removeEnclosure(root);
+        int perTile = tileSize * tileSize, c = root;
+        do {
+            int following = next[c];
+            parent[c] = c;
+            next[c] = c;
+            if (!relabel.get(c / perTile))
+                n = addPending(c, n);
+            c = following;
+        } while (c != root);
+        return n;
+    }
+
+    private int addPending(int c, int n) {
+        if (n == pending.length)
+            pending = Arrays.copyOf(pending, 2 * n);
+        pending[n] = c;
+        return n + 1;
+    }
+
+    private void addEnclosure(int root) {
+        if (enclosures == enclosureRoot.length) {
+            enclosureRoot = Arrays.copyOf(enclosureRoot, 2 * enclosures + 16);
+            enclosureArea = Arrays.copyOf(enclosureArea, 2 * enclosures + 16);
+        }
+        enclosureSlot[root] = enclosures;
+        enclosureRoot[enclosures] = root;
+        enclosureArea[enclosures++] = compSize[root];
+    }
+
+    private void removeEnclosure(int root) {
+        int e = enclosureSlot[root], last = enclosureRoot[--enclosures];
+        enclosureRoot[e] = last;
+        enclosureArea[e] = enclosureArea[enclosures];
+        enclosureSlot[last] = e;
+        enclosureSlot[root] = -1;
+    }
+
+    // labelTile: find the connected components of the open cells within a tile
+    private void labelTile(int t) {
+        int x0 = (t % tilesPerSide) * tileSize, y0 = (t / tilesPerSide) * tileSize;
+        int x1 = Math.min(size, x0 + tileSize), y1 = Math.min(size, y0 + tileSize);
+        for (int y = y0; y < y1; ++y)
+            for (int x = x0; x < x1; ++x)
+                label[y * size + x] = isWallCell(x, y) ? -1 : Integer.MAX_VALUE; // MAX_VALUE marks open cells not yet labeled
+
+        int base = t * tileSize * tileSize, k = 0;
+        for (int y = y0; y < y1; ++y)
+            for (int x = x0; x < x1; ++x) {
+                if (label[y * size + x] != Integer.MAX_VALUE)
+                    continue;
+                int id = base + k++, cells = 0, top = 0;
+                label[y * size + x] = id;
+                stack[top++] = y * size + x;
+                while (top > 0) {
+                    int cell = stack[--top], cx = cell % size, cy = cell / size;
+                    ++cells;
+                    for (int dy = -1; dy <= 1; ++dy)
+                        for (int dx = -1; dx <= 1; ++dx) {
+                            if ((dx == 0 && dy == 0) || (!allowDiagonalConnections && dx != 0 && dy != 0))
+                                continue;
+                            int nx = cx + dx, ny = cy + dy;
+                            if (nx >= x0 && nx < x1 && ny >= y0 && ny < y1 && label[ny * size + nx] == Integer.MAX_VALUE) {
+                                label[ny * size + nx] = id;
+                                stack[top++] = ny * size + nx;
+                            }
+                        }
+                }
+                compSize[id] = cells;
+            }
+        compCount[t] = k;
+    }
+
+    // stitchTile: record the component pairs that touch across a tile's east and south borders (and, for diagonal connections, its corners)
+    private void stitchTile(int t) {
+        stitchCount[t] = 0;
+        int x0 = (t % tilesPerSide) * tileSize, y0 = (t / tilesPerSide) * tileSize;
+        int x1 = Math.min(size, x0 + tileSize) - 1, y1 = Math.min(size, y0 + tileSize) - 1; // last column & row
+        int d = allowDiagonalConnections ? 1 : 0;
+        if (x1 + 1 < size) // east border
+            for (int y = y0; y <= y1; ++y)
+                for (int dy = -d; dy <= d; ++dy)
+                    if (y + dy >= 0 && y + dy < size)
+                        addStitch(t, x1, y, x1 + 1, y + dy);
+        if (y1 + 1 < size) // south border (including the south-east and south-west corners, for diagonal connections)
+            for (int x = x0; x <= x1; ++x)
+                for (int dx = -d; dx <= d; ++dx)
+                    if (x + dx >= 0 && x + dx < size)
+                        addStitch(t, x, y1, x + dx, y1 + 1);
+    }
+
+    private void addStitch(int t, int x, int y, int nx, int ny) {
+        int a = label[y * size + x], b = label[ny * size + nx];
+        if (a < 0 || b < 0 || a == b)
+            return;
+        int n = stitchCount[t];
+        if (n >= 2 && stitch[t][n - 2] == a && stitch[t][n - 1] == b)
+            return; // same as the last pair (common along a border)
+        if (stitch[t] == null || n + 2 > stitch[t].length)
+            stitch[t] = stitch[t] == null ? new int[16] : Arrays.copyOf(stitch[t], 2 * stitch[t].length);
+        stitch[t][n] = a;
+        stitch[t][n + 1] = b;
+        stitchCount[t] = n + 2;
+    }
+
+    private int find(int id) {
+        while (parent[id] != id) {
+            parent[id] = parent[parent[id]];
+            id = parent[id];
+        }
+        return id;
+    }
+
+    // union: join two enclosures, splicing their lists of components together
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a == b)
+            return;
+        int root = Math.min(a, b), other = Math.max(a, b);
+        parent[other] = root;
+        enclosureArea[enclosureSlot[root]] += enclosureArea[enclosureSlot[other]];
+        removeEnclosure(other);
+        int t = next[root];
+        next[root] = next[other];
+        next[other] = t;
+    }
+}
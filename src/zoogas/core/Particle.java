@@ -21,19 +21,19 @@ public class Particle implements Comparable {
     public Color color = null;
     public double energy = 0;
     public Icon icon = null;
+    int id = 0; // dense integer id, assigned by Board.registerParticle (0 means unregistered)
 
     // the PatternSet, i.e. the authority for all transformation and color rules about this Particle
     PatternSet patternSet = null;
 
     // transformation rules
-    protected ArrayList<HashMap<Particle, RandomVariable<UpdateEvent>>> transform = null; // production rules; array is indexed by neighbor direction, Map is indexed by Particle
+    protected RuleTable[] transform = null; // production rules; array is indexed by neighbor direction, RuleTable is indexed by target particle id
     protected TransformRuleMatch[][] transformRuleMatch = null; // generators for production rules; outer array is indexed by neighbor direction, inner array is the set of partially-bound rules for that direction
     protected double[] transformRate = null; // sum of transformation regex rates, indexed by direction
     protected double totalTransformRate = 0; // sum of transformation regex rates in all directions
 
-    // reference counting
-    private Board board = null;
-    protected Set<Point> references = null;
+    // owning Board (which also keeps the population count for this Particle)
+    Board board = null;
 
     // static variables
     public static String visibleSeparatorChar = "/", visibleSpaceChar = "_";
@@ -51,16 +51,15 @@ public class Particle implements Comparable {
         this.energy = energy;
         this.board = board;
         this.patternSet = ps;
-        references = Collections.synchronizedSet(new HashSet<Point>());
 
         // init transformation rule patterns in each direction
         int N = board.neighborhoodSize();
-        transform = new ArrayList<HashMap<Particle, RandomVariable<UpdateEvent>>>(N);
+        transform = new RuleTable[N];
         transformRuleMatch = new TransformRuleMatch[N][];
         transformRate = new double[N];
 
         for (int n = 0; n < N; ++n) {
-            transform.add(new HashMap<Particle, RandomVariable<UpdateEvent>>());
+            transform[n] = new RuleTable();
             transformRuleMatch[n] = patternSet.getSourceTransformRules(name, n);
 
             transformRate[n] = 0;
@@ -73,45 +72,13 @@ public class Particle implements Comparable {
     }
 
     // methods
-    // reference counting
-    public int getReferenceCount() {
-        return references.size();
-    }
-
-    public int addReference(Point p) {
-        /*if(references.containsKey(p)) {
-            int num = references.get(p) + 1;
-            if(num == 0)
-                references.remove(p);
-            else
-                references.put(p, num);
-        }
-        else
-            references.put(p, 1);*/
-        references.add(p);
-        return getReferenceCount();
-    }
-
-    public int removeReference(Point p) {
-        /*try {
-            int num = references.containsKey(p) ? references.get(p) - 1 : -1;
-            if(num == 0)
-                references.remove(p);
-            else
-                references.put(p, num);
-            return getReferenceCount();
-        }
-        catch(Exception e) {
-            e.printStackTrace();
-            System.err.println(name);
-            return 0;
-        }*/
-        references.remove(p);
-        return getReferenceCount();
+    public final int getId() {
+        return id;
     }
 
-    public Set<Point> getOccupiedPoints() {
-        return new TreeSet<Point>(references);
+    // reference counting
+    public int getReferenceCount() {
+        return board.getPopulation(this);
     }
 
     // part of name visible to player
@@ -140,8 +107,8 @@ public class Particle implements Comparable {
     }
 
     // helper to sample a new direction
-    public final int sampleDir() {
-        double p = Math.random() * totalTransformRate;
+    public final int sampleDir(RandomSource random) {
+        double p = random.nextDouble() * totalTransformRate;
         int d = transformRate.length - 1;
         for (; d >= 0 && p > transformRate[d]; --d)
             p -= transformRate[d];
@@ -150,27 +117,23 @@ public class Particle implements Comparable {
 
     // helper to sample a new (source,target) pair
     // returns null if no rule found
-    public final UpdateEvent samplePair(int dir, Particle oldTarget) {
-        RandomVariable<UpdateEvent> rv = null;
-        if (transform.get(dir).containsKey(oldTarget)) {
-            rv = transform.get(dir).get(oldTarget);
-        }
-        else {
-            // if no RV, look for rule generator(s) that match this neighbor, and use them to create a set of rules
-            if (patternSet != null) {
-                rv = compileTransformRules(oldTarget, dir);
-                transform.get(dir).put(oldTarget, rv);
-            }
-        }
+    public final UpdateEvent samplePair(int dir, Particle oldTarget, RandomSource random) {
+        CompiledRandomVariable<UpdateEvent> rv = transform[dir].get(oldTarget.id);
+        // if no RV, ask the RuleCompiler to look for rule generator(s) that match this neighbor, and use them to create a set of rules
+        // (depending on its compile budget, this may return null until the rules are ready)
+        if (rv != null)
+            board.getRuleTableCache().recordHit();
+        else if (patternSet != null)
+            rv = board.getRuleCompiler().compile(this, oldTarget, dir);
         // have we got an RV?
         if (rv != null)
-            return rv.sample();
+            return rv.sample(random);
         // no RV; return null
         return null;
     }
 
     // method to compile transformation rules for a new target Particle
-    RandomVariable<UpdateEvent> compileTransformRules(Particle target, int dir) {
+    CompiledRandomVariable<UpdateEvent> compileTransformRules(Particle target, int dir) {
         RandomVariable<UpdateEvent> rv = new RandomVariable<UpdateEvent>();
         for (int n = 0; n < transformRuleMatch[dir].length; ++n) {
 
@@ -203,24 +166,22 @@ public class Particle implements Comparable {
             }
             rm.unbindSourceAndTarget();
         }
-        rv.close();
-        return rv;
+        return rv.close();
     }
 
     // helpers to count number of compiled transformation rules
     public int transformationRules() {
         int r = 0;
-        for (HashMap<Particle, RandomVariable<UpdateEvent>> map : transform)
-            r += map.size();
+        for (RuleTable table : transform)
+            r += table.size();
         return r;
     }
 
     // helper to count number of compiled transformation rule outcomes
     public int outcomes() {
         int o = 0;
-        for (int d = 0; d < transform.size(); ++d)
-            for (RandomVariable<UpdateEvent> rv : transform.get(d).values())
-                o += rv.size();
+        for (RuleTable table : transform)
+            o += table.outcomes();
         return o;
     }
 
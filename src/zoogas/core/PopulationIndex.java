@@ -0,0 +1,194 @@
+package zoogas.core;
+
+import java.util.Arrays;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// PopulationIndex: incremental index of the cells occupied by each Particle, keyed by particle id.
+// The counts are one global array indexed by id, so count() is O(1); it grows in fixed-size chunks, so that the tiles updated
+// in parallel can update it atomically without an increment ever being lost to a copy.
+// The lists of occupied cells are split into shards (one per Board tile), so that tiles updated in parallel never write the same list.
+// A shard holds lists only for the particles currently in its tile, in a small open-addressing table keyed by id,
+// so its size is bounded by the tile's cells rather than by the largest particle id.
+// Each cell remembers its slot in its particle's list, so that Board.writeCell can move a cell between lists in O(1) without allocating.
+// Each shard must only be written by one thread at a time (Board holds the tile lock).
+// Readers on other threads (network, GUI) may see a slightly stale population, but never an out-of-range cell.
+public class PopulationIndex {
+    static final int chunkBits = 10, chunkSize = 1 << chunkBits;
+
+    // Shard: the cell lists of one tile, in a linear-probing table keyed by particle id
+    static class Shard {
+        int mask = 15, shift = 28; // table size - 1, and the shift that maps a hash to an entry
+        int[] id = new int[16]; // particle id of each entry; 0 if the entry is empty
+        int[][] cells = new int[16][];
+        int[] count = new int[16];
+        int entries = 0;
+        int[][] spare = new int[4][]; // lists of particles that have left the tile, for reuse
+        int spares = 0;
+
+        // find: the entry for a particle id, or -1 if it has no cells in this tile
+        final int find(int pid) {
+            int[] ids = id; // read once, as other threads may read while the table is rehashed
+            int m = ids.length - 1;
+            for (int e = (pid * 0x9e3779b9) >>> Integer.numberOfLeadingZeros(m), probes = 0; probes <= m && ids[e] != 0; e = (e + 1) & m, ++probes)
+                if (ids[e] == pid)
+                    return e;
+            return -1;
+        }
+
+        private final int home(int pid) {
+            return (pid * 0x9e3779b9) >>> shift;
+        }
+
+        // insert: a new, empty entry for a particle id (which must not already have one)
+        final int insert(int pid) {
+            if (2 * (entries + 1) > id.length)
+                rehash(2 * id.length);
+            int e = home(pid);
+            while (id[e] != 0)
+                e = (e + 1) & mask;
+            id[e] = pid;
+            cells[e] = spares > 0 ? spare[--spares] : new int[8];
+            count[e] = 0;
+            ++entries;
+            return e;
+        }
+
+        // delete: remove an entry whose list is empty, shifting later entries of its probe run back into the gap
+        final void delete(int e) {
+            if (spares == spare.length)
+                spare = Arrays.copyOf(spare, 2 * spares);
+            spare[spares++] = cells[e];
+            for (int j = (e + 1) & mask; id[j] != 0; j = (j + 1) & mask)
+                if (((j - home(id[j])) & mask) >= ((j - e) & mask)) {
+                    id[e] = id[j];
+                    cells[e] = cells[j];
+                    count[e] = count[j];
+                    e = j;
+                }
+            id[e] = 0;
+            cells[e] = null;
+            count[e] = 0;
+            --entries;
+        }
+
+        private final void rehash(int size) {
+            int[] oldId = id, oldCount = count;
+            int[][] oldCells = cells;
+            mask = size - 1;
+            shift = Integer.numberOfLeadingZeros(mask);
+            int[] newId = new int[size], newCount = new int[size];
+            int[][] newCells = new int[size][];
+            for (int i = 0; i < oldId.length; ++i)
+                if (oldId[i] != 0) {
+                    int e = home(oldId[i]);
+                    while (newId[e] != 0)
+                        e = (e + 1) & mask;
+                    newId[e] = oldId[i];
+                    newCells[e] = oldCells[i];
+                    newCount[e] = oldCount[i];
+                }
+            cells = newCells;
+            count = newCount;
+            id = newId;
+        }
+    }
+
+    private final Shard[] shards;
+    private final int[] slotOfCell; // position of each cell in the list of the particle that occupies it
+    private volatile AtomicIntegerArray[] countChunk = new AtomicIntegerArray[16]; // number of cells occupied by each particle id, in chunks of chunkSize
+
+    // constructor
+    public PopulationIndex(int cells, int shards) {
+        slotOfCell = new int[cells];
+        this.shards = new Shard[shards];
+        for (int s = 0; s < shards; ++s)
+            this.shards[s] = new Shard();
+    }
+
+    // number of cells occupied by the particle with the given id
+    public final int count(int id) {
+        AtomicIntegerArray[] chunks = countChunk;
+        int c = id >>> chunkBits;
+        AtomicIntegerArray chunk = c < chunks.length ? chunks[c] : null;
+        return chunk == null ? 0 : chunk.get(id & (chunkSize - 1));
+    }
+
+    // snapshot the occupied cells into dest (growing it if necessary): dest[0] is the number of cells, dest[1..n] are the cells
+    public final int[] copyCells(int id, int[] dest) {
+        int n = count(id);
+        if (dest == null || dest.length < n + 1)
+            dest = new int[n + 1];
+        int copied = 0;
+        for (Shard shard : shards) {
+            int e = shard.find(id);
+            if (e < 0)
+                continue;
+            int[][] lists = shard.cells;
+            int[] counts = shard.count;
+            int[] cells = e < lists.length && e < counts.length ? lists[e] : null;
+            if (cells != null)
+                for (int i = 0, m = Math.min(counts[e], cells.length); i < m && copied + 1 < dest.length; ++i)
+                    dest[++copied] = cells[i];
+        }
+        dest[0] = copied;
+        return dest;
+    }
+
+    // add a cell to a particle's population
+    public final void add(int shardIndex, int id, int cell) {
+        Shard shard = shards[shardIndex];
+        int e = shard.find(id);
+        if (e < 0)
+            e = shard.insert(id);
+        int[] cells = shard.cells[e];
+        int n = shard.count[e];
+        if (n == cells.length) {
+            cells = Arrays.copyOf(cells, 2 * n);
+            shard.cells[e] = cells;
+        }
+        cells[n] = cell;
+        slotOfCell[cell] = n;
+        shard.count[e] = n + 1;
+        countChunk(id).incrementAndGet(id & (chunkSize - 1));
+    }
+
+    // remove a cell from a particle's population, by moving the last cell in the list into its slot
+    public final void remove(int shardIndex, int id, int cell) {
+        Shard shard = shards[shardIndex];
+        int e = shard.find(id);
+        int[] cells = shard.cells[e];
+        int last = shard.count[e] - 1;
+        int slot = slotOfCell[cell];
+        int moved = cells[last];
+        cells[slot] = moved;
+        slotOfCell[moved] = slot;
+        if (last == 0)
+            shard.delete(e);
+        else
+            shard.count[e] = last;
+        countChunk(id).decrementAndGet(id & (chunkSize - 1));
+    }
+
+    // countChunk: the chunk of the count array holding an id, adding it if necessary
+    private final AtomicIntegerArray countChunk(int id) {
+        AtomicIntegerArray[] chunks = countChunk;
+        int c = id >>> chunkBits;
+        if (c < chunks.length && chunks[c] != null)
+            return chunks[c];
+        return addCountChunk(c);
+    }
+
+    private synchronized final AtomicIntegerArray addCountChunk(int c) {
+        AtomicIntegerArray[] chunks = countChunk;
+        if (c < chunks.length && chunks[c] != null)
+            return chunks[c];
+        if (c >= chunks.length)
+            chunks = Arrays.copyOf(chunks, Math.max(c + 1, 2 * chunks.length));
+        else
+            chunks = chunks.clone();
+        chunks[c] = new AtomicIntegerArray(chunkSize);
+        countChunk = chunks;
+        return chunks[c];
+    }
+}
@@ -1,6 +1,8 @@
 package zoogas.core;
 
-public class QuadTree {
+// QuadTree: CellSampler for square boards whose size is a power of 2.
+// Each level of the tree stores the summed rates of a 2^k * 2^k grid of quads; sampling draws one random number per level.
+public class QuadTree implements CellSampler {
     // data
     private double[] quadRate = null;
     private int K = 0; // K = log_2(size)
@@ -24,25 +26,25 @@ public class QuadTree {
     }
 
     /**
-     *Updates the quad tree with the transform rate of the particle in this point
-     * Note: p is edited in this call!
-     * @param p
+     *Updates the quad tree with the transform rate of the particle in cell (x,y)
+     * @param x
+     * @param y
      * @param val
      */
-    public void updateQuadTree(Point p, double val) {
-        double oldVal = quadRate[quadNodeIndex(p, K)];
+    public void updateQuadTree(int x, int y, double val) {
+        double oldVal = quadRate[quadNodeIndex(x, y, K)];
         double diff = val - oldVal;
         for (int lev = 0; lev <= K; ++lev) {
-            int n = quadNodeIndex(p, lev);
+            int n = quadNodeIndex(x, y, lev);
             quadRate[n] = Math.max(quadRate[n] + diff, 0);
         }
     }
 
-    public void sampleQuadLeaf(Point p) {
-        int node = 0;
-        p.x = p.y = 0;
+    // sampleQuadLeaf: the packed coordinates (see Coord) of a random cell
+    public int sampleQuadLeaf(RandomSource random) {
+        int node = 0, x = 0, y = 0;
         for (int lev = 0; lev < K; ++lev) {
-            double prob = Math.random() * quadRate[node];
+            double prob = random.nextDouble() * quadRate[node];
             int whichChild = 0, childNode = -1;
             while (true) {
                 childNode = quadChildIndex(node, lev, whichChild);
@@ -52,21 +54,35 @@ public class QuadTree {
                 ++whichChild;
             }
             node = childNode;
-            p.y = (p.y << 1) | (whichChild >> 1);
-            p.x = (p.x << 1) | (whichChild & 1);
+            y = (y << 1) | (whichChild >> 1);
+            x = (x << 1) | (whichChild & 1);
         }
+        return Coord.pack(x, y);
     }
 
     public double topQuadRate() {
         return quadRate[0];
     }
 
+    // CellSampler methods
+    public void setRate(int x, int y, double rate) {
+        updateQuadTree(x, y, rate);
+    }
+
+    public double totalRate() {
+        return topQuadRate();
+    }
+
+    public int sample(RandomSource random) {
+        return sampleQuadLeaf(random);
+    }
+
     // private methods
     // quad-tree indexing
-    private int quadNodeIndex(Point p, int level) {
+    private int quadNodeIndex(int x, int y, int level) {
         int nodesBeforeLevel = ((1 << (level << 1)) - 1) / 3;
-        int msbY = p.y >> (K - level);
-        int msbX = p.x >> (K - level);
+        int msbY = y >> (K - level);
+        int msbX = x >> (K - level);
         return msbX + (msbY << level) + nodesBeforeLevel;
     }
 
@@ -0,0 +1,15 @@
+package zoogas.core;
+
+// RandomSource: a stream of random numbers for the update engine.
+// Implementations are not thread-safe: each thread (or Board tile) draws from its own stream, made by split(),
+// so that there is no shared state to contend for, and a run is reproducible from the seed of the root stream.
+public interface RandomSource {
+    // uniform double in [0,1)
+    public double nextDouble();
+
+    // uniform int in [0,n)
+    public int nextInt(int n);
+
+    // split: returns a new, statistically independent stream, and advances this one
+    public RandomSource split();
+}
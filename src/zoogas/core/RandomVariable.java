@@ -8,6 +8,7 @@ public class RandomVariable<V> {
     private SortedMap<Double, V> cumprob2obj = new TreeMap<Double, V>();
     private Map<V, Double> obj2prob = new HashMap<V, Double>();
     private double totalWeight = 0, closedWeight = 0;
+    private CompiledRandomVariable<V> compiled = null; // built by close(); discarded by add()
 
     // private methods
     private final void rebuild() {
@@ -29,6 +30,7 @@ public class RandomVariable<V> {
     }
 
     public final void add(V o, double p) {
+        compiled = null;
         if (obj2prob.containsKey(o)) {
             if (p > 0)
                 obj2prob.put(o, new Double(p));
@@ -42,16 +44,29 @@ public class RandomVariable<V> {
         }
     }
 
-    public final void close() {
+    // close() fixes the total weight (with any shortfall below 1 going to a null outcome) and returns an immutable sampler
+    public final CompiledRandomVariable<V> close() {
         closedWeight = totalWeight < 1 ? 1 : totalWeight;
+        return compile();
     }
 
-    public final V sample() {
-        if (size() > 0) {
-            double p = Math.random() * closedWeight;
-            if (p <= totalWeight)
-                return cumprob2obj.get(cumprob2obj.headMap(new Double(p)).lastKey());
+    public final V sample(RandomSource random) {
+        return compile().sample(random);
+    }
+
+    // private methods
+    private final CompiledRandomVariable<V> compile() {
+        if (compiled == null) {
+            int n = cumprob2obj.size(), i = 0;
+            double[] start = new double[n];
+            Object[] outcome = new Object[n];
+            for (Map.Entry<Double, V> keyval : cumprob2obj.entrySet()) {
+                start[i] = keyval.getKey();
+                outcome[i] = keyval.getValue();
+                ++i;
+            }
+            compiled = new CompiledRandomVariable<V>(start, outcome, totalWeight, closedWeight);
         }
-        return null;
+        return compiled;
     }
 }
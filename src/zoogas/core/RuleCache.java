@@ -0,0 +1,287 @@
+package zoogas.core;
+
+import java.util.*;
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import zoogas.core.rules.PatternSet;
+import zoogas.core.rules.TransformRulePattern;
+import zoogas.core.rules.UpdateEvent;
+
+// RuleCache: on-disk cache of compiled transformation rules, so that warm starts skip the regex binding in Particle.compileTransformRules.
+// There is one cache file per PatternSet, named after the hash of its rule text and topology (so editing the rules invalidates the cache).
+// The file is memory-mapped at startup and indexed by (source name, target name, direction);
+// rules compiled during the run are appended in memory (up to maxBytes of them), and written back by save().
+// save() compacts the file: records used or compiled in this run come first, then the others, most recently used first;
+// records unused for maxAge runs are dropped, and so is anything that would take the file past maxBytes.
+//
+// File format (big-endian):
+//   int magic, int recordCount
+//   each record: int length (of the rest of the record),
+//                string sourceName, string targetName, byte dir, byte age (runs since the record was last used),
+//                double totalWeight, double closedWeight, int outcomes,
+//                each outcome: double start, string newSourceName, string newTargetName, string verb, int transformRuleIndex
+//   strings are an int byte-length (-1 for null) followed by UTF-8 bytes
+public class RuleCache {
+    public static String defaultCacheDir = "rulecache";
+    public static int maxBytes = 4 << 20; // size limit for the cache file, and for the records compiled in one run
+    public static int maxAge = 8; // records unused for this many runs are dropped
+    static final int magic = 0x5a4f4f32; // "ZOO2"
+
+    // Record: a record in the mapped file
+    private static class Record {
+        int offset, length; // of the record body (the compiled rules) in mapped
+        int age; // runs since the record was last used, as loaded
+        boolean used = false; // true if the record has been looked up in this run
+    }
+
+    // data
+    private Board board = null;
+    private PatternSet patternSet = null;
+    private File file = null;
+    private ByteBuffer mapped = null; // records loaded at startup
+    private LinkedHashMap<String, Record> mappedRecord = new LinkedHashMap<String, Record>(); // key -> record in mapped, in file order
+    private LinkedHashMap<String, byte[]> added = new LinkedHashMap<String, byte[]>(); // records compiled during this run
+    private long addedBytes = 0; // total size of the added records
+
+    // metrics
+    private int hits = 0, misses = 0, unstored = 0;
+
+    // constructor: maps the cache file for this PatternSet, if there is one
+    public RuleCache(String dir, Board board, PatternSet patternSet) {
+        this.board = board;
+        this.patternSet = patternSet;
+        file = new File(dir, patternSet.getRuleHash() + ".rules");
+        if (file.exists())
+            load();
+    }
+
+    // lookup: returns the cached rules for (source, target, dir), or null if they are not in the cache.
+    // may create new Particles, so the caller must hold the PatternSet lock
+    public synchronized CompiledRandomVariable<UpdateEvent> lookup(Particle source, Particle target, int dir) {
+        String key = key(source.name, target.name, dir);
+        ByteBuffer buf = null;
+        Record r = mappedRecord.get(key);
+        if (r != null) {
+            buf = mapped.duplicate();
+            buf.position(r.offset);
+            r.used = true;
+        }
+        else if (added.containsKey(key))
+            buf = ByteBuffer.wrap(added.get(key));
+
+        CompiledRandomVariable<UpdateEvent> rv = null;
+        if (buf != null) {
+            try {
+                rv = decode(buf, source, target);
+            }
+            catch (RuntimeException e) {
+                System.err.println("RuleCache: ignoring bad record for " + key + " in " + file);
+                e.printStackTrace();
+            }
+        }
+        if (rv == null)
+            ++misses;
+        else
+            ++hits;
+        return rv;
+    }
+
+    // store: adds a newly compiled set of rules to the cache, unless maxBytes of rules have already been added in this run
+    public synchronized void store(Particle source, Particle target, int dir, CompiledRandomVariable<UpdateEvent> rv) {
+        String key = key(source.name, target.name, dir);
+        if (mappedRecord.containsKey(key) || added.containsKey(key))
+            return;
+        if (addedBytes >= maxBytes) {
+            ++unstored;
+            return;
+        }
+        try {
+            byte[] b = encode(rv);
+            added.put(key, b);
+            addedBytes += b.length;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // save: writes a compacted cache file (see above), then swaps it into place. Does nothing if the cache was not used in this run
+    public synchronized void save() {
+        if (added.size() == 0 && hits == 0)
+            return;
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(records);
+            int n = 0;
+            for (Map.Entry<String, Record> kv : mappedRecord.entrySet())
+                if (kv.getValue().used && writeRecord(out, kv.getKey(), 0, mappedBody(kv.getValue())))
+                    ++n;
+            for (Map.Entry<String, byte[]> kv : added.entrySet())
+                if (writeRecord(out, kv.getKey(), 0, kv.getValue()))
+                    ++n;
+            ArrayList<Map.Entry<String, Record>> unused = new ArrayList<Map.Entry<String, Record>>();
+            for (Map.Entry<String, Record> kv : mappedRecord.entrySet())
+                if (!kv.getValue().used && kv.getValue().age + 1 < maxAge)
+                    unused.add(kv);
+            Collections.sort(unused, new Comparator<Map.Entry<String, Record>>() {
+                    public int compare(Map.Entry<String, Record> a, Map.Entry<String, Record> b) {
+                        return a.getValue().age - b.getValue().age;
+                    }
+                });
+            for (Map.Entry<String, Record> kv : unused)
+                if (writeRecord(out, kv.getKey(), kv.getValue().age + 1, mappedBody(kv.getValue())))
+                    ++n;
+            out.close();
+
+            file.getParentFile().mkdirs();
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream f = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            f.writeInt(magic);
+            f.writeInt(n);
+            records.writeTo(f);
+            f.close();
+            if (!tmp.renameTo(file))
+                System.err.println("RuleCache: could not rename " + tmp + " to " + file);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // metrics
+    public synchronized String statsString() {
+        return hits + " hits, " + misses + " misses, " + (mappedRecord.size() + added.size()) + " records"
+            + (unstored > 0 ? " (" + unstored + " not stored, over " + (maxBytes >> 20) + " MB)" : "");
+    }
+
+    // private methods
+    private static String key(String sourceName, String targetName, int dir) {
+        return sourceName + " " + targetName + " " + dir; // particle names never contain spaces
+    }
+
+    private final void load() {
+        try {
+            FileInputStream in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in.close(); // the mapping stays valid after the channel is closed
+
+            if (mapped.getInt() != magic) {
+                System.err.println("RuleCache: replacing cache file " + file + ", which is from an older version");
+                mapped = null;
+                return;
+            }
+            int records = mapped.getInt();
+            for (int n = 0; n < records; ++n) {
+                int length = mapped.getInt();
+                int end = mapped.position() + length;
+                String sourceName = readString(mapped);
+                String targetName = readString(mapped);
+                int dir = mapped.get();
+                Record r = new Record();
+                r.age = mapped.get() & 0xff;
+                r.offset = mapped.position();
+                r.length = end - r.offset;
+                mappedRecord.put(key(sourceName, targetName, dir), r);
+                mapped.position(end);
+            }
+        }
+        catch (Exception e) {
+            System.err.println("RuleCache: ignoring unreadable cache file " + file);
+            e.printStackTrace();
+            mapped = null;
+            mappedRecord.clear();
+        }
+    }
+
+    private final byte[] mappedBody(Record r) {
+        byte[] b = new byte[r.length];
+        ByteBuffer buf = mapped.duplicate();
+        buf.position(r.offset);
+        buf.get(b);
+        return b;
+    }
+
+    // writeRecord: append a record to out, returning false (and writing nothing) if it would take the file past maxBytes
+    private static boolean writeRecord(DataOutputStream out, String key, int age, byte[] body) throws IOException {
+        String[] k = key.split(" ");
+        byte[] sourceName = k[0].getBytes("UTF-8"), targetName = k[1].getBytes("UTF-8");
+        int length = 4 + sourceName.length + 4 + targetName.length + 1 + 1 + body.length;
+        if (8 + out.size() + 4 + length > maxBytes)
+            return false;
+        out.writeInt(length);
+        writeString(out, k[0]);
+        writeString(out, k[1]);
+        out.writeByte(Integer.parseInt(k[2]));
+        out.writeByte(Math.min(age, 255));
+        out.write(body);
+        return true;
+    }
+
+    private final CompiledRandomVariable<UpdateEvent> decode(ByteBuffer buf, Particle source, Particle target) {
+        double totalWeight = buf.getDouble();
+        double closedWeight = buf.getDouble();
+        int n = buf.getInt();
+        double[] start = new double[n];
+        Object[] outcome = new Object[n];
+        for (int i = 0; i < n; ++i) {
+            start[i] = buf.getDouble();
+            String cName = readString(buf);
+            String dName = readString(buf);
+            String verb = readString(buf);
+            TransformRulePattern trp = patternSet.getTransformRulePattern(buf.getInt());
+            if (trp == null)
+                throw new RuntimeException("transformation rule index out of range");
+            Particle newSource = patternSet.getOrCreateParticle(cName, board);
+            Particle newTarget = patternSet.getOrCreateParticle(dName, board);
+            outcome[i] = new UpdateEvent(source, target, newSource, newTarget, verb, trp);
+        }
+        return new CompiledRandomVariable<UpdateEvent>(start, outcome, totalWeight, closedWeight);
+    }
+
+    private final byte[] encode(CompiledRandomVariable<UpdateEvent> rv) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeDouble(rv.getTotalWeight());
+        out.writeDouble(rv.getClosedWeight());
+        out.writeInt(rv.size());
+        for (int i = 0; i < rv.size(); ++i) {
+            UpdateEvent e = rv.getOutcome(i);
+            out.writeDouble(rv.getStart(i));
+            writeString(out, e.getSource().name);
+            writeString(out, e.getTarget().name);
+            writeString(out, e.getVerb());
+            out.writeInt(patternSet.getTransformRuleIndex(e.getPattern()));
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null)
+            out.writeInt(-1);
+        else {
+            byte[] b = s.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0)
+            return null;
+        byte[] b = new byte[length];
+        buf.get(b);
+        try {
+            return new String(b, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package zoogas.core;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zoogas.core.rules.UpdateEvent;
+
+// RuleCompiler: compiles transformation rules for (source, target, direction) triples on background worker threads,
+// so that a rule miss does not stall the Board while regexes are bound and new Particles are created.
+// Compilation binds the PatternSet's shared TransformRuleMatch objects, so compiles are serialized on the PatternSet lock;
+// the worker threads only take this work off the Board's update thread.
+// Compiled rules are published straight into the source Particle's RuleTable, which is safe for concurrent readers,
+// and admitted to the Board's RuleTableCache, which may evict other rules to stay within its memory budget.
+public class RuleCompiler {
+    // compileBudget (in milliseconds) controls what happens on a miss:
+    //  compileBudget < 0  : compile inline, on the caller's thread (the old behavior)
+    //  compileBudget == 0 : queue the compile and treat the event as a no-op
+    //  compileBudget > 0  : queue the compile and wait up to compileBudget for it to finish
+    public static long defaultCompileBudget = 0;
+    private volatile long compileBudget = defaultCompileBudget;
+
+    // worker threads
+    private ExecutorService workers = null;
+
+    // on-disk cache of compiled rules (may be null)
+    private volatile RuleCache ruleCache = null;
+
+    // compiles that have been queued but not yet published, keyed by (source id, target id, direction)
+    private ConcurrentHashMap<Long, FutureTask<CompiledRandomVariable<UpdateEvent>>> pending = new ConcurrentHashMap<Long, FutureTask<CompiledRandomVariable<UpdateEvent>>>();
+
+    // metrics
+    private AtomicLong compiled = new AtomicLong(); // number of rule sets compiled
+    private AtomicLong totalLatency = new AtomicLong(); // summed time from miss to publication, in nanoseconds
+    private AtomicLong maxLatency = new AtomicLong(); // longest time from miss to publication, in nanoseconds
+    private AtomicLong misses = new AtomicLong(); // events dropped because their rules were not yet compiled
+    private AtomicLong waits = new AtomicLong(); // events that blocked on a compile
+    private AtomicLong timeouts = new AtomicLong(); // blocked events that ran out of budget
+
+    // constructor
+    public RuleCompiler(int threads) {
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RuleCompiler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    // configuration
+    public final void setCompileBudget(long millis) {
+        compileBudget = millis;
+    }
+
+    public final long getCompileBudget() {
+        return compileBudget;
+    }
+
+    public final void setRuleCache(RuleCache cache) {
+        ruleCache = cache;
+    }
+
+    public final RuleCache getRuleCache() {
+        return ruleCache;
+    }
+
+    // compile: called by Particle.samplePair on a RuleTable miss.
+    // returns the compiled rules, or null if they are not ready within the budget
+    public final CompiledRandomVariable<UpdateEvent> compile(final Particle source, final Particle target, final int dir) {
+        long budget = compileBudget;
+        final long start = System.nanoTime();
+        if (budget < 0)
+            return compileAndPublish(source, target, dir, start);
+
+        final Long key = Long.valueOf(((long)source.id << 36) | ((long)target.id << 4) | dir);
+        FutureTask<CompiledRandomVariable<UpdateEvent>> task = pending.get(key);
+        if (task == null) {
+            FutureTask<CompiledRandomVariable<UpdateEvent>> newTask = new FutureTask<CompiledRandomVariable<UpdateEvent>>(new Callable<CompiledRandomVariable<UpdateEvent>>() {
+                    public CompiledRandomVariable<UpdateEvent> call() {
+                        try {
+                            return compileAndPublish(source, target, dir, start);
+                        }
+                        finally {
+                            pending.remove(key);
+                        }
+                    }
+                });
+            task = pending.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                workers.execute(task);
+            }
+        }
+
+        if (budget == 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        waits.incrementAndGet();
+        try {
+            return task.get(budget, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+        }
+        catch (Exception e) {
+            System.err.println("While compiling rules for " + source.name + " " + target.name + " (direction " + dir + "):");
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // compileAndPublish: fetch the rules from the RuleCache or compile them (unless another thread got there first),
+    // store them in the source's RuleTable, and record the latency
+    private final CompiledRandomVariable<UpdateEvent> compileAndPublish(Particle source, Particle target, int dir, long start) {
+        CompiledRandomVariable<UpdateEvent> rv;
+        synchronized (source.patternSet) {
+            rv = source.transform[dir].get(target.id);
+            if (rv != null)
+                return rv;
+            RuleCache cache = ruleCache;
+            if (cache != null)
+                rv = cache.lookup(source, target, dir);
+            if (rv == null) {
+                rv = source.compileTransformRules(target, dir);
+                if (cache != null)
+                    cache.store(source, target, dir, rv);
+            }
+            RuleTable table = source.transform[dir];
+            source.board.getRuleTableCache().admit(table, table.put(target.id, rv), source);
+        }
+
+        long latency = System.nanoTime() - start;
+        compiled.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        for (long max = maxLatency.get(); latency > max && !maxLatency.compareAndSet(max, latency); max = maxLatency.get())
+            ;
+        return rv;
+    }
+
+    // metrics
+    public final int getQueueDepth() {
+        return pending.size();
+    }
+
+    public final long getCompiledCount() {
+        return compiled.get();
+    }
+
+    public final double getMeanLatencyMillis() {
+        long n = compiled.get();
+        return n > 0 ? totalLatency.get() / (1e6 * n) : 0;
+    }
+
+    public final double getMaxLatencyMillis() {
+        return maxLatency.get() / 1e6;
+    }
+
+    public final long getMissCount() {
+        return misses.get();
+    }
+
+    public final long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public final String statsString() {
+        return compiled.get() + " compiled (" + String.format("%.2f", getMeanLatencyMillis()) + "ms mean, " + String.format("%.2f", getMaxLatencyMillis()) + "ms max), queue " + getQueueDepth() + ", "
+            + misses.get() + " misses, " + waits.get() + " waits, " + timeouts.get() + " timeouts";
+    }
+}
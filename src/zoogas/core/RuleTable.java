@@ -0,0 +1,118 @@
+package zoogas.core;
+
+import java.util.*;
+
+import zoogas.core.rules.UpdateEvent;
+
+// RuleTable: compiled transformation rules for one (source Particle, direction), keyed by target particle id.
+// Open-addressing hash table with linear probing, so a lookup is an integer hash and (usually) one array index.
+// Entries are immutable (apart from the RuleTableCache's reference bit) and the table array is volatile, so lookups need no locking;
+// insertions are synchronized, and a resize or removal builds a new array and publishes it in one write.
+public class RuleTable {
+    // table entry
+    static class Entry {
+        final int targetId;
+        final CompiledRandomVariable<UpdateEvent> rules;
+        boolean referenced = false; // set by get, cleared by the RuleTableCache's CLOCK hand (races only blur the recency estimate)
+
+        Entry(int targetId, CompiledRandomVariable<UpdateEvent> rules) {
+            this.targetId = targetId;
+            this.rules = rules;
+        }
+    }
+
+    // data
+    private volatile Entry[] table = new Entry[8]; // length is always a power of 2
+    private int size = 0;
+
+    // public methods
+    // get: returns the compiled rules for the given target id, or null if they have not been compiled
+    public final CompiledRandomVariable<UpdateEvent> get(int targetId) {
+        Entry[] t = table;
+        int mask = t.length - 1;
+        for (int i = hash(targetId) & mask; ; i = (i + 1) & mask) {
+            Entry e = t[i];
+            if (e == null)
+                return null;
+            if (e.targetId == targetId) {
+                if (!e.referenced)
+                    e.referenced = true;
+                return e.rules;
+            }
+        }
+    }
+
+    // put: adds (or replaces) the compiled rules for the given target id, and returns the new entry
+    public synchronized final Entry put(int targetId, CompiledRandomVariable<UpdateEvent> rules) {
+        Entry[] t = table;
+        if (2 * (size + 1) > t.length)
+            t = grow(t);
+        int i = slot(t, targetId);
+        if (t[i] == null)
+            ++size;
+        Entry e = new Entry(targetId, rules);
+        t[i] = e;
+        table = t;
+        return e;
+    }
+
+    // remove: removes the given entry, if it is still in the table.
+    // Removing from a linear-probing table in place could hide other entries from concurrent readers, so the table is rebuilt
+    final synchronized boolean remove(Entry e) {
+        Entry[] old = table;
+        if (old[slot(old, e.targetId)] != e)
+            return false;
+        Entry[] t = new Entry[old.length];
+        for (Entry f : old)
+            if (f != null && f != e)
+                t[slot(t, f.targetId)] = f;
+        table = t;
+        --size;
+        return true;
+    }
+
+    public final int size() {
+        return size;
+    }
+
+    // helper to list the target ids that have compiled rules
+    public final List<Integer> targetIds() {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Entry e : table)
+            if (e != null)
+                ids.add(e.targetId);
+        return ids;
+    }
+
+    // helper to count the total number of compiled outcomes
+    public final int outcomes() {
+        int o = 0;
+        for (Entry e : table)
+            if (e != null)
+                o += e.rules.size();
+        return o;
+    }
+
+    // private methods
+    private static final Entry[] grow(Entry[] old) {
+        Entry[] t = new Entry[2 * old.length];
+        for (Entry e : old)
+            if (e != null)
+                t[slot(t, e.targetId)] = e;
+        return t;
+    }
+
+    // slot: index of the entry for targetId, or of the empty slot where it should go
+    private static final int slot(Entry[] t, int targetId) {
+        int mask = t.length - 1;
+        int i = hash(targetId) & mask;
+        while (t[i] != null && t[i].targetId != targetId)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private static final int hash(int id) {
+        int h = id * 0x9E3779B9; // Fibonacci hashing spreads consecutive ids
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,172 @@
+package zoogas.core;
+
+import java.util.Arrays;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// RuleTableCache: memory budget for the compiled rules held in the Particles' RuleTables, one entry per (source, target, direction).
+// Every entry published by the RuleCompiler is admitted here with an estimate of its size; when the estimated total passes the budget,
+// entries are evicted by the CLOCK algorithm (an approximation to LRU): the hand sweeps the entries, clearing the reference bit that
+// RuleTable.get sets on each lookup, and evicts the first entry it finds unreferenced since its last visit.
+// Entries whose source and target particles are both on the board are pinned, since they are likely to be needed again soon.
+// An evicted entry is simply recompiled (or reloaded from the RuleCache) on its next miss, so the budget trades heap for compile time.
+public class RuleTableCache {
+    // size estimates for a 64-bit JVM with compressed references: the RuleTable entry and slot, the CompiledRandomVariable and its arrays,
+    // and for each outcome an UpdateEvent with (usually) its own verb String
+    static final int entryBytes = 96, outcomeBytes = 96;
+
+    public static long defaultBudget = 64L << 20; // in bytes; 0 means no limit
+
+    // data
+    private final Board board;
+    private long budget = defaultBudget;
+    private long bytes = 0; // estimated total size of the admitted entries
+
+    // the CLOCK ring, as parallel arrays. Evicted entries are replaced by the last entry, so the ring stays dense
+    private RuleTable[] table = new RuleTable[1024];
+    private RuleTable.Entry[] entry = new RuleTable.Entry[1024];
+    private Particle[] source = new Particle[1024];
+    private int[] size = new int[1024];
+    private int entries = 0, hand = 0;
+    private int retryAt = 0; // after a sweep finds nothing to evict, wait until the ring grows to this size before sweeping again
+
+    // metrics
+    private LongAdder hits = new LongAdder(); // lookups that found compiled rules (counted by Particle.samplePair)
+    private long misses = 0; // entries admitted, i.e. rule sets compiled or reloaded after a miss
+    private long evictions = 0, evictedBytes = 0;
+
+    // constructor
+    RuleTableCache(Board board) {
+        this.board = board;
+    }
+
+    // configuration
+    public synchronized final void setBudget(long budget) {
+        this.budget = budget;
+        retryAt = 0;
+        evictToBudget();
+    }
+
+    public synchronized final long getBudget() {
+        return budget;
+    }
+
+    // recordHit: called by Particle.samplePair when the rules for a pair were already compiled
+    final void recordHit() {
+        hits.increment();
+    }
+
+    // admit: called by the RuleCompiler after publishing rules to a RuleTable
+    synchronized final void admit(RuleTable t, RuleTable.Entry e, Particle src) {
+        if (entries == entry.length) {
+            int n = 2 * entries;
+            table = Arrays.copyOf(table, n);
+            entry = Arrays.copyOf(entry, n);
+            source = Arrays.copyOf(source, n);
+            size = Arrays.copyOf(size, n);
+        }
+        int s = entryBytes + outcomeBytes * e.rules.size();
+        table[entries] = t;
+        entry[entries] = e;
+        source[entries] = src;
+        size[entries] = s;
+        ++entries;
+        bytes += s;
+        ++misses;
+        if (entries >= retryAt)
+            evictToBudget();
+    }
+
+    // evictUnpinned: evict every entry whose particles are not both on the board, regardless of the budget (see Board.flushCaches)
+    public synchronized final void evictUnpinned() {
+        for (int i = 0; i < entries; )
+            if (pinned(i))
+                ++i;
+            else
+                evict(i);
+        hand = 0;
+        retryAt = 0;
+    }
+
+    // metrics
+    public final long getHitCount() {
+        return hits.sum();
+    }
+
+    public synchronized final long getMissCount() {
+        return misses;
+    }
+
+    public synchronized final long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized final long getBytes() {
+        return bytes;
+    }
+
+    public synchronized final int getEntryCount() {
+        return entries;
+    }
+
+    public synchronized final String statsString() {
+        long h = hits.sum();
+        return entries + " entries, " + megabytes(bytes) + " of " + (budget > 0 ? megabytes(budget) : "unlimited") + ", "
+            + h + " hits, " + misses + " misses (" + String.format("%.4f", h + misses > 0 ? ((double)h) / (h + misses) : 0) + " hit rate), "
+            + evictions + " evictions (" + megabytes(evictedBytes) + ")";
+    }
+
+    private static String megabytes(long b) {
+        return String.format("%.1f MB", b / (double)(1 << 20));
+    }
+
+    // private methods
+    // evictToBudget: run the CLOCK hand until the total is within budget, giving up after two full sweeps
+    // (the first may only clear reference bits) if everything left is pinned or in use
+    private final void evictToBudget() {
+        if (budget <= 0)
+            return;
+        for (int steps = 2 * entries; bytes > budget && entries > 0; --steps) {
+            if (steps <= 0) {
+                retryAt = entries + Math.max(entries / 8, 1); // amortize the failed sweep over the next admissions
+                return;
+            }
+            if (hand >= entries)
+                hand = 0;
+            RuleTable.Entry e = entry[hand];
+            if (e.referenced) {
+                e.referenced = false;
+                ++hand;
+            }
+            else if (pinned(hand))
+                ++hand;
+            else
+                evict(hand); // the last entry moves into this slot, so the hand stays put
+        }
+        retryAt = 0;
+    }
+
+    // pinned: true if the source and target particles of entry i are both on the board
+    private final boolean pinned(int i) {
+        if (board.getPopulation(source[i]) <= 0)
+            return false;
+        Particle target = board.getParticleById(entry[i].targetId);
+        return target != null && board.getPopulation(target) > 0;
+    }
+
+    private final void evict(int i) {
+        if (table[i].remove(entry[i])) {
+            ++evictions;
+            evictedBytes += size[i];
+        }
+        bytes -= size[i];
+        int last = --entries;
+        table[i] = table[last];
+        entry[i] = entry[last];
+        source[i] = source[last];
+        size[i] = size[last];
+        table[last] = null;
+        entry[last] = null;
+        source[last] = null;
+    }
+}
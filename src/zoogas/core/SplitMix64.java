@@ -0,0 +1,58 @@
+package zoogas.core;
+
+// SplitMix64: the fast, splittable generator of Steele, Lea & Flood (the algorithm behind java.util.SplittableRandom).
+// The state is a 64-bit counter advanced by an odd increment ("gamma"); each output is a bit-mixed copy of the counter.
+public class SplitMix64 implements RandomSource {
+    private static final long goldenGamma = 0x9e3779b97f4a7c15L;
+
+    // data
+    private long seed;
+    private final long gamma;
+
+    // constructors
+    public SplitMix64(long seed) {
+        this(seed, goldenGamma);
+    }
+
+    private SplitMix64(long seed, long gamma) {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    // RandomSource methods
+    public final double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    public final int nextInt(int n) {
+        return (int)(((nextLong() >>> 33) * n) >>> 31);
+    }
+
+    public final RandomSource split() {
+        return new SplitMix64(nextLong(), mixGamma(nextSeed()));
+    }
+
+    public final long nextLong() {
+        return mix64(nextSeed());
+    }
+
+    // private methods
+    private final long nextSeed() {
+        return seed += gamma;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    // gammas must be odd, and are chosen to have enough bit transitions to mix well
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return n < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
@@ -63,10 +63,11 @@ public class SprayTool {
     public boolean spray(Point cursorPos, Board board, BoardRenderer renderer, String spacePrefix) {
         boolean succeeded = false;
         Point sprayCell = new Point();
+        RandomSource random = board.getRandom(); // spraying happens on the updating thread, between calls to Board.update
         for (int n = 0; reserve >= 1 && n < sprayPower; ++n) {
 
-            sprayCell.x = cursorPos.x + (int)(Math.random() * (int)(sprayDiameter)) - (int)(sprayDiameter / 2);
-            sprayCell.y = cursorPos.y + (int)(Math.random() * (int)(sprayDiameter)) - (int)(sprayDiameter / 2);
+            sprayCell.x = cursorPos.x + random.nextInt((int)sprayDiameter) - (int)(sprayDiameter / 2);
+            sprayCell.y = cursorPos.y + random.nextInt((int)sprayDiameter) - (int)(sprayDiameter / 2);
 
             if (board.onBoard(sprayCell)) {
                 Particle oldCell = board.readCell(sprayCell);
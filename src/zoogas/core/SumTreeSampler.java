@@ -0,0 +1,68 @@
+package zoogas.core;
+
+// SumTreeSampler: flat-array binary sum tree over the cells of a (width * height) board.
+// Leaves hold the per-cell rates, in row-major order, and every internal node holds the sum of its two children.
+// Internal nodes are always recomputed from their children (never adjusted by a difference),
+// so the tree is rebuilt from the exact leaf rates along the updated path on every write, and rounding error cannot accumulate.
+// Sampling takes a single random number and walks down from the root.
+// Unlike QuadTree, the board does not need to be square, or a power of 2 in size.
+public class SumTreeSampler implements CellSampler {
+    // data
+    private final int width, height;
+    private final int leaves; // number of leaves (a power of 2, at least width * height)
+    private final double[] tree; // tree[1] is the root; the children of node n are 2n and 2n+1; leaf i is tree[leaves + i]
+
+    // constructor
+    public SumTreeSampler(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int n = 1;
+        while (n < width * height)
+            n <<= 1;
+        leaves = n;
+        tree = new double[2 * leaves]; // initialized to zero
+    }
+
+    // CellSampler methods
+    public final void setRate(int x, int y, double rate) {
+        int node = leaves + y * width + x;
+        tree[node] = Math.max(rate, 0);
+        for (node >>= 1; node > 0; node >>= 1)
+            tree[node] = tree[node << 1] + tree[(node << 1) | 1];
+    }
+
+    public final double totalRate() {
+        return tree[1];
+    }
+
+    public final int sample(RandomSource random) {
+        double r = random.nextDouble() * tree[1];
+        int node = 1;
+        while (node < leaves) {
+            int left = node << 1;
+            double leftRate = tree[left];
+            // the rate test guards against rounding pushing r past the last nonzero child
+            if ((r < leftRate && leftRate > 0) || tree[left | 1] <= 0)
+                node = left;
+            else {
+                r -= leftRate;
+                node = left | 1;
+            }
+        }
+        int cell = node - leaves;
+        return Coord.pack(cell % width, cell / width);
+    }
+
+    // accessors
+    public final double getRate(int x, int y) {
+        return tree[leaves + y * width + x];
+    }
+
+    public final int getWidth() {
+        return width;
+    }
+
+    public final int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,62 @@
+package zoogas.core;
+
+// TiledSampler: CellSampler made of one SumTreeSampler per square tile of the board.
+// Used by Board for parallel updates, where each tile samples its own cells and keeps its own total rate.
+// Tiles along the right and bottom edges may be smaller than tileSize.
+// TiledSampler does no locking of its own: Board holds the lock for a tile while setting rates in that tile.
+public class TiledSampler implements CellSampler {
+    // data
+    private final int tileSize, tilesPerRow;
+    private final SumTreeSampler[] tile;
+
+    // constructor
+    public TiledSampler(int width, int height, int tileSize) {
+        this.tileSize = tileSize;
+        tilesPerRow = (width + tileSize - 1) / tileSize;
+        int tilesPerColumn = (height + tileSize - 1) / tileSize;
+        tile = new SumTreeSampler[tilesPerRow * tilesPerColumn];
+        for (int ty = 0; ty < tilesPerColumn; ++ty)
+            for (int tx = 0; tx < tilesPerRow; ++tx)
+                tile[ty * tilesPerRow + tx] = new SumTreeSampler(Math.min(tileSize, width - tx * tileSize), Math.min(tileSize, height - ty * tileSize));
+    }
+
+    // CellSampler methods
+    public final void setRate(int x, int y, double rate) {
+        tile[(y / tileSize) * tilesPerRow + x / tileSize].setRate(x % tileSize, y % tileSize, rate);
+    }
+
+    // totalRate and sample are O(number of tiles); parallel updates use the per-tile methods instead
+    public final double totalRate() {
+        double total = 0;
+        for (SumTreeSampler t : tile)
+            total += t.totalRate();
+        return total;
+    }
+
+    public final int sample(RandomSource random) {
+        double r = random.nextDouble() * totalRate();
+        int t = 0;
+        for (; t < tile.length - 1; ++t) {
+            double rate = tile[t].totalRate();
+            if (r < rate && rate > 0)
+                break;
+            r -= rate;
+        }
+        return sampleTile(t, random);
+    }
+
+    // per-tile methods
+    public final int tiles() {
+        return tile.length;
+    }
+
+    public final double tileTotalRate(int t) {
+        return tile[t].totalRate();
+    }
+
+    // sampleTile: the packed board coordinates (see Coord) of a random cell in tile t, sampled proportionally to its update rate
+    public final int sampleTile(int t, RandomSource random) {
+        int c = tile[t].sample(random);
+        return Coord.pack(Coord.x(c) + (t % tilesPerRow) * tileSize, Coord.y(c) + (t / tilesPerRow) * tileSize);
+    }
+}
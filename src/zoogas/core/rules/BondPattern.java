@@ -2,15 +2,20 @@ package zoogas.core.rules;
 
 import java.util.regex.*;
 
+import zoogas.core.Bonds;
+
 public class BondPattern {
     // data
     String beginPointLabel = null, endPointLabel = null, bondName = null;
+    int bondId; // interned bondName (see Bonds)
+    int beginLabel, endLabel; // label numbers in the owning TransformRulePattern (see EventContext)
 
     // constructor
     BondPattern(String b, String e, String n) {
         beginPointLabel = b;
         endPointLabel = e;
         bondName = n;
+        bondId = Bonds.intern(n);
     }
 
     // static fromString constructor
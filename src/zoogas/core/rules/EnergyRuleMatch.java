@@ -48,6 +48,7 @@ public class EnergyRuleMatch extends RuleMatch {
         len = topology.directLength(sourceToTarget);
         match = len >= rp.minLen && len <= rp.maxLen;
 
+        angle = (rp.minAngle + rp.maxAngle) / 2; // if the angle is not measured, E() gives it full weight
         if (match && prevToSource != null && rp.hasAngleConstraint()) {
             angle = topology.angle(prevToSource, sourceToTarget);
             match = angle >= rp.minAngle && angle <= rp.maxAngle;
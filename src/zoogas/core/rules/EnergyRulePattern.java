@@ -1,5 +1,7 @@
 package zoogas.core.rules;
 
+import zoogas.core.Bonds;
+
 // Syntax for energy rule patterns:
 //  A B E
 // where
@@ -10,6 +12,7 @@ package zoogas.core.rules;
 public class EnergyRulePattern extends RulePattern {
     // data
     String bondName = null, lenType = null;
+    int bondId; // interned bondName (see Bonds)
     double minLen, maxLen;
     double minAngle, maxAngle;
     double lenTolerance, angleTolerance;
@@ -19,6 +22,7 @@ public class EnergyRulePattern extends RulePattern {
     public EnergyRulePattern(String w, String a, String b, String n, double e, double l, double L, double lTol, double minAngle, double maxAngle, double aTol) {
         super(w, a, b);
         bondName = n;
+        bondId = Bonds.intern(n);
         minLen = l;
         maxLen = L;
         this.minAngle = minAngle;
@@ -0,0 +1,76 @@
+package zoogas.core.rules;
+
+// EnergyTable: memoized bond energies for a PatternSet, keyed by (source particle id, target particle id, bond id, source-to-target vector, previous vector),
+// with the last three packed as bonds (see Bonds).
+// Entries are immutable and chained from a volatile bucket array, so lookups take no lock; misses are computed and inserted by PatternSet, under its lock.
+class EnergyTable {
+    public static int maxEntries = 1 << 20; // the table is cleared when it grows past this
+
+    private static final class Entry {
+        final int source, target;
+        final long geometry;
+        final double E;
+        final Entry next;
+
+        Entry(int source, int target, long geometry, double E, Entry next) {
+            this.source = source;
+            this.target = target;
+            this.geometry = geometry;
+            this.E = E;
+            this.next = next;
+        }
+    }
+
+    // data
+    private volatile Entry[] bucket = new Entry[1024];
+    private int entries = 0;
+
+    // geometry: the packed source-to-target bond (which includes the bond id) and the packed previous bond, or 0 (see Bonds), as one long
+    static long geometry(int bond, int prevBond) {
+        return ((long)bond << 32) | (prevBond & 0xffffffffL);
+    }
+
+    // get: the cached energy, or NaN if there is none
+    final double get(int source, int target, long geometry) {
+        Entry[] b = bucket;
+        for (Entry e = b[hash(source, target, geometry) & (b.length - 1)]; e != null; e = e.next)
+            if (e.geometry == geometry && e.source == source && e.target == target)
+                return e.E;
+        return Double.NaN;
+    }
+
+    // put: caller must hold the PatternSet lock
+    final void put(int source, int target, long geometry, double E) {
+        if (entries >= maxEntries)
+            clear();
+        Entry[] b = bucket;
+        if (entries >= b.length) {
+            Entry[] bigger = new Entry[2 * b.length];
+            for (Entry head : b)
+                for (Entry e = head; e != null; e = e.next) {
+                    int i = hash(e.source, e.target, e.geometry) & (bigger.length - 1);
+                    bigger[i] = new Entry(e.source, e.target, e.geometry, e.E, bigger[i]);
+                }
+            bucket = b = bigger;
+        }
+        int i = hash(source, target, geometry) & (b.length - 1);
+        b[i] = new Entry(source, target, geometry, E, b[i]);
+        ++entries;
+    }
+
+    // clear: caller must hold the PatternSet lock
+    final void clear() {
+        bucket = new Entry[1024];
+        entries = 0;
+    }
+
+    final int size() {
+        return entries;
+    }
+
+    // private methods
+    private static int hash(int source, int target, long geometry) {
+        long h = (source * 0x9E3779B97F4A7C15L) ^ (target * 0xC2B2AE3D27D4EB4FL) ^ (geometry * 0x165667B19E3779F9L);
+        return (int)(h ^ (h >>> 29));
+    }
+}
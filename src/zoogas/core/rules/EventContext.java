@@ -0,0 +1,78 @@
+package zoogas.core.rules;
+
+import java.util.Arrays;
+
+import zoogas.core.BondList;
+import zoogas.core.Point;
+
+// EventContext: the state of one evaluation of an UpdateEvent at a pair of cells, i.e. the cell coordinates bound to
+// the rule's bond labels (see TransformRulePattern), and the bonds the event will create.
+// UpdateEvents are immutable and shared between cells and threads, so each thread evaluates them in its own EventContext
+// (see Board.evolveTargetForSource), reusing it from one event to the next.
+public class EventContext {
+    // data
+    Point sourceCoords = null, targetCoords = null;
+    private int labels = 0;
+    private boolean[] bound = new boolean[8];
+    private int[] labelX = new int[8], labelY = new int[8];
+    final BondList sIncoming = new BondList(), sOutgoing = new BondList(), tIncoming = new BondList(), tOutgoing = new BondList();
+
+    public final Point getSourceCoords() {
+        return sourceCoords;
+    }
+
+    public final Point getTargetCoords() {
+        return targetCoords;
+    }
+
+    // label methods, used by UpdateEvent.bindBonds
+    final void reset(Point sc, Point tc, int labels) {
+        sourceCoords = sc;
+        targetCoords = tc;
+        if (labels > bound.length) {
+            bound = new boolean[labels];
+            labelX = new int[labels];
+            labelY = new int[labels];
+        }
+        Arrays.fill(bound, 0, labels, false);
+        this.labels = labels;
+        sIncoming.clear();
+        sOutgoing.clear();
+        tIncoming.clear();
+        tOutgoing.clear();
+    }
+
+    final void bind(int label, Point p) {
+        if (p == null)
+            bound[label] = false;
+        else
+            bind(label, p.x, p.y);
+    }
+
+    final void bind(int label, int x, int y) {
+        bound[label] = true;
+        labelX[label] = x;
+        labelY[label] = y;
+    }
+
+    final int labels() {
+        return labels;
+    }
+
+    final boolean isBound(int label) {
+        return bound[label];
+    }
+
+    final int x(int label) {
+        return labelX[label];
+    }
+
+    final int y(int label) {
+        return labelY[label];
+    }
+
+    // sameCell: true if both labels are bound to the same cell
+    final boolean sameCell(int a, int b) {
+        return bound[a] && bound[b] && labelX[a] == labelX[b] && labelY[a] == labelY[b];
+    }
+}
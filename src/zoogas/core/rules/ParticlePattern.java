@@ -37,15 +37,15 @@ public class ParticlePattern {
         this(w, n, new Color(Integer.parseInt(colorString, 16)), Double.parseDouble(energyString));
     }
 
-    // method to match a name and return a Particle, or null if match fails
+    // method to test if a name matches this pattern
+    boolean matches(String name) {
+        return namePattern.matcher(name).matches();
+    }
+
+    // method to make a Particle for a name that matches this pattern
     Particle makeParticle(String name, Board board, PatternSet ps) {
-        //	System.err.println("Matching "+name+" to "+namePattern.pattern());
-        Particle p = null;
-        Matcher m = namePattern.matcher(name);
-        if (m.matches()) {
-            p = new Particle(name, prefix, color, energy, board, ps);
-            p.icon = icon;
-        }
+        Particle p = new Particle(name, prefix, color, energy, board, ps);
+        p.icon = icon;
         return p;
     }
 
@@ -7,7 +7,10 @@ import java.awt.Color;
 
 import java.io.*;
 
+import java.security.MessageDigest;
+
 import zoogas.core.Board;
+import zoogas.core.Bonds;
 import zoogas.core.Particle;
 import zoogas.core.Point;
 import zoogas.core.topology.Topology;
@@ -27,23 +30,33 @@ public class PatternSet extends RuleSet {
 
         this.topology = topology;
         int ns = topology.neighborhoodSize();
-        transformRuleMatch = new ArrayList<Vector<TransformRuleMatch>>(ns);
+        transformRuleMatch = new ArrayList<PrefixIndex<TransformRuleMatch>>(ns);
         for (int d = 0; d < ns; ++d)
-            transformRuleMatch.add(new Vector<TransformRuleMatch>());
+            transformRuleMatch.add(new PrefixIndex<TransformRuleMatch>());
     }
 
     // data
     private Topology topology = null;
     private Vector<EnergyRulePattern> energyRulePattern = new Vector<EnergyRulePattern>();
     private Vector<TransformRulePattern> transformRulePattern = new Vector<TransformRulePattern>();
-    private Vector<ParticlePattern> particlePattern = new Vector<ParticlePattern>();
+    private PrefixIndex<ParticlePattern> particlePattern = new PrefixIndex<ParticlePattern>(); // indexed by name regex
+
+    // NOUN matching metrics (guarded by this PatternSet's lock, like getOrCreateParticle)
+    private long nounLookups = 0; // names that were not registered, and so were matched against the particle patterns
+    private long nounTests = 0; // particle pattern regexes tested
+    private long nounNanos = 0, maxNounNanos = 0; // time spent finding the first matching pattern
 
     // direction-bound transformation rules
-    // outer vector is indexed by neighbor direction, inner vector is the set of partially-bound rules for that direction
-    private ArrayList<Vector<TransformRuleMatch>> transformRuleMatch = null; // generators for production rules
+    // outer list is indexed by neighbor direction, inner index is the set of partially-bound rules for that direction, keyed by source regex
+    private ArrayList<PrefixIndex<TransformRuleMatch>> transformRuleMatch = null; // generators for production rules
 
     // energy rules
     private HashMap<String, Vector<EnergyRuleMatch>> energyRuleMatch = new HashMap<String, Vector<EnergyRuleMatch>>();
+    private boolean[] hasEnergyRule = new boolean[Bonds.maxBondId + 1]; // indexed by bond id
+    private EnergyTable energyTable = new EnergyTable(); // memoized getEnergy results, cleared when an energy rule is added
+
+    // hash of the rule text (in file order) and topology, used to key the on-disk RuleCache
+    private String ruleHash = null;
 
     // getPrefix
     static Pattern prefixPattern = Pattern.compile("([A-Za-z0-9_]+).*");
@@ -64,7 +77,7 @@ public class PatternSet extends RuleSet {
             if (s.hasXmlTagValue("Icon"))
                 pp.icon = new Icon(s.getXmlTagValue("Icon"));
             // store
-            particlePattern.add(pp);
+            particlePattern.add(pp.namePattern.pattern(), pp);
         }
         catch (RuntimeException e) {
             e.printStackTrace();
@@ -105,9 +118,12 @@ public class PatternSet extends RuleSet {
         }
 
         // add the pattern, and add pre-initialized matches for each neighborhood direction
+        p.index = transformRulePattern.size();
         transformRulePattern.add(p);
-        for (int d = 0; d < topology.neighborhoodSize(); ++d)
-            transformRuleMatch.get(d).add(new TransformRuleMatch(p, topology, d));
+        for (int d = 0; d < topology.neighborhoodSize(); ++d) {
+            TransformRuleMatch rm = new TransformRuleMatch(p, topology, d);
+            transformRuleMatch.get(d).add(rm.regexA(), rm);
+        }
     }
 
     // method to lay down a template for an energy rule
@@ -119,18 +135,36 @@ public class PatternSet extends RuleSet {
         energyRulePattern.add(p);
         if (!energyRuleMatch.containsKey(p.bondName))
             energyRuleMatch.put(p.bondName, new Vector<EnergyRuleMatch>());
+        hasEnergyRule[p.bondId] = true;
         energyRuleMatch.get(p.bondName).add(new EnergyRuleMatch(p, topology));
+        synchronized (this) {
+            energyTable.clear();
+        }
     }
 
     // method to get a Particle from the Board object or create and add one
-    public Particle getOrCreateParticle(String particleName, Board board) {
+    // synchronized, because creating a Particle binds shared rule matches (see RuleCompiler)
+    public synchronized Particle getOrCreateParticle(String particleName, Board board) {
         // look for existing particle
         Particle p = board.getParticleByName(particleName);
 
-        // if no such particle, look for a pattern that matches this particle
-        for (int n = 0; p == null && n < particlePattern.size(); ++n) {
-            ParticlePattern pp = particlePattern.get(n);
-            p = pp.makeParticle(particleName, board, this); // returns null if fails to match
+        // if no such particle, look for the first pattern that matches this particle (only those indexed under a prefix of its name can)
+        if (p == null) {
+            long start = System.nanoTime();
+            ParticlePattern match = null;
+            for (ParticlePattern pp : particlePattern.candidates(particleName)) {
+                ++nounTests;
+                if (pp.matches(particleName)) {
+                    match = pp;
+                    break;
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            ++nounLookups;
+            nounNanos += nanos;
+            maxNounNanos = Math.max(maxNounNanos, nanos);
+            if (match != null)
+                p = match.makeParticle(particleName, board, this);
         }
 
         // if still no such particle, create a bright white default with this PatternSet
@@ -141,10 +175,31 @@ public class PatternSet extends RuleSet {
         return p;
     }
 
+    // accessors for transformation rules by index (used to serialize compiled rules)
+    public int getTransformRuleIndex(TransformRulePattern p) {
+        return p.index;
+    }
+
+    public TransformRulePattern getTransformRulePattern(int index) {
+        return index >= 0 && index < transformRulePattern.size() ? transformRulePattern.get(index) : null;
+    }
+
+    // ruleHash: hex digest of the rule lines and topology, or null if this PatternSet was not read from a stream
+    public String getRuleHash() {
+        return ruleHash;
+    }
+
+    // nounStatsString: how long it takes to find the particle pattern for a new name
+    public synchronized String nounStatsString() {
+        return nounLookups + " names matched against " + particlePattern.size() + " patterns (" + String.format("%.1f", nounLookups > 0 ? ((double)nounTests) / nounLookups : 0) + " tested per name, "
+            + String.format("%.1f", nounLookups > 0 ? nounNanos / (1e3 * nounLookups) : 0) + "us mean, " + String.format("%.1f", maxNounNanos / 1e3) + "us max)";
+    }
+
     // helper to get a set of transformation rules for a given Particle/direction
+    // (only the rules indexed under a prefix of the name are regex-tested)
     public TransformRuleMatch[] getSourceTransformRules(String particleName, int dir) {
+        ArrayList<TransformRuleMatch> w = transformRuleMatch.get(dir).candidates(particleName);
         Vector<TransformRuleMatch> v = new Vector<TransformRuleMatch>();
-        Vector<TransformRuleMatch> w = transformRuleMatch.get(dir);
         for (int n = 0; n < w.size(); ++n) {
             TransformRuleMatch rm = w.get(n);
             if (rm.matches(particleName))
@@ -153,8 +208,34 @@ public class PatternSet extends RuleSet {
         return (TransformRuleMatch[])v.toArray(new TransformRuleMatch[v.size()]);
     }
 
-    // helper to get bond energy for a given particle pair
-    public double getEnergy(String sourceName, String targetName, String bondName, Point sourceToTarget, Point prevToSource) {
+    // helper to get bond energy for a given particle pair, looked up in the EnergyTable (and computed by the next method on a miss)
+    // bond is the packed bond from source to target, prevBond the packed bond from the previous cell in the chain to source, or 0 if there is none (see Bonds)
+    public final double getEnergy(Particle source, Particle target, int bond, int prevBond) {
+        if (!hasEnergyRule[Bonds.idOf(bond)])
+            return 0;
+        if (source.getId() == 0 || target.getId() == 0)
+            return computeEnergy(source, target, bond, prevBond);
+        long geometry = EnergyTable.geometry(bond, prevBond);
+        double E = energyTable.get(source.getId(), target.getId(), geometry);
+        return Double.isNaN(E) ? cacheEnergy(source, target, bond, prevBond, geometry) : E;
+    }
+
+    private synchronized double cacheEnergy(Particle source, Particle target, int bond, int prevBond, long geometry) {
+        double E = energyTable.get(source.getId(), target.getId(), geometry);
+        if (Double.isNaN(E)) {
+            E = computeEnergy(source, target, bond, prevBond);
+            energyTable.put(source.getId(), target.getId(), geometry, E);
+        }
+        return E;
+    }
+
+    private double computeEnergy(Particle source, Particle target, int bond, int prevBond) {
+        return getEnergy(source.name, target.name, Bonds.name(Bonds.idOf(bond)), Bonds.delta(bond), prevBond == 0 ? null : Bonds.delta(prevBond));
+    }
+
+    // helper to get bond energy for a given pair of particle names
+    // synchronized, because EnergyRuleMatch binding is stateful and parallel Board tiles may call this concurrently
+    public synchronized double getEnergy(String sourceName, String targetName, String bondName, Point sourceToTarget, Point prevToSource) {
         double E = 0;
         Vector<EnergyRuleMatch> rmVec = energyRuleMatch.get(bondName);
         if (rmVec != null) {
@@ -177,6 +258,8 @@ public class PatternSet extends RuleSet {
         InputStreamReader read = new InputStreamReader(in);
         BufferedReader buff = new BufferedReader(read);
         try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((topology.getClass().getName() + " " + topology.neighborhoodSize() + "\n").getBytes("UTF-8"));
             while (buff.ready()) {
                 String s = buff.readLine();
                 if (!isRule(s)) {
@@ -185,6 +268,7 @@ public class PatternSet extends RuleSet {
 
                 if (ps.add(s)) {
                     ps.byteSize += 1 + s.getBytes().length;
+                    digest.update((s + "\n").getBytes("UTF-8"));
 
                     if (nounSyntax.matches(s)) {
                         ps.addParticlePattern(nounSyntax);
@@ -205,8 +289,13 @@ public class PatternSet extends RuleSet {
             }
 
             buff.close();
+
+            StringBuffer hex = new StringBuffer();
+            for (byte b : digest.digest())
+                hex.append(String.format("%02x", b));
+            ps.ruleHash = hex.toString();
         }
-        catch (IOException e) {
+        catch (Exception e) {
             e.printStackTrace();
         }
         return ps;
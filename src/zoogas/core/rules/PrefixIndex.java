@@ -0,0 +1,99 @@
+package zoogas.core.rules;
+
+import java.util.*;
+
+// PrefixIndex: values keyed by regexes (transformation rules by source regex, particle patterns by name regex), bucketed by the literal prefix
+// that every name a regex fully matches must start with (see literalPrefix), so that only the values whose regexes could match a given name need testing.
+// Values whose regex has no literal prefix go in the "" bucket, which is a candidate for every name.
+class PrefixIndex<T> {
+    // indexed value, with its position in the order of addition
+    private static class Item<T> {
+        final int order;
+        final T value;
+
+        Item(int order, T value) {
+            this.order = order;
+            this.value = value;
+        }
+    }
+
+    // data
+    private HashMap<String, ArrayList<Item<T>>> bucket = new HashMap<String, ArrayList<Item<T>>>();
+    private BitSet prefixLength = new BitSet(); // lengths of the prefixes in use, so candidates() only looks those up
+    private int size = 0;
+
+    // add: index a value by its regex
+    final void add(String regex, T value) {
+        String prefix = literalPrefix(regex);
+        ArrayList<Item<T>> b = bucket.get(prefix);
+        if (b == null)
+            bucket.put(prefix, b = new ArrayList<Item<T>>());
+        b.add(new Item<T>(size++, value));
+        prefixLength.set(prefix.length());
+    }
+
+    final int size() {
+        return size;
+    }
+
+    // candidates: the values indexed under any prefix of name, in the order they were added
+    final ArrayList<T> candidates(String name) {
+        int run = 0;
+        while (run < name.length() && isPrefixChar(name.charAt(run)))
+            ++run;
+        ArrayList<Item<T>> items = new ArrayList<Item<T>>();
+        int buckets = 0;
+        for (int n = prefixLength.nextSetBit(0); n >= 0 && n <= run; n = prefixLength.nextSetBit(n + 1)) {
+            ArrayList<Item<T>> b = bucket.get(name.substring(0, n));
+            if (b != null) {
+                items.addAll(b);
+                ++buckets;
+            }
+        }
+        if (buckets > 1) // each bucket is already in order
+            Collections.sort(items, itemOrder);
+        ArrayList<T> c = new ArrayList<T>(items.size());
+        for (Item<T> item : items)
+            c.add(item.value);
+        return c;
+    }
+
+    // literalPrefix: the longest run of [A-Za-z0-9_] (the characters PatternSet.getPrefix takes) at the start of a regex that any full match must begin with.
+    // The run is cut before a character made optional by a quantifier, and is empty if the regex has a top-level alternation
+    // (which could match a name not starting with the run)
+    static String literalPrefix(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); ++i) {
+            char c = regex.charAt(i);
+            if (c == '\\')
+                ++i;
+            else if (inClass)
+                inClass = c != ']';
+            else if (c == '[')
+                inClass = true;
+            else if (c == '(')
+                ++depth;
+            else if (c == ')')
+                --depth;
+            else if (c == '|' && depth == 0)
+                return "";
+        }
+        int n = 0;
+        while (n < regex.length() && isPrefixChar(regex.charAt(n)))
+            ++n;
+        if (n > 0 && n < regex.length() && "?*{".indexOf(regex.charAt(n)) >= 0)
+            --n;
+        return regex.substring(0, n);
+    }
+
+    private static boolean isPrefixChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private final Comparator<Item<T>> itemOrder = new Comparator<Item<T>>() {
+            public int compare(Item<T> a, Item<T> b) {
+                return a.order - b.order;
+            }
+        };
+}
@@ -0,0 +1,144 @@
+package zoogas.core.rules;
+
+import java.util.ArrayList;
+import java.util.regex.*;
+
+// RhsTemplate: the right-hand side of a rule (C, D or V), compiled once into a token program so that expanding it for each
+// (source, target) pair is a single StringBuilder pass with no regex matching.
+// Direction macros ($F, $L etc) must already have been expanded, as they depend only on the direction the rule is bound to;
+// the macros left are $S, $T, groups ($1, $2...), increments ($+1.1), decrements ($-1.1) and modulo-increments ($%3+1.1).
+// Each macro is parsed here with the same regexes that RuleMatch used to apply at expansion time, so the output is unchanged,
+// including the quirks: e.g. "$+12" is $2 plus 1, and "$-1.1" expands to "-1.1" if $1 is less than 1.
+final class RhsTemplate {
+    // token kinds
+    private static final int LITERAL = 0, SOURCE = 1, TARGET = 2, GROUP = 3, INC = 4, DEC = 5, MOD = 6;
+
+    private static class Token {
+        int kind, group, delta, mod;
+        String text = ""; // LITERAL: the text; INC, DEC, MOD: the part of the macro preceding the arithmetic
+        String tail = ""; // INC, DEC, MOD: the part of the macro following the arithmetic
+        String macro = ""; // DEC: the whole macro, which is emitted as is if the result would be negative
+    }
+
+    // expansion of $S, $T, groups ($1, $2...), increments ($+1.1 etc), decrements ($-1.1 etc) and modulo-increments ($%3+1.1 etc)
+    private static Pattern macroPattern = Pattern.compile("\\$(S|T|\\d+|[\\+\\-]\\d*\\.?\\d+|%\\d+\\+\\d*\\.?\\d+)");
+    private static Pattern incGroupPattern = Pattern.compile("\\+(\\d*)\\.?([1-9]\\d*)");
+    private static Pattern decGroupPattern = Pattern.compile("\\-(\\d*)\\.?([1-9]\\d*)");
+    private static Pattern modGroupPattern = Pattern.compile("%([1-9]\\d*)\\+(\\d*)\\.?([1-9]\\d*)");
+
+    // data
+    private final String template;
+    private final Token[] token;
+    private final String constant; // the expansion, if the template has no macros; otherwise null
+
+    // constructor
+    private RhsTemplate(String template, Token[] token) {
+        this.template = template;
+        this.token = token;
+        constant = token.length == 0 ? "" : (token.length == 1 && token[0].kind == LITERAL ? token[0].text : null);
+    }
+
+    // compile: s is a template whose direction macros have been expanded
+    static RhsTemplate compile(String s) {
+        ArrayList<Token> tokens = new ArrayList<Token>();
+        Matcher m = macroPattern.matcher(s);
+        int pos = 0;
+        while (m.find()) {
+            if (m.start() > pos)
+                tokens.add(literal(s.substring(pos, m.start())));
+            tokens.add(macro(m.group(1)));
+            pos = m.end();
+        }
+        if (pos < s.length())
+            tokens.add(literal(s.substring(pos)));
+        return new RhsTemplate(s, tokens.toArray(new Token[tokens.size()]));
+    }
+
+    private static Token literal(String text) {
+        Token t = new Token();
+        t.kind = LITERAL;
+        t.text = text;
+        return t;
+    }
+
+    private static Token macro(String g) {
+        Token t = new Token();
+        try {
+            char c = g.charAt(0);
+            if (g.equals("S"))
+                t.kind = SOURCE;
+            else if (g.equals("T"))
+                t.kind = TARGET;
+            else if (c == '+' || c == '-' || c == '%') {
+                Matcher m = (c == '+' ? incGroupPattern : (c == '-' ? decGroupPattern : modGroupPattern)).matcher(g);
+                if (!m.find())
+                    return literal(g);
+                int d = c == '%' ? 2 : 1; // the group holding the delta
+                t.kind = c == '+' ? INC : (c == '-' ? DEC : MOD);
+                t.group = Integer.valueOf(m.group(d + 1));
+                t.delta = m.group(d).length() > 0 ? Integer.valueOf(m.group(d)) : 1;
+                t.mod = c == '%' ? Integer.valueOf(m.group(1)) : 0;
+                t.text = g.substring(0, m.start());
+                t.tail = g.substring(m.end());
+                t.macro = g;
+            }
+            else {
+                t.kind = GROUP;
+                t.group = Integer.valueOf(g);
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("While compiling $" + g);
+            e.printStackTrace();
+            return literal("");
+        }
+        return t;
+    }
+
+    // expand: the expansion for a RuleMatch whose source (and, for $T or groups of B, target) are bound
+    final String expand(RuleMatch rm) {
+        if (constant != null)
+            return constant;
+        StringBuilder sb = new StringBuilder(2 * template.length());
+        int mark = 0; // the length of sb at the end of the last macro
+        for (Token t : token) {
+            switch (t.kind) {
+            case LITERAL:
+                sb.append(t.text);
+                continue;
+            case SOURCE:
+                sb.append(rm.A);
+                break;
+            case TARGET:
+                sb.append(rm.B);
+                break;
+            case GROUP:
+                String val = rm.getGroup(t.group);
+                if (val == null) {
+                    // a group that did not participate in the match truncates the expansion at the end of the previous macro, as it always has
+                    System.err.println("While expanding " + template + ": no match for group $" + t.group);
+                    sb.setLength(mark);
+                    return sb.toString();
+                }
+                sb.append(val);
+                break;
+            default:
+                int n;
+                try {
+                    n = Integer.parseInt(rm.getGroup(t.group));
+                }
+                catch (NumberFormatException e) {
+                    System.err.println("While expanding " + t.macro + " in " + template);
+                    e.printStackTrace();
+                    break;
+                }
+                if (t.kind == DEC && n < t.delta)
+                    sb.append(t.macro);
+                else
+                    sb.append(t.text).append(t.kind == INC ? n + t.delta : (t.kind == DEC ? n - t.delta : (n + t.delta) % t.mod)).append(t.tail);
+            }
+            mark = sb.length();
+        }
+        return sb.toString();
+    }
+}
@@ -123,11 +123,6 @@ public class RuleMatch {
         return expandDir(pattern.getTargetName());
     }
 
-    // main expand() methods
-    protected final String expand(String s) {
-        return expandSourceTargetIncDecModGroup(expandDir(s));
-    }
-
     // expansion of direction macros: $F, $B, $L, $R, $+L, etc.
     private static Pattern dirPattern = Pattern.compile("\\$(F|B|L|R|\\+L|\\+\\+L|\\+R|\\+\\+R)");
     protected String expandDir(String s) {
@@ -157,118 +152,17 @@ public class RuleMatch {
         return sb.toString();
     }
 
-    // expansion of $S, $T, groups ($1, $2...), increments ($+1.1 etc), decrements ($-1.1 etc) and modulo-increments ($+1%2.1 etc)
-    static Pattern macroPattern = Pattern.compile("\\$(S|T|\\d+|[\\+\\-]\\d*\\.?\\d+|%\\d+\\+\\d*\\.?\\d+)");
-    protected final String expandSourceTargetIncDecModGroup(String s) {
-        StringBuffer sb = new StringBuffer();
-        try {
-            Matcher m = macroPattern.matcher(s);
-            while (m.find()) {
-                String g = m.group(1);
-                if (g.length() > 0)
-                    if (g.equals("S"))
-                        m.appendReplacement(sb, A);
-                    else if (g.equals("T")) {
-                        m.appendReplacement(sb, B);
-                    }
-                    else if (g.charAt(0) == '+') {
-                        m.appendReplacement(sb, expandInc(g));
-                    }
-                    else if (g.charAt(0) == '-') {
-                        m.appendReplacement(sb, expandDec(g));
-                    }
-                    else if (g.charAt(0) == '%') {
-                        m.appendReplacement(sb, expandMod(g));
-                    }
-                    else
-                        m.appendReplacement(sb, getGroup(g));
-            }
-            m.appendTail(sb);
-        }
-        catch (Exception e) {
-            System.err.println("While expanding " + s);
-            e.printStackTrace();
-        }
-        return sb.toString();
-    }
-
-    // expansion of $+1.n
-    static Pattern incGroupPattern = Pattern.compile("\\+(\\d*)\\.?([1-9]\\d*)");
-    protected final String expandInc(String s) {
-        StringBuffer sb = new StringBuffer();
-        try {
-            Matcher m = incGroupPattern.matcher(s);
-            if (m.find()) {
-                String inc = m.group(1), g = m.group(2);
-                int n = Integer.valueOf(getGroup(g));
-                int delta = inc.length() > 0 ? Integer.valueOf(inc) : 1;
-                m.appendReplacement(sb, String.valueOf(n + delta));
-            }
-            m.appendTail(sb);
-        }
-        catch (Exception e) {
-            System.err.println("While expanding " + s);
-            e.printStackTrace();
-        }
-        return sb.toString();
-    }
-
-    // expansion of $-1.n
-    static Pattern decGroupPattern = Pattern.compile("\\-(\\d*)\\.?([1-9]\\d*)");
-    protected final String expandDec(String s) {
-        StringBuffer sb = new StringBuffer();
-        try {
-            Matcher m = decGroupPattern.matcher(s);
-            if (m.find()) {
-                String dec = m.group(1), g = m.group(2);
-                int n = Integer.valueOf(getGroup(g));
-                int delta = dec.length() > 0 ? Integer.valueOf(dec) : 1;
-                if (n >= delta)
-                    m.appendReplacement(sb, String.valueOf(n - delta));
-            }
-            m.appendTail(sb);
-        }
-        catch (Exception e) {
-            System.err.println("While expanding " + s);
-            e.printStackTrace();
-        }
-        return sb.toString();
-    }
-
-    // expansion of $%3+1.n
-    static Pattern modGroupPattern = Pattern.compile("%([1-9]\\d*)\\+(\\d*)\\.?([1-9]\\d*)");
-    protected final String expandMod(String s) {
-        StringBuffer sb = new StringBuffer();
-        try {
-            Matcher m = modGroupPattern.matcher(s);
-            if (m.find()) {
-                String mod = m.group(1), inc = m.group(2), g = m.group(3);
-                int n = Integer.valueOf(getGroup(g));
-                int M = Integer.valueOf(mod);
-                int delta = inc.length() > 0 ? Integer.valueOf(inc) : 1;
-                m.appendReplacement(sb, String.valueOf((n + delta) % M));
-            }
-            m.appendTail(sb);
-        }
-        catch (Exception e) {
-            System.err.println("While expanding " + s);
-            e.printStackTrace();
-        }
-        return sb.toString();
-    }
-
-    // helper method to get a group ($1,$2,...) from AB
-    String getGroup(String group) {
+    // helper method to get a group ($1,$2,...) from AB; null if the group did not participate in the match (see RhsTemplate)
+    final String getGroup(int n) {
         String val = "";
         try {
-            int n = new Integer(group).intValue();
             if (n <= am.groupCount())
                 val = am.group(n);
             else if (n <= am.groupCount() + bm.groupCount())
                 val = bm.group(n - am.groupCount());
         }
         catch (Exception e) {
-            System.err.println("While trying to get group $" + group + " matching " + A + " " + B + " to " + aPattern.pattern() + " " + bPattern.pattern());
+            System.err.println("While trying to get group $" + n + " matching " + A + " " + B + " to " + aPattern.pattern() + " " + bPattern.pattern());
             e.printStackTrace();
         }
         return val;
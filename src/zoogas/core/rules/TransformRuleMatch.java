@@ -30,6 +30,7 @@ public class TransformRuleMatch extends RuleMatch {
     // data
     private Pattern dirPattern = null;
     private boolean dirMatches = false;
+    private RhsTemplate cTemplate = null, dTemplate = null, vTemplate = null; // compiled when the direction is bound
 
     // constructors
     public TransformRuleMatch(TransformRulePattern p) {
@@ -51,6 +52,10 @@ public class TransformRuleMatch extends RuleMatch {
     // override bindDir()
     public boolean bindDir(Topology t, int d) {
         boolean boundOk = super.bindDir(t, d);
+        TransformRulePattern p = transformPattern();
+        cTemplate = compileTemplate(p.C);
+        dTemplate = compileTemplate(p.D);
+        vTemplate = compileTemplate(p.V);
         if (dirPattern == null)
             dirMatches = true;
         else {
@@ -61,6 +66,10 @@ public class TransformRuleMatch extends RuleMatch {
         return boundOk;
     }
 
+    private final RhsTemplate compileTemplate(String s) {
+        return s == null ? null : RhsTemplate.compile(expandDir(s));
+    }
+
     // override matches()
     public boolean matches() {
         if (dirBound() && !dirMatches)
@@ -70,13 +79,13 @@ public class TransformRuleMatch extends RuleMatch {
 
     // other public methods
     public final String C() {
-        return expand(transformPattern().C);
+        return cTemplate.expand(this);
     }
     public final String D() {
-        return expand(transformPattern().D);
+        return dTemplate.expand(this);
     }
     public final String V() {
-        return expand(transformPattern().V);
+        return vTemplate.expand(this);
     }
     public final double P() {
         return transformPattern().getProbability();
@@ -6,8 +6,14 @@ public class TransformRulePattern extends RulePattern {
     // data
     String dir = null, C = null, D = null, V = null;
     private double probability = 0;
+    int index = -1; // position in the PatternSet's list of transformation rules
     Vector<BondPattern> optionalLhsBond = null, requiredLhsBond = null, excludedLhsBond = null, rhsBond = null;
 
+    // bond labels, numbered so that an EventContext can hold their coordinates in arrays.
+    // s, t, sT and tS are always labels 0 to 3; other labels are numbered in order of appearance
+    static final int sLabel = 0, tLabel = 1, sTLabel = 2, tSLabel = 3;
+    private ArrayList<String> label = new ArrayList<String>(Arrays.asList("s", "t", "sT", "tS"));
+
     // constructor
     // w: subject prefix
     // dir: direction
@@ -45,8 +51,31 @@ public class TransformRulePattern extends RulePattern {
     private Vector<BondPattern> addBonds(Vector<BondPattern> bondVec, String[] b) {
         if (bondVec == null)
             bondVec = new Vector<BondPattern>(b.length);
-        for (int n = 0; n < b.length; ++n)
-            bondVec.add(BondPattern.fromString(b[n]));
+        for (int n = 0; n < b.length; ++n) {
+            BondPattern bp = BondPattern.fromString(b[n]);
+            bp.beginLabel = labelIndex(bp.beginPointLabel);
+            bp.endLabel = labelIndex(bp.endPointLabel);
+            bondVec.add(bp);
+        }
         return bondVec;
     }
+
+    private int labelIndex(String l) {
+        int i = label.indexOf(l);
+        if (i < 0) {
+            i = label.size();
+            label.add(l);
+        }
+        return i;
+    }
+
+    // labelCount: the number of bond labels used by this rule (at least 4)
+    final int labelCount() {
+        return label.size();
+    }
+
+    // hasBonds: true if this rule tests or makes any bonds
+    final boolean hasBonds() {
+        return (requiredLhsBond != null && requiredLhsBond.size() > 0) || (optionalLhsBond != null && optionalLhsBond.size() > 0) || (excludedLhsBond != null && excludedLhsBond.size() > 0) || (rhsBond != null && rhsBond.size() > 0);
+    }
 }
@@ -1,23 +1,24 @@
 package zoogas.core.rules;
 
-import java.util.HashMap;
 import java.util.Vector;
 
 import zoogas.core.Board;
+import zoogas.core.BondList;
+import zoogas.core.Bonds;
 import zoogas.core.Particle;
 import zoogas.core.Point;
 
-
+// UpdateEvent: one outcome of a compiled transformation rule, i.e. the new (source,target) pair, the verb, and the rule's bond patterns.
+// UpdateEvents are immutable, and shared between all the cells (and threads) that sample them from a rule table;
+// the state of evaluating one at a particular pair of cells lives in an EventContext.
 public class UpdateEvent {
     // data
-    Particle source = null, target = null;
-    TransformRulePattern pattern = null;
+    final Particle source, target;
+    final TransformRulePattern pattern;
     // everything below here ignored by equals() and hashCode() methods
-    String verb = null;
-    private HashMap<String, Point> bondLabel = null;
-    HashMap<String, Point> sIncoming = null, sOutgoing = null, tIncoming = null, tOutgoing = null;
-    Point sourceCoords = null, targetCoords = null;
-    Particle oldSource = null, oldTarget = null;
+    final String verb;
+    final Particle oldSource, oldTarget;
+    private final boolean hasBonds;
 
     // methods
     // constructor
@@ -28,107 +29,101 @@ public class UpdateEvent {
         pattern = p;
         oldSource = sOld;
         oldTarget = tOld;
-        initBondLabel();
+        hasBonds = p.hasBonds();
     }
 
     // bond pattern accessors
-    protected boolean keepsSourceBonds() {
-        return source == oldSource && sIncoming == null && sOutgoing == null;
+    protected boolean keepsSourceBonds(EventContext ctx) {
+        return source == oldSource && ctx.sIncoming.isEmpty() && ctx.sOutgoing.isEmpty();
     }
 
-    protected boolean keepsTargetBonds() {
-        return target == oldTarget && tIncoming == null && tOutgoing == null;
-    }
-
-    // bondLabel init method
-    private void initBondLabel() {
-        if ((pattern.requiredLhsBond != null && pattern.requiredLhsBond.size() > 0) || (pattern.optionalLhsBond != null && pattern.optionalLhsBond.size() > 0) || (pattern.excludedLhsBond != null && pattern.excludedLhsBond.size() > 0) || (pattern.rhsBond != null && pattern.rhsBond.size() > 0)) {
-            bondLabel = new HashMap<String, Point>();
-        }
+    protected boolean keepsTargetBonds(EventContext ctx) {
+        return target == oldTarget && ctx.tIncoming.isEmpty() && ctx.tOutgoing.isEmpty();
     }
 
     // binding methods for bonds
-    public boolean bindBonds(Point sc, Point tc, Board board) {
+    // bindBonds: bind the rule's bond labels to cells, starting from the source & target cells (sc may be null, if the source is off-board),
+    // and work out the bonds the event would create. Returns false if the board's bonds do not match the rule
+    public boolean bindBonds(Point sc, Point tc, Board board, EventContext ctx) {
         boolean match = true;
-        sourceCoords = sc;
-        targetCoords = tc;
-
-        if (bondLabel != null) {
-            bondLabel.clear();
+        ctx.reset(sc, tc, hasBonds ? pattern.labelCount() : 0);
 
+        if (hasBonds) {
             // s and t are bound to source & target cells
-            bondLabel.put("s", sourceCoords);
-            bondLabel.put("t", targetCoords);
+            ctx.bind(TransformRulePattern.sLabel, sc);
+            ctx.bind(TransformRulePattern.tLabel, tc);
             // sT and tS are bound to source & target cells on LHS, but are switched on RHS (to help with diffusion moves)
-            bondLabel.put("sT", sourceCoords);
-            bondLabel.put("tS", targetCoords);
+            ctx.bind(TransformRulePattern.sTLabel, sc);
+            ctx.bind(TransformRulePattern.tSLabel, tc);
 
             // apply the various tests
-            match = match && bindBonds(pattern.requiredLhsBond, board, true, false);
-            match = match && bindBonds(pattern.optionalLhsBond, board, false, false);
-            match = match && bindBonds(pattern.excludedLhsBond, board, false, true);
+            match = match && bindBonds(pattern.requiredLhsBond, board, ctx, true, false);
+            match = match && bindBonds(pattern.optionalLhsBond, board, ctx, false, false);
+            match = match && bindBonds(pattern.excludedLhsBond, board, ctx, false, true);
 
             // swap sT and tS
-            bondLabel.put("sT", targetCoords);
-            bondLabel.put("tS", sourceCoords);
-        }
-
-        // set up sIncoming, sOutgoing, tIncoming, tOutgoing
-        if (match) {
-            sIncoming = getHashMap("s", false, "");
-            sOutgoing = getHashMap("s", true, "");
-            tIncoming = getHashMap("t", false, "s");
-            tOutgoing = getHashMap("t", true, "s");
+            ctx.bind(TransformRulePattern.sTLabel, tc);
+            ctx.bind(TransformRulePattern.tSLabel, sc);
+
+            // set up sIncoming, sOutgoing, tIncoming, tOutgoing
+            if (match) {
+                getBonds(ctx, ctx.sIncoming, TransformRulePattern.sLabel, false, -1);
+                getBonds(ctx, ctx.sOutgoing, TransformRulePattern.sLabel, true, -1);
+                getBonds(ctx, ctx.tIncoming, TransformRulePattern.tLabel, false, TransformRulePattern.sLabel);
+                getBonds(ctx, ctx.tOutgoing, TransformRulePattern.tLabel, true, TransformRulePattern.sLabel);
+            }
         }
 
         // return
         return match;
     }
 
-    private boolean bindBonds(Vector<BondPattern> bondExpr, Board board, boolean required, boolean excluded) {
+    private boolean bindBonds(Vector<BondPattern> bondExpr, Board board, EventContext ctx, boolean required, boolean excluded) {
         if (bondExpr != null) {
             for (int n = 0; n < bondExpr.size(); ++n) {
                 BondPattern bp = bondExpr.get(n);
-                Point exprBeginPoint = bondLabel.get(bp.beginPointLabel);
-                if (exprBeginPoint == null) {
+                if (!ctx.isBound(bp.beginLabel)) {
                     // beginPointLabel is unbound
-                    Point exprEndPoint = bondLabel.get(bp.endPointLabel);
-                    if (exprEndPoint == null) { // both ends are unbound?
+                    if (!ctx.isBound(bp.endLabel)) { // both ends are unbound?
                         if (required)
                             return false;
                     }
-                    else if (board.onBoard(exprEndPoint)) {
-                        Point boardBeginPoint = board.incomingCoord(exprEndPoint, bp.bondName);
-                        if (excluded && boardBeginPoint != null) {
-                            System.err.println("Excluding " + verb + " due to " + bp.bondName);
-                            return false;
+                    else {
+                        int ex = ctx.x(bp.endLabel), ey = ctx.y(bp.endLabel);
+                        if (board.onBoard(ex, ey)) {
+                            int boardBond = board.incomingBond(ex, ey, bp.bondId); // from the end point back to the board's begin point
+                            if (excluded && boardBond != 0) {
+                                System.err.println("Excluding " + verb + " due to " + bp.bondName);
+                                return false;
+                            }
+                            if (required && boardBond == 0)
+                                return false;
+                            if (boardBond != 0)
+                                ctx.bind(bp.beginLabel, ex + Bonds.dx(boardBond), ey + Bonds.dy(boardBond));
                         }
-                        if (required && boardBeginPoint == null)
-                            return false;
-                        if (boardBeginPoint != null)
-                            bondLabel.put(bp.beginPointLabel, boardBeginPoint);
                     }
                 }
                 else {
                     // beginPointLabel is already bound
-                    if (board.onBoard(exprBeginPoint)) {
-                        Point boardEndPoint = board.outgoing(exprBeginPoint, bp.bondName);
-                        Point exprEndPoint = bondLabel.get(bp.endPointLabel);
-                        if (exprEndPoint == null) {
-                            if (excluded && boardEndPoint != null) {
+                    int bx = ctx.x(bp.beginLabel), by = ctx.y(bp.beginLabel);
+                    if (board.onBoard(bx, by)) {
+                        int boardBond = board.outgoingBond(bx, by, bp.bondId); // from the begin point to the board's end point
+                        if (!ctx.isBound(bp.endLabel)) {
+                            if (excluded && boardBond != 0) {
                                 System.err.println("Excluding " + verb + " due to " + bp.bondName);
                                 return false;
                             }
-                            if (required && boardEndPoint == null)
+                            if (required && boardBond == 0)
                                 return false;
-                            if (boardEndPoint != null)
-                                bondLabel.put(bp.endPointLabel, boardEndPoint);
+                            if (boardBond != 0)
+                                ctx.bind(bp.endLabel, bx + Bonds.dx(boardBond), by + Bonds.dy(boardBond));
                         }
                         else {
-                            if (board.onBoard(exprEndPoint)) {
+                            int ex = ctx.x(bp.endLabel), ey = ctx.y(bp.endLabel);
+                            if (board.onBoard(ex, ey)) {
                                 // check that the bond on the board is consistent with the bound labels in the bond expression
-                                Point boardBeginPoint = board.incomingCoord(exprEndPoint, bp.bondName);
-                                boolean exprMatchesBoard = exprEndPoint.equals(boardEndPoint) && exprBeginPoint.equals(boardBeginPoint);
+                                int backBond = board.incomingBond(ex, ey, bp.bondId);
+                                boolean exprMatchesBoard = boardBond != 0 && backBond != 0 && ex == bx + Bonds.dx(boardBond) && ey == by + Bonds.dy(boardBond) && bx == ex + Bonds.dx(backBond) && by == ey + Bonds.dy(backBond);
                                 if (required && !exprMatchesBoard)
                                     return false;
                                 if (excluded && exprMatchesBoard)
@@ -142,8 +137,17 @@ public class UpdateEvent {
         return true;
     }
 
-    public Point getSourceCoords() {
-        return sourceCoords;
+    // bondLabelsWithin: test if all on-board cells bound by bindBonds(), and their outgoing bond partners (which energyDelta also reads),
+    // lie within the rectangle [x0,x1) * [y0,y1).
+    // used by parallel Board updates to check that an event only touches cells its tile owns
+    public boolean bondLabelsWithin(Board board, EventContext ctx, int x0, int y0, int x1, int y1) {
+        for (int l = 0; l < ctx.labels(); ++l)
+            if (ctx.isBound(l)) {
+                int x = ctx.x(l), y = ctx.y(l);
+                if (board.onBoard(x, y) && (x < x0 || x >= x1 || y < y0 || y >= y1 || !board.outgoingWithin(x, y, x0, y0, x1, y1)))
+                    return false;
+            }
+        return true;
     }
 
     public Particle getSource() {
@@ -170,77 +174,71 @@ public class UpdateEvent {
         return pattern;
     }
 
-    private HashMap<String, Point> getHashMap(String label, boolean begin, String ignoreLabel) {
-        HashMap<String, Point> bondDir = null;
-
-        if (bondLabel != null) {
-            Vector<BondPattern> rhsBond = pattern.rhsBond;
-            if (rhsBond != null) {
-                Point coords = bondLabel.get(label);
-                for (int n = 0; n < rhsBond.size(); ++n) {
-                    BondPattern bp = rhsBond.get(n);
-                    String bpLabel = begin ? bp.beginPointLabel : bp.endPointLabel;
-                    if (bondLabel.get(bpLabel) != null && bondLabel.get(bpLabel).equals(coords)) {
-                        String otherLabel = begin ? bp.endPointLabel : bp.beginPointLabel;
-                        if (bondLabel.get(otherLabel) != null && !otherLabel.equals(ignoreLabel)) {
-                            Point otherCoords = bondLabel.get(otherLabel);
-                            if (bondDir == null)
-                                bondDir = new HashMap<String, Point>();
-                            bondDir.put(bp.bondName, otherCoords.subtract(coords));
-                        }
-                    }
+    // getBonds: fill dest with the RHS bonds that begin (or end) at the cell bound to label, as packed bonds (see Bonds)
+    private void getBonds(EventContext ctx, BondList dest, int label, boolean begin, int ignoreLabel) {
+        Vector<BondPattern> rhsBond = pattern.rhsBond;
+        if (rhsBond != null) {
+            for (int n = 0; n < rhsBond.size(); ++n) {
+                BondPattern bp = rhsBond.get(n);
+                int bpLabel = begin ? bp.beginLabel : bp.endLabel;
+                if (ctx.sameCell(bpLabel, label)) {
+                    int otherLabel = begin ? bp.endLabel : bp.beginLabel;
+                    if (ctx.isBound(otherLabel) && otherLabel != ignoreLabel)
+                        dest.put(Bonds.pack(bp.bondId, ctx.x(otherLabel) - ctx.x(label), ctx.y(otherLabel) - ctx.y(label)));
                 }
             }
         }
-        return bondDir;
     }
 
-    // helpers
-    public double energyDelta(Board board) {
+    // helpers (these must be called after bindBonds, with the same EventContext)
+    public double energyDelta(Board board, EventContext ctx) {
+        Point sourceCoords = ctx.sourceCoords, targetCoords = ctx.targetCoords;
         double oldEnergy = 0, newEnergy = 0;
-        boolean sourceChanged = sourceCoords != null && board.onBoard(sourceCoords) && !keepsSourceBonds();
-        boolean targetChanged = targetCoords != null && board.onBoard(targetCoords) && !keepsTargetBonds();
+        boolean sourceChanged = sourceCoords != null && board.onBoard(sourceCoords) && !keepsSourceBonds(ctx);
+        boolean targetChanged = targetCoords != null && board.onBoard(targetCoords) && !keepsTargetBonds(ctx);
         if (sourceChanged && targetChanged) {
             oldEnergy = board.bondEnergy(sourceCoords, targetCoords);
-            newEnergy = board.bondEnergy(sourceCoords, targetCoords, source, target, sIncoming, sOutgoing, tIncoming, tOutgoing);
+            newEnergy = board.bondEnergy(sourceCoords, targetCoords, source, target, ctx.sIncoming, ctx.sOutgoing, ctx.tIncoming, ctx.tOutgoing);
         }
         else if (sourceChanged && !targetChanged) {
             oldEnergy = board.bondEnergy(sourceCoords);
-            newEnergy = board.bondEnergy(sourceCoords, source, sIncoming, sOutgoing);
+            newEnergy = board.bondEnergy(sourceCoords, source, ctx.sIncoming, ctx.sOutgoing);
         }
         else if (!sourceChanged && targetChanged) {
             oldEnergy = board.bondEnergy(targetCoords);
-            newEnergy = board.bondEnergy(targetCoords, target, tIncoming, tOutgoing);
+            newEnergy = board.bondEnergy(targetCoords, target, ctx.tIncoming, ctx.tOutgoing);
         }
 
         return newEnergy - oldEnergy;
     }
 
-    public void write(Board board) {
+    public void write(Board board, EventContext ctx) {
+        Point sourceCoords = ctx.sourceCoords, targetCoords = ctx.targetCoords;
         boolean sourceOnBoard = sourceCoords != null && board.onBoard(sourceCoords);
         boolean targetOnBoard = targetCoords != null && board.onBoard(targetCoords);
-        if (targetOnBoard && !keepsTargetBonds())
+        if (targetOnBoard && !keepsTargetBonds(ctx))
             board.removeBonds(targetCoords);
         if (sourceOnBoard) {
-            if (!keepsSourceBonds())
+            if (!keepsSourceBonds(ctx))
                 board.removeBonds(sourceCoords);
             board.writeCell(sourceCoords, source);
-            board.addIncoming(sourceCoords, sIncoming);
-            board.addOutgoing(sourceCoords, sOutgoing);
+            board.addIncoming(sourceCoords, ctx.sIncoming);
+            board.addOutgoing(sourceCoords, ctx.sOutgoing);
         }
         if (targetOnBoard) {
             board.writeCell(targetCoords, target);
-            board.addIncoming(targetCoords, tIncoming);
-            board.addOutgoing(targetCoords, tOutgoing);
+            board.addIncoming(targetCoords, ctx.tIncoming);
+            board.addOutgoing(targetCoords, ctx.tOutgoing);
         }
     }
 
-    public String writeAndLog(Board board) {
+    public String writeAndLog(Board board, EventContext ctx) {
+        Point sourceCoords = ctx.sourceCoords, targetCoords = ctx.targetCoords;
         String oldSourceDesc = board.singleNeighborhoodDescription(sourceCoords, true);
         String oldTargetDesc = board.singleNeighborhoodDescription(targetCoords, true);
         double oldEnergy = board.bondEnergy(sourceCoords, targetCoords);
 
-        write(board);
+        write(board, ctx);
 
         String newSourceDesc = board.singleNeighborhoodDescription(sourceCoords, true);
         String newTargetDesc = board.singleNeighborhoodDescription(targetCoords, true);
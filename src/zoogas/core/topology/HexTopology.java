@@ -1,26 +1,26 @@
 package zoogas.core.topology;
 
+import zoogas.core.Coord;
 import zoogas.core.Point;
 
 public class HexTopology extends Topology {
-    // method to sample a random neighbor of a given cell, returning the directional index
-    final public int getNeighbor(Point p, Point n, int ni) {
-        n.x = p.x;
-        n.y = p.y;
-        int k = p.y & 1;
+    // method to get a given neighbor of a given cell, as packed coordinates
+    final public int getNeighbor(int c, int ni) {
+        int x = Coord.x(c), y = Coord.y(c);
+        int k = y & 1;
         if (ni < 2) {
-            n.x += k;
-            --n.y;
+            x += k;
+            --y;
         }
         else if (ni == 3 || ni == 4) {
-            n.x += k;
-            ++n.y;
+            x += k;
+            ++y;
         }
         if (ni == 0 || ni >= 4)
-            --n.x;
+            --x;
         else if (ni == 2)
-            ++n.x;
-        return ni;
+            ++x;
+        return Coord.pack(x, y);
     }
 
     // number of neighbors of any cell (some may be off-board and therefore inaccessible)
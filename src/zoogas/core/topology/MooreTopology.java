@@ -1,21 +1,21 @@
 package zoogas.core.topology;
 
+import zoogas.core.Coord;
 import zoogas.core.Point;
 
 public class MooreTopology extends Topology {
-    // method to get a given neighbor of a given cell, returning the directional index
-    final public int getNeighbor(Point p, Point n, int ni) {
-        n.x = p.x;
-        n.y = p.y;
+    // method to get a given neighbor of a given cell, as packed coordinates
+    final public int getNeighbor(int c, int ni) {
+        int x = Coord.x(c), y = Coord.y(c);
         if (ni < 3)
-            --n.y;
+            --y;
         else if (ni >= 4 && ni <= 6)
-            ++n.y;
+            ++y;
         if (ni == 0 || ni >= 6)
-            --n.x;
+            --x;
         else if (ni >= 2 && ni <= 4)
-            ++n.x;
-        return ni;
+            ++x;
+        return Coord.pack(x, y);
     }
 
     // number of neighbors of any cell (some may be off-board and therefore inaccessible)
@@ -1,11 +1,19 @@
 package zoogas.core.topology;
 
+import zoogas.core.Coord;
 import zoogas.core.Point;
 
 public abstract class Topology {
-    public abstract int getNeighbor(Point p, Point n, int ni);
+    // getNeighbor: the packed coordinates (see Coord) of neighbor ni of the cell with packed coordinates c
+    public abstract int getNeighbor(int c, int ni);
     public abstract int neighborhoodSize();
 
+    // wrapper for getNeighbor that places the coordinates of the neighbor in n, returning the directional index
+    public final int getNeighbor(Point p, Point n, int ni) {
+        Coord.unpack(getNeighbor(Coord.pack(p.x, p.y), ni), n);
+        return ni;
+    }
+
     public abstract String dirString(int dir);
     public abstract Point getGraphicsCoords(Point pCell, int pixelsPerCell);
     public abstract void getCellCoords(java.awt.Point pGraphics, Point pCell, int pixelsPerCell);
@@ -1,20 +1,20 @@
 package zoogas.core.topology;
 
+import zoogas.core.Coord;
 import zoogas.core.Point;
 
 public class VonNeumannTopology extends Topology {
-    // method to sample a random neighbor of a given cell, returning the directional index
-    final public int getNeighbor(Point p, Point n, int ni) {
-        n.x = p.x;
-        n.y = p.y;
+    // method to get a given neighbor of a given cell, as packed coordinates
+    final public int getNeighbor(int c, int ni) {
+        int x = Coord.x(c), y = Coord.y(c);
         int delta = (ni & 2) == 0 ? -1 : +1;
         if ((ni & 1) == 0) {
-            n.y += delta;
+            y += delta;
         }
         else {
-            n.x -= delta;
+            x -= delta;
         }
-        return ni;
+        return Coord.pack(x, y);
     }
 
     // number of neighbors of any cell (some may be off-board and therefore inaccessible)
@@ -3,12 +3,15 @@ package zoogas.gui;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
 
+import javax.swing.JComponent;
+
 import zoogas.core.Point;
 import zoogas.core.rules.UpdateEvent;
 
 public abstract class BoardRenderer {
+    // the Points passed to drawCell and showVerb are reused by the Board's update loop, so implementations must copy any they keep
     public abstract void drawCell(Point p);
-    public abstract void showVerb(UpdateEvent updateEvent);
+    public abstract void showVerb(UpdateEvent updateEvent, Point sourceCoords);
 
     protected int pixelsPerCell = 4; // width & height of each cell in pixels
     protected BufferedImage image;
@@ -32,4 +35,9 @@ public abstract class BoardRenderer {
     public BufferedImage getImage() {
         return image;
     }
+
+    // repaintDirty: ask Swing to repaint the parts of a component showing cells drawn since the last call. By default, that is all of it
+    public void repaintDirty(JComponent c) {
+        c.repaint();
+    }
 }
@@ -0,0 +1,108 @@
+package zoogas.gui;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import zoogas.core.Board;
+import zoogas.core.BondList;
+import zoogas.core.Bonds;
+import zoogas.core.BondRegistry;
+import zoogas.core.Point;
+
+// BondOverlay: the bonds on a Board, drawn as lines into a cached transparent layer.
+// The layer is divided into square tiles of tileSize cells; each time it is drawn, only the tiles that bonds changed in
+// (according to the Board's BondRegistry) are cleared and redrawn, from the cells with outgoing bonds that can reach them.
+// Each bond name gets its own color.
+public class BondOverlay {
+    public static int tileSize = 16; // width & height, in cells, of the regions of the layer that are redrawn
+
+    public BondOverlay(Board board, int pixelsPerCell) {
+        this.board = board;
+        this.registry = board.getBondRegistry();
+        this.pixelsPerCell = pixelsPerCell;
+        tilesPerSide = (board.size + tileSize - 1) / tileSize;
+        layer = new BufferedImage(board.size * pixelsPerCell, board.size * pixelsPerCell, BufferedImage.TYPE_INT_ARGB);
+        dirtyTiles.set(0, tilesPerSide * tilesPerSide); // draw everything the first time
+    }
+
+    // data
+    private Board board;
+    private BondRegistry registry;
+    private int pixelsPerCell, tilesPerSide;
+    private BufferedImage layer;
+    private BitSet dirtyTiles = new BitSet();
+    private int[] changed = null; // scratch space for draining the registry
+    private BondList bonds = new BondList(); // scratch space for reading a cell's bonds
+    private Map<String, Color> bondColor = new HashMap<String, Color>();
+
+    // draw: bring the layer up to date, and draw it
+    public void draw(Graphics g) {
+        update();
+        g.drawImage(layer, 0, 0, null);
+    }
+
+    // update: redraw the tiles containing (or within reach of) cells whose outgoing bonds have changed
+    public void update() {
+        int reach = registry.getMaxReach();
+        changed = registry.drainChanged(changed);
+        for (int i = 1; i <= changed[0]; ++i) {
+            int x = board.cellX(changed[i]), y = board.cellY(changed[i]);
+            markTiles(x - reach, y - reach, x + reach, y + reach);
+        }
+        if (dirtyTiles.isEmpty())
+            return;
+
+        Graphics2D g = layer.createGraphics();
+        for (int t = dirtyTiles.nextSetBit(0); t >= 0; t = dirtyTiles.nextSetBit(t + 1))
+            redrawTile(g, t % tilesPerSide, t / tilesPerSide, reach);
+        g.dispose();
+        dirtyTiles.clear();
+    }
+
+    // redrawTile: clear a tile, and draw every bond that starts within reach of it, clipped to the tile
+    private void redrawTile(Graphics2D g, int tx, int ty, int reach) {
+        int x0 = tx * tileSize, y0 = ty * tileSize, tilePixels = tileSize * pixelsPerCell;
+        g.setClip(x0 * pixelsPerCell, y0 * pixelsPerCell, tilePixels, tilePixels);
+        Composite composite = g.getComposite();
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(x0 * pixelsPerCell, y0 * pixelsPerCell, tilePixels, tilePixels);
+        g.setComposite(composite);
+
+        int k = pixelsPerCell >> 1;
+        Point p = new Point();
+        for (p.y = Math.max(0, y0 - reach); p.y < Math.min(board.size, y0 + tileSize + reach); ++p.y)
+            for (p.x = Math.max(0, x0 - reach); p.x < Math.min(board.size, x0 + tileSize + reach); ++p.x)
+                if (registry.isBonded(p.y * board.size + p.x)) {
+                    board.outgoing(p, bonds);
+                    for (int i = 0; i < bonds.size(); ++i) {
+                        int b = bonds.get(i);
+                        g.setColor(getBondColor(Bonds.name(Bonds.idOf(b))));
+                        g.drawLine(p.x * pixelsPerCell + k, p.y * pixelsPerCell + k, (p.x + Bonds.dx(b)) * pixelsPerCell + k, (p.y + Bonds.dy(b)) * pixelsPerCell + k);
+                    }
+                }
+    }
+
+    private void markTiles(int x0, int y0, int x1, int y1) {
+        int tx0 = Math.max(0, x0) / tileSize, ty0 = Math.max(0, y0) / tileSize;
+        int tx1 = Math.min(board.size - 1, x1) / tileSize, ty1 = Math.min(board.size - 1, y1) / tileSize;
+        for (int ty = ty0; ty <= ty1; ++ty)
+            dirtyTiles.set(ty * tilesPerSide + tx0, ty * tilesPerSide + tx1 + 1);
+    }
+
+    private Color getBondColor(String bond) {
+        Color c = bondColor.get(bond);
+        if (c == null) {
+            c = Color.getHSBColor((bond.hashCode() & 0xffff) / 65536f, .8f, 1f);
+            bondColor.put(bond, c);
+        }
+        return c;
+    }
+}
@@ -0,0 +1,13 @@
+package zoogas.gui;
+
+import zoogas.core.Point;
+import zoogas.core.rules.UpdateEvent;
+
+// NullRenderer: a BoardRenderer that draws nothing, for headless runs
+public class NullRenderer extends BoardRenderer {
+    public void drawCell(Point p) {
+    }
+
+    public void showVerb(UpdateEvent updateEvent, Point sourceCoords) {
+    }
+}
@@ -66,11 +66,16 @@ public class ObserverRenderer extends BoardRenderer {
         Point q = getGraphicsCoords(p);
         bfGraphics.fillRect(q.x, q.y, pixelsPerCell, pixelsPerCell);
     }
+    // setCell: color one cell of an observed board (as decoded from an ObserverStream)
+    public void setCell(int x, int y, int rgb) {
+        if (x * pixelsPerCell < image.getWidth() && y * pixelsPerCell < image.getHeight())
+            image.setRGB(x * pixelsPerCell, y * pixelsPerCell, rgb);
+    }
     public void clear() {
         image = new BufferedImage(pixelsPerSide, pixelsPerSide, BufferedImage.TYPE_4BYTE_ABGR); // TODO: can this be replaced with 3BYTE_BGR?
     }
 
-    public void showVerb(UpdateEvent updateEvent) {
+    public void showVerb(UpdateEvent updateEvent, Point sourceCoords) {
         return;
     }
 }
@@ -1,49 +1,101 @@
 package zoogas.gui;
 
-import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import java.util.Arrays;
+
+import javax.swing.JComponent;
 
 import zoogas.ZooGas;
 
 import zoogas.core.Board;
+import zoogas.core.DirtyCellSet;
+import zoogas.core.Particle;
 import zoogas.core.Point;
 import zoogas.core.rules.UpdateEvent;
 
+// PlayerRenderer: draws the Board by writing packed RGB ints straight into the image's pixel array.
+// drawCell may be called from the parallel Board tiles at once: each cell's pixels belong to that cell,
+// and the square tiles of tileSize cells that have been drawn since the last repaint are marked in a DirtyCellSet,
+// so that repaintDirty only asks Swing to repaint those tiles.
 public class PlayerRenderer extends BoardRenderer {
     static double balloonRate = .0001; // probability that any given update verb will be printed in a speech balloon (TODO: make this a rule-specific parameter)
+    public static int tileSize = 16; // width & height, in cells, of the regions passed to Swing for repainting
 
     public PlayerRenderer(Board board, int size) {
-        this.board = board;
-        int pixelsPerSide = getBoardSize(size);
-
-        image = new BufferedImage(pixelsPerSide, pixelsPerSide, BufferedImage.TYPE_3BYTE_BGR);
-        bfGraphics = image.createGraphics();
+        this(null, board, size);
     }
     public PlayerRenderer(ZooGas gas, Board board, int size) {
         this.board = board;
         this.gas = gas;
-        int pixelsPerSide = getBoardSize(size);
+        pixelsPerSide = getBoardSize(size);
 
-        image = new BufferedImage(pixelsPerSide, pixelsPerSide, BufferedImage.TYPE_3BYTE_BGR);
-        bfGraphics = image.createGraphics();
+        image = new BufferedImage(pixelsPerSide, pixelsPerSide, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+
+        tilesPerSide = (size + tileSize - 1) / tileSize;
+        dirtyTiles = new DirtyCellSet(tilesPerSide * tilesPerSide);
     }
 
     ZooGas gas; // TODO: remove this temp object
     public Board board;
-    Graphics bfGraphics;
+
+    // raster
+    private int pixelsPerSide;
+    private int[] pixels; // the image's pixels, row by row
+    private volatile int[] rgbById = new int[0]; // cached Particle colors, by Particle id; 0 (transparent) if not yet cached
+
+    // dirty tiles
+    private int tilesPerSide;
+    private DirtyCellSet dirtyTiles;
+    private int[] dirty = null; // scratch space for draining dirtyTiles (only used by repaintDirty)
 
     // BoardRenderer methods
     public void drawCell(Point p) {
-        bfGraphics.setColor(board.readCell(p).color);
-        Point q = getGraphicsCoords(p);
-        bfGraphics.fillRect(q.x, q.y, pixelsPerCell, pixelsPerCell);
+        int rgb = rgb(board.readCell(p));
+        int x0 = p.x * pixelsPerCell, y0 = p.y * pixelsPerCell;
+        for (int row = y0 * pixelsPerSide + x0, end = row + pixelsPerCell * pixelsPerSide; row < end; row += pixelsPerSide)
+            Arrays.fill(pixels, row, row + pixelsPerCell, rgb);
+        dirtyTiles.mark((p.y / tileSize) * tilesPerSide + p.x / tileSize);
+    }
+
+    // repaintDirty: ask Swing to repaint the tiles drawn since the last call (runs of adjacent tiles in a row are passed as one rectangle)
+    public void repaintDirty(JComponent c) {
+        dirty = dirtyTiles.drain(dirty);
+        int tilePixels = tileSize * pixelsPerCell;
+        for (int i = 1; i <= dirty[0]; ) {
+            int first = dirty[i], last = first;
+            while (++i <= dirty[0] && dirty[i] == last + 1 && dirty[i] % tilesPerSide != 0)
+                last = dirty[i];
+            c.repaint((first % tilesPerSide) * tilePixels, (first / tilesPerSide) * tilePixels, (last - first + 1) * tilePixels, tilePixels);
+        }
+    }
+
+    // rgb: a Particle's color, from the cache if possible
+    private final int rgb(Particle pc) {
+        int[] cache = rgbById;
+        int id = pc.getId();
+        if (id < cache.length && cache[id] != 0)
+            return cache[id];
+        return cacheRGB(pc);
+    }
+
+    private synchronized int cacheRGB(Particle pc) {
+        int id = pc.getId();
+        int rgb = pc.color.getRGB() | 0xff000000;
+        if (id >= rgbById.length)
+            rgbById = Arrays.copyOf(rgbById, Math.max(2 * rgbById.length, id + 1));
+        rgbById[id] = rgb;
+        return rgb;
     }
 
     /**
      * Store the verbs in the verb history
      * @param updateEvent
+     * @param sourceCoords
      */
-    public void showVerb(UpdateEvent updateEvent) {
+    public void showVerb(UpdateEvent updateEvent, Point sourceCoords) {
         double showBalloonProbability = balloonRate / updateEvent.getPattern().getProbability();
         if (gas.getNumVerbsSinceLastRefresh() == 0) {
             if (gas.isCheatPressed() || updateEvent.visibleVerb().length() > 0) {
@@ -58,7 +110,7 @@ public class PlayerRenderer extends BoardRenderer {
                     gas.verbHistoryPos = (gas.verbHistoryPos + 1) % gas.getVerbHistoryLength();
                     gas.verbHistory[gas.verbHistoryPos] = updateEvent.getVerb();
                     gas.particleHistory[gas.verbHistoryPos] = updateEvent.getOldSource();
-                    gas.placeHistory[gas.verbHistoryPos] = updateEvent.getSourceCoords();
+                    gas.placeHistory[gas.verbHistoryPos] = new Point(sourceCoords);
                     gas.verbHistoryAge[gas.verbHistoryPos] = 0;
                     ++gas.verbsSinceLastRefresh;
                 }
@@ -0,0 +1,57 @@
+package zoogas.network;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// BufferPool: a thread-safe pool of heap ByteBuffers in power-of-two size classes, for network frames.
+// Buffers larger than the biggest class are allocated on demand and not pooled.
+public class BufferPool {
+    static final int minClass = 8, maxClass = 20; // 256 bytes to 1 MB
+    public static int maxPooledPerClass = 64;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCount;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool() {
+        free = new ConcurrentLinkedQueue[maxClass + 1];
+        freeCount = new AtomicInteger[maxClass + 1];
+        for (int c = minClass; c <= maxClass; ++c) {
+            free[c] = new ConcurrentLinkedQueue<ByteBuffer>();
+            freeCount[c] = new AtomicInteger();
+        }
+    }
+
+    // acquire: returns a cleared buffer with room for at least the given number of bytes
+    public ByteBuffer acquire(int bytes) {
+        int c = sizeClass(bytes);
+        if (c > maxClass)
+            return ByteBuffer.allocate(bytes);
+        ByteBuffer buf = free[c].poll();
+        if (buf == null)
+            return ByteBuffer.allocate(1 << c);
+        freeCount[c].decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    // release: return a buffer to the pool; the caller must not use it again
+    public void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if (Integer.bitCount(capacity) != 1)
+            return;
+        int c = Integer.numberOfTrailingZeros(capacity);
+        if (c < minClass || c > maxClass)
+            return;
+        if (freeCount[c].incrementAndGet() <= maxPooledPerClass)
+            free[c].add(buf);
+        else
+            freeCount[c].decrementAndGet();
+    }
+
+    private static int sizeClass(int bytes) {
+        return Math.max(minClass, 32 - Integer.numberOfLeadingZeros(Math.max(bytes, 1) - 1));
+    }
+}
@@ -1,7 +1,5 @@
 package zoogas.network;
 
-import java.awt.Color;
-
 import java.io.IOException;
 
 import java.net.InetAddress;
@@ -13,18 +11,26 @@ import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.SocketChannel;
 
 import java.util.ArrayList;
-
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
-
 import java.util.SortedSet;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import java.util.zip.DataFormatException;
+
 import zoogas.Loader;
 import zoogas.ZooGas;
 
-import zoogas.core.Particle;
+import zoogas.core.Board;
+import zoogas.core.DirtyCellSet;
 import zoogas.core.Point;
 import zoogas.core.rules.RuleSet;
 
@@ -42,38 +48,72 @@ public class ClientToServer extends NetworkThread {
         start();
     }
 
+    // run: read frames from the (blocking) server connection, and handle them on this thread
     public void run() {
+        FrameReader reader = new FrameReader(bufferPool);
         try {
             while (true) {
-                if (serverSocket != null && serverSocket.isConnected()) {
-                    ByteBuffer bb = ByteBuffer.allocate(allocateBufferSize);
-                    if (serverSocket.read(bb) != 0) {
+                SocketChannel channel = serverSocket;
+                if (channel == null || !channel.isConnected()) {
+                    Thread.sleep(100);
+                    continue;
+                }
+                try {
+                    ByteBuffer bb = reader.read(channel);
+                    if (bb != null) {
                         processPacket(bb);
+                        bufferPool.release(bb);
                     }
                 }
-
-                Thread.sleep(100);
+                catch (AsynchronousCloseException e) {
+                    // connectToWorld closed this connection to open a new one
+                    reader = new FrameReader(bufferPool);
+                }
+                catch (IOException e) {
+                    // includes EOFException when the server closes the connection
+                    System.err.println("ClientToServer: lost connection to server: " + e);
+                    try {
+                        channel.close();
+                    }
+                    catch (IOException closeError) {
+                    }
+                    if (serverSocket == channel) {
+                        serverSocket = null;
+                        state = ConnectionState.NOT_CONNECTED;
+                        if (loader != null) {
+                            loader.setMessage("Disconnected from server");
+                            loader.setConnected(false);
+                        }
+                    }
+                    reader = new FrameReader(bufferPool);
+                }
             }
-            // Warning: this loop will never exit if the server is in blocking mode
-
-            //dispose();
         }
         catch (InterruptedException e) {
             e.printStackTrace();
         }
-        catch (AsynchronousCloseException e) {
-            e.printStackTrace();
-        }
         catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    SocketChannel serverSocket = null;
+    volatile SocketChannel serverSocket = null;
     private ZooGas gas = null;
     private Loader loader = null;
     private ConnectionState state = ConnectionState.NOT_CONNECTED;
 
+    // observer feed, when playing: our board's colors, and the cells written since the last delta
+    public static long streamInterval = 200; // milliseconds between deltas
+    private ObserverStream stream = null;
+    private DirtyCellSet dirtyCells = null;
+    private int[] dirty = null;
+    private ScheduledExecutorService streamer = null;
+
+    // observer feed, when observing (only used by this thread, apart from subscribed)
+    private Map<Point, ObserverStream> observed = new HashMap<Point, ObserverStream>();
+    private Set<Point> subscribed = Collections.newSetFromMap(new ConcurrentHashMap<Point, Boolean>());
+    private int[] observedChanges = null;
+
     private enum ConnectionState {
         NOT_CONNECTED,
         OBSERVING;
@@ -110,51 +150,22 @@ public class ClientToServer extends NetworkThread {
                 serverSocket.close();
                 serverSocket = null;
             }
+            subscribed.clear();
 
-            // Connect to server
+            // Connect to server (all clients share one port; the server sends the grid size and current players straight away)
             serverAddress = InetAddress.getLocalHost().getHostAddress(); // TODO: replace with real server
             loader.setMessage("Connecting to server at " + serverAddress + "...");
-            SocketChannel ssTemp = SocketChannel.open();
             InetSocketAddress connectionToWorld = new InetSocketAddress(serverAddress, WorldServer.newConnectionPort); // must use address string version of constructor
-            ssTemp.socket().setSoTimeout(10000);
-            ssTemp.configureBlocking(true);
-            ssTemp.connect(connectionToWorld);
-            ssTemp.configureBlocking(false);
-
-            // read out dedicated port
-            ByteBuffer bb = ByteBuffer.allocate(4);
-            loader.setMessage("Establishing connection to " + serverAddress);
-            int response = ssTemp.read(bb);
-            while (response == 0) {
-                response = ssTemp.read(bb);
-            }
-            ssTemp.close();
-            if (response == -1) {
-                loader.setMessage("Server unavailable");
-                return;
-            }
-
-            bb.flip();
-            int newPort = bb.getInt();
-            if (newPort == CONNECTIONS_FULL) {
-                loader.setMessage("Connections to server are full");
-            }
-            else {
-                // connect on new port
-                connectionToWorld = new InetSocketAddress(serverAddress, newPort);
-                serverSocket = SocketChannel.open();
-                serverSocket.socket().setSoTimeout(1000);
-                serverSocket.configureBlocking(true);
-                serverSocket.connect(connectionToWorld);
-                while (!serverSocket.finishConnect()) {
-                    Thread.sleep(100);
-                }
-                serverSocket.configureBlocking(false);
-
-                loader.setMessage("Connected to " + serverAddress + ":" + newPort);
-                state = ConnectionState.OBSERVING;
-                loader.setConnected(true);
-            }
+            SocketChannel channel = SocketChannel.open();
+            channel.socket().setSoTimeout(10000);
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(true);
+            channel.connect(connectionToWorld);
+            serverSocket = channel;
+
+            loader.setMessage("Connected to " + serverAddress + ":" + WorldServer.newConnectionPort);
+            state = ConnectionState.OBSERVING;
+            loader.setConnected(true);
         }
         catch (SocketTimeoutException ste) {
             loader.setMessage("Connection timed out");
@@ -191,16 +202,17 @@ public class ClientToServer extends NetworkThread {
                         handleSetSize(parameters.toArray());
                         break;
                     case LAUNCH:
-                        handleLaunch();
+                        handleLaunch(parameters.toArray());
                         break;
                     case CURRENT_CLIENTS:
                         handleGetPlayerLocs(bb, parameters.toArray());
                         break;
                     case REQUEST_PARTICLES:
-                        handleSendParticles();
+                        handleRequestParticles();
                         break;
-                    case SEND_PARTICLES:
-                        handleClientParticles(bb, parameters.toArray());
+                    case KEYFRAME:
+                    case DELTA:
+                        handleObserverFrame(command, bb, parameters.toArray());
                         break;
                     case CONNECT_PEER:
                         handleConnectPeer(bb, parameters.toArray());
@@ -253,97 +265,77 @@ public class ClientToServer extends NetworkThread {
         verifyAndSend(bb, cmd, serverSocket);
     }
 
-    public void sendParticles() {
-        final packetCommand cmd = packetCommand.SEND_PARTICLES;
-
-        /*HashMap<Particle, Integer> numParts = new HashMap<Particle, Integer>();
-        int byteSize = 4;
-        for(Particle p : gas.board.nameToParticle.values()) {
-            int size = p.getOccupiedPoints().size();
-            if(size > 0 && !"_".equals(p.name)) {
-                //byteSize += 1 + p.name.getBytes().length; // name
-                byteSize += 3; // color
-                byteSize += 4; // int storing the number of particles
-                numParts.put(p, size);
-                byteSize += (4 + 4) * size; // x,y coordinates
+    // sendKeyframe: start (or restart) streaming our board to the server: a keyframe now, and then a delta every streamInterval ms
+    public void sendKeyframe() {
+        Board board = gas.getBoard();
+        if (board == null)
+            return; // the server asks again at its next keep-alive
+        synchronized (this) {
+            if (stream == null || stream.getWidth() != board.size) {
+                dirtyCells = board.getDirtyCells();
+                stream = new ObserverStream(board.size, board.size);
             }
-        }*/
-
-        HashMap<Integer, Integer> numParts = new HashMap<Integer, Integer>();
-        HashMap<Integer, List<Particle>> colors = new HashMap<Integer, List<Particle>>();
-        int byteSize = 4;
-        for (Particle p : gas.getBoard().getNameToParticleMap().values()) {
-            int size = p.getOccupiedPoints().size();
-            if (size > 0 && !"_".equals(p.name)) {
-                //byteSize += 1 + p.name.getBytes().length; // name
-
-                int c = p.color.getRGB();
-                if (!colors.containsKey(c)) {
-                    byteSize += 4; // color, but only if this color is not already present
-                    colors.put(c, new ArrayList<Particle>());
-                    numParts.put(c, 0);
-                }
-                colors.get(c).add(p);
-
-                numParts.put(c, numParts.get(c) + size);
-
-                byteSize += 4; // int storing the number of particles
-                byteSize += (4 + 4) * size; // x,y coordinates
+            synchronized (stream) {
+                dirty = dirtyCells.drain(dirty); // everything is in the keyframe
+                for (int i = 0; i < board.size * board.size; ++i)
+                    stream.set(i, board.getCellRGB(i));
+                verifyAndSend(stream.keyframe(0, 0), packetCommand.KEYFRAME, serverSocket); // the server fills in our grid location
+            }
+            if (streamer == null) {
+                streamer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "ObserverStreamer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                streamer.scheduleWithFixedDelay(new Runnable() {
+                        public void run() {
+                            sendDelta();
+                        }
+                    }, streamInterval, streamInterval, TimeUnit.MILLISECONDS);
             }
         }
+    }
 
-        ByteBuffer bb = prepareBuffer(cmd, byteSize);
-        bb.putInt(numParts.size());
-        for (Integer c : colors.keySet()) {
-            //writeStringToBuffer(bb, p.name);
-
-            //bb.put((byte)(c & 0xFF));
-            //bb.put((byte)((c & 0xFF00) >> 8));
-            //bb.put((byte)((c & 0xFF0000) >> 16));
-            bb.putInt(c);
-
-            bb.putInt(numParts.get(c));
-            for (Particle p : colors.get(c)) {
-                Set<Point> occupied = p.getOccupiedPoints();
-                synchronized (occupied) {
-                    int count = 0;
-                    for (Point point : occupied) {
-                        if (count >= numParts.get(c))
-                            break;
-
-                        bb.putInt(point.x);
-                        bb.putInt(point.y);
-                        ++count;
-                    }
-                    //System.err.println(count + " of " +  numParts.get(p) + " " + p.name + " sent");
-                }
+    // sendDelta: send the cells whose color has changed since the last frame, if any
+    private void sendDelta() {
+        Board board = gas.getBoard();
+        ObserverStream s = stream;
+        if (board == null || s == null || serverSocket == null)
+            return;
+        try {
+            synchronized (s) {
+                dirty = dirtyCells.drain(dirty);
+                for (int i = 1; i <= dirty[0]; ++i)
+                    s.set(dirty[i], board.getCellRGB(dirty[i]));
+                if (s.hasDelta())
+                    verifyAndSend(s.delta(0, 0), packetCommand.DELTA, serverSocket);
             }
         }
-
-        verifyAndSend(bb, cmd, serverSocket);
+        catch (RuntimeException e) {
+            e.printStackTrace(); // keep the streamer running
+        }
     }
 
-    /**
-     * Updates the currently observed board at Point obs
-     */
-    public void sendRefreshObserved(Point obs) {
-        final packetCommand cmd = packetCommand.REFRESH_OBSERVED;
+    // sendObserve: subscribe to the board at grid location obs; the server answers with a keyframe, then streams deltas
+    public void sendObserve(Point obs) {
+        final packetCommand cmd = packetCommand.OBSERVE;
         ByteBuffer bb = prepareBuffer(cmd);
         bb.putInt(obs.x);
         bb.putInt(obs.y);
-        System.out.println("Asking world server for " + obs);
-        verifyAndSend(bb, cmd, serverSocket, true);
+        verifyAndSend(bb, cmd, serverSocket);
     }
-    public void sendRefreshObserved() {
+
+    /**
+     * Subscribes to the boards that have players. If resubscribe is true, boards that are already observed are resubscribed, which resends their keyframes
+     */
+    public void sendRefreshObserved(boolean resubscribe) {
         for (Point p : loader.getObserverMap().keySet()) {
             ObserverRenderer obsRenderer = loader.getObserverMap().get(p);
-            if (obsRenderer.getHasPlayer()) {
-                sendRefreshObserved(p);
-                try {
-                    Thread.currentThread().sleep(500);
-                }
-                catch (Exception e) {
-                }
+            if (obsRenderer.getHasPlayer() && (resubscribe || !subscribed.contains(p))) {
+                subscribed.add(p);
+                sendObserve(p);
             }
         }
     }
@@ -362,13 +354,13 @@ public class ClientToServer extends NetworkThread {
         loader.setGridSize(width, height);
     }
 
-    private void handleLaunch() {
+    private void handleLaunch(Object... args) {
         if (loader == null) {
             System.err.println("handleLaunch called when already in game");
             return;
         }
 
-        loader.launch(serverSocket.socket().getPort());
+        loader.launch((Integer)args[0]); // the port for our board server
     }
 
     private void handleGetPlayerLocs(ByteBuffer bb, Object... args) {
@@ -389,42 +381,55 @@ public class ClientToServer extends NetworkThread {
 
         loader.initPlayerLocs(set);
     }
-    private void handleSendParticles() {
+    private void handleRequestParticles() {
         if (gas == null) {
-            System.err.println("handleSendParticles called when not in game");
+            System.err.println("handleRequestParticles called when not in game");
             return;
         }
 
-        sendParticles();
+        sendKeyframe();
     }
-    private void handleClientParticles(ByteBuffer bb, Object... args) {
-        int particles = (Integer)args[0];
-        int x0 = bb.getInt();
-        int y0 = bb.getInt();
-        System.out.println("Received " + x0 + " " + y0);
-        ObserverRenderer renderer = loader.getObserverMap().get(new Point(x0, y0));
+    private void handleObserverFrame(packetCommand command, ByteBuffer bb, Object... args) throws DataFormatException {
+        Point p = new Point((Integer)args[0], (Integer)args[1]);
+        ObserverRenderer renderer = loader == null ? null : loader.getObserverMap().get(p);
         if (renderer == null) {
-            System.err.println("Renderer not found");
+            System.err.println("Renderer not found for " + p);
             return;
         }
-        renderer.clear();
-
-        for (int i = 0; i < particles; ++i) {
-            //String name = getStringFromBuffer(bb);
-            //Byte b = bb.get();
-            //Byte g = bb.get();
-            //Byte r = bb.get();
-            int rgb = bb.getInt();
-
-            ArrayList<Point> list = new ArrayList<Point>();
-            int numPoints = bb.getInt();
-            for (int j = 0; j < numPoints; ++j) {
-                int x = bb.getInt();
-                int y = bb.getInt();
-                renderer.drawCell(new Point(x, y), new Color(rgb)); //new Color(r, g, b)
+
+        ObserverStream s = observed.get(p);
+        if (command == packetCommand.KEYFRAME) {
+            int width = bb.getInt(bb.position()), height = bb.getInt(bb.position() + 4);
+            if (s == null || s.getWidth() != width || s.getHeight() != height) {
+                s = new ObserverStream(width, height);
+                observed.put(p, s);
             }
         }
+        else if (s == null)
+            return; // a delta from before our keyframe
+
+        int[] changed;
+        try {
+            changed = s.applyFrame(command, bb, observedChanges);
+        }
+        catch (DataFormatException e) {
+            // out of step with the server: drop this board, and subscribe again for a fresh keyframe
+            System.err.println("ClientToServer: resubscribing to " + p + ": " + e.getMessage());
+            observed.remove(p);
+            sendObserve(p);
+            return;
+        }
 
+        int width = s.getWidth();
+        if (changed == null) {
+            for (int i = 0; i < width * s.getHeight(); ++i)
+                renderer.setCell(i % width, i / width, s.getRGB(i));
+        }
+        else {
+            observedChanges = changed;
+            for (int i = 1; i <= changed[0]; ++i)
+                renderer.setCell(changed[i] % width, changed[i] / width, s.getRGB(changed[i]));
+        }
         renderer.getJPanel().repaint();
     }
     private void handleConnectPeer(ByteBuffer bb, Object... args) {
@@ -0,0 +1,53 @@
+package zoogas.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// FrameReader: reassembles length-prefixed frames (int length, then that many bytes) from a stream channel,
+// across any number of partial reads. Works with both blocking and non-blocking channels.
+public class FrameReader {
+    public static int maxFrameSize = 16 << 20;
+
+    private final BufferPool pool;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private ByteBuffer body = null; // the frame being read, or null while reading a header
+
+    public FrameReader(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    // read: returns the next complete frame (flipped, ready to read; release it to the pool when done),
+    // or null if a non-blocking channel has no more data for now. Throws EOFException at end of stream
+    public ByteBuffer read(ReadableByteChannel channel) throws IOException {
+        while (true) {
+            ByteBuffer target = body == null ? header : body;
+            if (target.hasRemaining()) {
+                int n = channel.read(target);
+                if (n < 0)
+                    throw new EOFException();
+                if (n == 0 && target.hasRemaining())
+                    return null;
+            }
+            if (!target.hasRemaining()) {
+                if (body == null) {
+                    header.flip();
+                    int length = header.getInt();
+                    header.clear();
+                    if (length < 0 || length > maxFrameSize)
+                        throw new IOException("Bad frame length " + length);
+                    body = pool.acquire(length);
+                    body.limit(length);
+                }
+                else {
+                    ByteBuffer frame = body;
+                    body = null;
+                    frame.flip();
+                    return frame;
+                }
+            }
+        }
+    }
+}
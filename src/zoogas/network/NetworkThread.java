@@ -7,17 +7,21 @@ import java.nio.channels.SocketChannel;
 
 import java.util.ArrayList;
 
+// NetworkThread: the WorldServer protocol, shared by both ends of the connection.
+// Every packet is sent as a length-prefixed frame: int length (of the rest of the frame), int command ordinal, then the command's arguments.
 public abstract class NetworkThread extends Thread {
     // constants
-    public final int allocateBufferSize = Integer.MAX_VALUE >> 16;
     public final static int CONNECTIONS_FULL = -1;
 
+    // buffers for frames, shared by all connections in this process
+    static final BufferPool bufferPool = new BufferPool();
+
     // Commands
     public static enum packetCommand {
         PING(0),
         SEND_SIZE(2, "ii", 4 + 4),
         CLAIM_GRID(2, "ii", 4 + 4),
-        LAUNCH(0),
+        LAUNCH(1, "i", 4), // board server port
         OBSERVE(2, "ii", 4 + 4),
         DISCONNECT(0),
 
@@ -27,11 +31,12 @@ public abstract class NetworkThread extends Thread {
 
         CHECKIN_ALL_RULES(1, "i", 4), // variadic
         CHECKIN_RULESET(1, "i", 4), // variadic
-        REQUEST_PARTICLES(0),
-        SEND_PARTICLES(1, "i", 4), // variadic
 
-        REFRESH_OBSERVED(2, "ii", 4 + 4),
-        UPDATE_OBSERVED(2, "ii", 4 + 4); // variadic
+        // observer feed (see ObserverStream): the server asks a player for a keyframe, after which the player streams deltas;
+        // an observer sends OBSERVE to subscribe to a board, and is sent a keyframe and then the deltas
+        REQUEST_PARTICLES(0),
+        KEYFRAME(2, "ii", 4 + 4), // grid location, variadic
+        DELTA(2, "ii", 4 + 4); // grid location, variadic
 
 
         private packetCommand(int numArgs) {
@@ -59,7 +64,7 @@ public abstract class NetworkThread extends Thread {
         }
     }
 
-    protected ArrayList<Object> collectParameters(packetCommand command, ByteBuffer bb) {
+    protected static ArrayList<Object> collectParameters(packetCommand command, ByteBuffer bb) {
         ArrayList<Object> parameters = new ArrayList<Object>();
         for (int i = 0; i < command.getExpectedCount(); ++i) {
             char c = command.getExpectedArgs().charAt(i);
@@ -88,7 +93,7 @@ public abstract class NetworkThread extends Thread {
     abstract void processPacket(ByteBuffer bb);
 
     // Commonly used helper methods
-    public String getStringFromBuffer(ByteBuffer bb) {
+    public static String getStringFromBuffer(ByteBuffer bb) {
         StringBuilder sb = new StringBuilder();
         byte c = bb.get();
         while (c != '\0') {
@@ -97,7 +102,7 @@ public abstract class NetworkThread extends Thread {
         }
         return sb.toString();
     }
-    public ByteBuffer writeStringToBuffer(ByteBuffer bb, String s) {
+    public static ByteBuffer writeStringToBuffer(ByteBuffer bb, String s) {
         s += '\0';
         byte[] stringBytes = s.getBytes();
         bb.put(stringBytes);
@@ -105,26 +110,37 @@ public abstract class NetworkThread extends Thread {
     }
 
     /**
-     *Prepares a buffer for <i>sending</i> a packet
+     *Prepares a buffer for <i>sending</i> a packet: the frame length is filled in by frame()
      * @param cmd
      * @return
      */
-    public ByteBuffer prepareBuffer(packetCommand cmd) {
+    public static ByteBuffer prepareBuffer(packetCommand cmd) {
         return prepareBuffer(cmd, cmd.expectedBytes);
     }
-    public ByteBuffer prepareBuffer(packetCommand cmd, int byteCount) {
-        ByteBuffer bb = ByteBuffer.allocate(4 + byteCount);
+    public static ByteBuffer prepareBuffer(packetCommand cmd, int byteCount) {
+        ByteBuffer bb = bufferPool.acquire(4 + 4 + byteCount);
+        bb.putInt(0); // frame length
         bb.putInt(cmd.ordinal());
         return bb;
     }
-    public boolean verifyAndSend(ByteBuffer bb, packetCommand cmd, SocketChannel sc, boolean requiresBlocking) {
+
+    // frame: fill in the frame length of a prepared buffer, and flip it ready for writing
+    static ByteBuffer frame(ByteBuffer bb) {
+        bb.putInt(0, bb.position() - 4);
         bb.flip();
+        return bb;
+    }
+
+    // verifyAndSend: write a prepared buffer to a blocking channel, and return the buffer to the pool.
+    // Frames may be sent from more than one thread, so each frame is written while holding the channel's lock
+    public boolean verifyAndSend(ByteBuffer bb, packetCommand cmd, SocketChannel sc) {
+        //System.out.println(" Sent " + cmd + " " + bb);
+        frame(bb);
         try {
-            if (requiresBlocking)
-                sc.configureBlocking(true);
-            sc.write(bb);
-            if (requiresBlocking)
-                sc.configureBlocking(false);
+            synchronized (sc) {
+                while (bb.hasRemaining())
+                    sc.write(bb);
+            }
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -135,10 +151,9 @@ public abstract class NetworkThread extends Thread {
             if (sc == null)
                 System.err.println("SocketChannel not yet created.");
         }
+        finally {
+            bufferPool.release(bb);
+        }
         return true;
     }
-    public boolean verifyAndSend(ByteBuffer bb, packetCommand cmd, SocketChannel sc) {
-        //System.out.println(" Sent " + cmd + " " + bb);
-        return verifyAndSend(bb, cmd, sc, false);
-    }
 }
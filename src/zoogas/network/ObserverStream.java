@@ -0,0 +1,265 @@
+package zoogas.network;
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import zoogas.network.NetworkThread.packetCommand;
+
+// ObserverStream: the colors of one Board's cells, as palette indices, for streaming to observers.
+// The player keeps one (filled from its Board), the WorldServer keeps a copy for each player, and each observer keeps a copy for each board it watches.
+// A KEYFRAME carries the whole palette and every cell; a DELTA carries the palette entries added since the last frame, and the cells that changed.
+//
+// Frame bodies, after the NetworkThread header (command, then the board's grid location x, y):
+//   KEYFRAME: int width, int height, int paletteSize, paletteSize * int rgb, int compressedLength, deflated cells
+//             (cells are unsigned shorts, in CellStore index order)
+//   DELTA:    int paletteStart, int paletteAdded, paletteAdded * int rgb, int changes, int compressedLength, deflated changes
+//             (each change is a varint gap from the previous changed cell index, plus one, then a varint palette index)
+public class ObserverStream {
+    public static final int maxPaletteSize = 1 << 16;
+
+    // data
+    private final int width, height;
+    private final short[] cells; // palette index of each cell
+    private int[] palette = new int[64]; // rgb of each palette index
+    private int paletteSize = 0;
+    private int paletteSent = 0; // palette entries already sent in a frame (encoder only)
+    private HashMap<Integer, Integer> paletteIndex = new HashMap<Integer, Integer>(); // rgb -> palette index (encoder only)
+
+    // scratch space for building deltas
+    private ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+    private int[] changed = new int[1024];
+    private int changes = 0;
+
+    // constructor
+    public ObserverStream(int width, int height) {
+        this.width = width;
+        this.height = height;
+        cells = new short[width * height];
+    }
+
+    public final int getWidth() {
+        return width;
+    }
+
+    public final int getHeight() {
+        return height;
+    }
+
+    public final int getRGB(int cell) {
+        return palette[cells[cell] & 0xffff];
+    }
+
+    // encoder methods (player side)
+    // set: record the color of a cell, returning true if it changed. Changed cells go in the next delta
+    public final boolean set(int cell, int rgb) {
+        int index = indexOf(rgb);
+        if ((cells[cell] & 0xffff) == index)
+            return false;
+        cells[cell] = (short)index;
+        if (changes == changed.length)
+            changed = Arrays.copyOf(changed, 2 * changes);
+        changed[changes++] = cell;
+        return true;
+    }
+
+    // hasDelta: true if there is anything to send in a delta
+    public final boolean hasDelta() {
+        return changes > 0 || paletteSent < paletteSize;
+    }
+
+    // keyframe: a KEYFRAME packet for the current state (this also clears the pending delta)
+    public final ByteBuffer keyframe(int x, int y) {
+        byte[] raw = new byte[2 * cells.length];
+        for (int i = 0; i < cells.length; ++i) {
+            raw[2 * i] = (byte)(cells[i] >> 8);
+            raw[2 * i + 1] = (byte)cells[i];
+        }
+        byte[] packed = deflate(raw, raw.length);
+
+        ByteBuffer bb = NetworkThread.prepareBuffer(packetCommand.KEYFRAME, 8 + 12 + 4 * paletteSize + 4 + packed.length);
+        bb.putInt(x);
+        bb.putInt(y);
+        bb.putInt(width);
+        bb.putInt(height);
+        bb.putInt(paletteSize);
+        for (int i = 0; i < paletteSize; ++i)
+            bb.putInt(palette[i]);
+        bb.putInt(packed.length);
+        bb.put(packed);
+
+        paletteSent = paletteSize;
+        changes = 0;
+        return bb;
+    }
+
+    // delta: a DELTA packet for the palette entries and cells changed since the last frame
+    public final ByteBuffer delta(int x, int y) {
+        Arrays.sort(changed, 0, changes);
+        scratch.reset();
+        int previous = -1, distinct = 0;
+        for (int i = 0; i < changes; ++i) {
+            int cell = changed[i];
+            if (cell == previous)
+                continue; // changed more than once since the last frame
+            writeVarint(scratch, cell - previous);
+            writeVarint(scratch, cells[cell] & 0xffff);
+            previous = cell;
+            ++distinct;
+        }
+        byte[] raw = scratch.toByteArray();
+        byte[] packed = deflate(raw, raw.length);
+
+        int added = paletteSize - paletteSent;
+        ByteBuffer bb = NetworkThread.prepareBuffer(packetCommand.DELTA, 8 + 8 + 4 * added + 8 + packed.length);
+        bb.putInt(x);
+        bb.putInt(y);
+        bb.putInt(paletteSent);
+        bb.putInt(added);
+        for (int i = paletteSent; i < paletteSize; ++i)
+            bb.putInt(palette[i]);
+        bb.putInt(distinct);
+        bb.putInt(packed.length);
+        bb.put(packed);
+
+        paletteSent = paletteSize;
+        changes = 0;
+        return bb;
+    }
+
+    // decoder methods (server and observer side)
+    // applyKeyframe: replace the state with a KEYFRAME body (bb is positioned after x, y); returns false if the frame does not fit this stream
+    public final boolean applyKeyframe(ByteBuffer bb) throws DataFormatException {
+        if (bb.getInt() != width || bb.getInt() != height)
+            return false;
+        readPalette(bb, 0, bb.getInt());
+        byte[] raw = inflate(bb, 2 * cells.length);
+        for (int i = 0; i < cells.length; ++i)
+            cells[i] = (short)(((raw[2 * i] & 0xff) << 8) | (raw[2 * i + 1] & 0xff));
+        paletteSent = paletteSize;
+        changes = 0;
+        return true;
+    }
+
+    // applyDelta: apply a DELTA body (bb is positioned after x, y), and return the changed cells in dest (dest[0] is the count)
+    public final int[] applyDelta(ByteBuffer bb, int[] dest) throws DataFormatException {
+        int start = bb.getInt();
+        int added = bb.getInt();
+        if (start != paletteSize)
+            throw new DataFormatException("palette out of step: expected entry " + paletteSize + ", got " + start);
+        readPalette(bb, start, added);
+        int n = bb.getInt();
+        byte[] raw = inflate(bb, -1);
+        if (dest == null || dest.length < n + 1)
+            dest = new int[n + 1];
+        int[] pos = { 0 };
+        int cell = -1;
+        for (int i = 0; i < n; ++i) {
+            cell += readVarint(raw, pos);
+            int index = readVarint(raw, pos);
+            if (cell < 0 || cell >= cells.length || index >= paletteSize)
+                throw new DataFormatException("cell or palette index out of range");
+            cells[cell] = (short)index;
+            dest[i + 1] = cell;
+        }
+        dest[0] = n;
+        return dest;
+    }
+
+    // applyFrame: apply a KEYFRAME or DELTA body (bb is positioned after x, y); returns the changed cells, or null for a keyframe (all cells)
+    public final int[] applyFrame(packetCommand command, ByteBuffer bb, int[] dest) throws DataFormatException {
+        if (command == packetCommand.KEYFRAME) {
+            if (!applyKeyframe(bb))
+                throw new DataFormatException("keyframe size does not match");
+            return null;
+        }
+        return applyDelta(bb, dest);
+    }
+
+    // private methods
+    private final int indexOf(int rgb) {
+        Integer index = paletteIndex.get(rgb);
+        if (index == null) {
+            if (paletteSize == maxPaletteSize)
+                return 0; // out of palette entries; reuse the first color
+            index = paletteSize;
+            addPaletteEntry(rgb);
+            paletteIndex.put(rgb, index);
+        }
+        return index;
+    }
+
+    private final void addPaletteEntry(int rgb) {
+        if (paletteSize == palette.length)
+            palette = Arrays.copyOf(palette, 2 * paletteSize);
+        palette[paletteSize++] = rgb;
+    }
+
+    private final void readPalette(ByteBuffer bb, int start, int count) throws DataFormatException {
+        if (start + count > maxPaletteSize)
+            throw new DataFormatException("palette too large");
+        paletteSize = start;
+        for (int i = 0; i < count; ++i)
+            addPaletteEntry(bb.getInt());
+    }
+
+    private static byte[] deflate(byte[] raw, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + length / 8);
+        byte[] buf = new byte[4096];
+        while (!deflater.finished())
+            out.write(buf, 0, deflater.deflate(buf));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    // inflate: read an int length and that many deflated bytes from bb; expected is the uncompressed size, or -1 if unknown
+    private static byte[] inflate(ByteBuffer bb, int expected) throws DataFormatException {
+        byte[] packed = new byte[bb.getInt()];
+        bb.get(packed);
+        Inflater inflater = new Inflater();
+        inflater.setInput(packed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(expected > 0 ? expected : 4 * packed.length);
+        byte[] buf = new byte[4096];
+        while (!inflater.finished()) {
+            int n = inflater.inflate(buf);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                break;
+            out.write(buf, 0, n);
+        }
+        inflater.end();
+        if (expected >= 0 && out.size() != expected)
+            throw new DataFormatException("expected " + expected + " bytes, inflated " + out.size());
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarint(byte[] raw, int[] pos) throws DataFormatException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos[0] >= raw.length)
+                throw new DataFormatException("truncated varint");
+            byte b = raw[pos[0]++];
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new DataFormatException("bad varint");
+    }
+}
@@ -0,0 +1,295 @@
+package zoogas.network;
+
+import java.net.*;
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import zoogas.core.Board;
+import zoogas.core.Particle;
+import zoogas.core.Point;
+
+import zoogas.gui.BoardRenderer;
+
+// PeerLink: the cross-border (EVOLVE/RETURN) traffic between this Board and one peer Board.
+// Outgoing messages are appended to a batch, which is sent as a single datagram over a long-lived channel
+// when it fills up or when UpdateServer next flushes its links (every UpdateServer.flushInterval ms).
+//
+// Wire format (big-endian): each datagram is
+//   int magic, unsigned short returnPort (the sender's UpdateServer port), short messageCount,
+//   followed by messages, each a type byte and then:
+//     NAME:    int id, string name                  - the sender's id for a particle name
+//     EVOLVE:  int targetX, int targetY, int sourceId, byte dir, double energyBarrier, int sourceX, int sourceY, int writeCount
+//     RETURN:  int sourceX, int sourceY, int particleId, double energyInput, int writeCount
+//     UNKNOWN: int id                               - the receiver has no name for this id of the sender's
+//   strings are an unsigned short byte-length followed by UTF-8 bytes.
+// Particles are sent as the sender's Board ids. The first time an id is sent to a peer, its NAME goes in the same batch.
+// If that batch is lost, the peer answers the next use of the id with UNKNOWN, and the NAME is sent again.
+// A message that would not fit in a datagram even on its own (a long particle name, if maxDatagramSize is set low) is dropped, as if it had been lost.
+public class PeerLink {
+    static final int magic = 0x5a474231; // "ZGB1"
+    static final int headerSize = 4 + 2 + 2;
+    static final byte NAME = 0, EVOLVE = 1, RETURN = 2, UNKNOWN = 3;
+    static final int evolveSize = 1 + 4 + 4 + 4 + 1 + 8 + 4 + 4 + 4;
+    static final int returnSize = 1 + 4 + 4 + 4 + 8 + 4;
+    public static int maxDatagramSize = 1400; // stay below a typical Ethernet MTU, to avoid IP fragmentation
+
+    // data
+    private Board board = null;
+    private BoardRenderer renderer = null;
+    private InetSocketAddress peer = null;
+    private DatagramChannel channel = null; // connected to the peer's UpdateServer
+    private ByteBuffer batch = null;
+    private int batchMessages = 0;
+    private BitSet namedToPeer = new BitSet(); // ids of ours whose names the peer has been sent
+    private BitSet unsendable = new BitSet(); // ids of ours whose names are too long to send, and have been reported as such
+    private HashMap<Integer, Particle> peerParticle = new HashMap<Integer, Particle>(); // the peer's ids; only used by the receiving thread
+
+    // metrics
+    private LongAdder datagramsSent = new LongAdder(), messagesSent = new LongAdder(), bytesSent = new LongAdder();
+    private LongAdder datagramsReceived = new LongAdder(), messagesReceived = new LongAdder(), bytesReceived = new LongAdder();
+
+    // constructor
+    PeerLink(Board board, BoardRenderer renderer, InetSocketAddress peer, int returnPort) throws IOException {
+        this.board = board;
+        this.renderer = renderer;
+        this.peer = peer;
+        channel = DatagramChannel.open();
+        channel.connect(peer);
+        batch = ByteBuffer.allocate(maxDatagramSize);
+        batch.putInt(magic);
+        batch.putShort((short)returnPort);
+        batch.putShort((short)0); // message count, filled in by flush
+    }
+
+    public final InetSocketAddress getPeer() {
+        return peer;
+    }
+
+    // sendEvolve: queue a request for the peer to evolve its cell remoteTarget, given our source cell
+    public synchronized void sendEvolve(Point remoteTarget, Particle oldSourceState, Point localSource, int dir, double energyBarrier, int writeCount) {
+        int id = oldSourceState.getId();
+        if (!reserve(evolveSize, oldSourceState))
+            return;
+        putName(oldSourceState);
+        batch.put(EVOLVE);
+        batch.putInt(remoteTarget.x);
+        batch.putInt(remoteTarget.y);
+        batch.putInt(id);
+        batch.put((byte)dir);
+        batch.putDouble(energyBarrier);
+        batch.putInt(localSource.x);
+        batch.putInt(localSource.y);
+        batch.putInt(writeCount);
+        ++batchMessages;
+    }
+
+    // sendReturn: queue the new state of the peer's source cell, after an EVOLVE was accepted
+    public synchronized void sendReturn(Point remoteSource, Particle newSourceState, int writeCount, double energyInput) {
+        if (!reserve(returnSize, newSourceState))
+            return;
+        putName(newSourceState);
+        batch.put(RETURN);
+        batch.putInt(remoteSource.x);
+        batch.putInt(remoteSource.y);
+        batch.putInt(newSourceState.getId());
+        batch.putDouble(energyInput);
+        batch.putInt(writeCount);
+        ++batchMessages;
+    }
+
+    private synchronized void sendUnknown(int peerId) {
+        reserve(1 + 4);
+        batch.put(UNKNOWN);
+        batch.putInt(peerId);
+        ++batchMessages;
+    }
+
+    // flush: send the current batch, if it has any messages
+    public synchronized void flush() {
+        if (batchMessages == 0)
+            return;
+        batch.putShort(6, (short)batchMessages);
+        batch.flip();
+        int bytes = batch.remaining();
+        try {
+            channel.write(batch);
+            datagramsSent.increment();
+            messagesSent.add(batchMessages);
+            bytesSent.add(bytes);
+        }
+        catch (IOException e) {
+            // the peer may not be listening yet (e.g. ICMP port unreachable); the messages are lost, as with any UDP datagram
+            System.err.println("PeerLink: while sending " + batchMessages + " messages to " + peer + ": " + e);
+        }
+        batch.clear();
+        batch.position(headerSize);
+        batchMessages = 0;
+    }
+
+    // receive: process the messages in a datagram from the peer (buf is positioned after the header)
+    void receive(ByteBuffer buf, int messages) {
+        datagramsReceived.increment();
+        messagesReceived.add(messages);
+        bytesReceived.add(buf.limit());
+        for (int m = 0; m < messages; ++m) {
+            byte type = buf.get();
+            switch (type) {
+                case NAME: {
+                    int id = buf.getInt();
+                    String name = getString(buf);
+                    Particle p = board.getOrCreateParticle(name);
+                    if (p != null)
+                        peerParticle.put(id, p);
+                    break;
+                }
+                case EVOLVE: {
+                    Point localTarget = new Point(buf.getInt(), buf.getInt());
+                    int sourceId = buf.getInt();
+                    int dir = buf.get();
+                    double energyBarrier = buf.getDouble();
+                    Point remoteSource = new Point(buf.getInt(), buf.getInt());
+                    int remoteSourceWriteCount = buf.getInt();
+
+                    Particle oldSourceState = peerParticle(sourceId);
+                    if (oldSourceState != null && board.onBoard(localTarget)) {
+                        Particle newSourceState = board.evolveLocalTargetForRemoteSource(localTarget, oldSourceState, dir, energyBarrier);
+                        if (newSourceState != oldSourceState)
+                            sendReturn(remoteSource, newSourceState, remoteSourceWriteCount, -energyBarrier);
+                    }
+                    break;
+                }
+                case RETURN: {
+                    Point localSource = new Point(buf.getInt(), buf.getInt());
+                    int id = buf.getInt();
+                    buf.getDouble(); // energy input: incoming particles are never bonded to anything, so we always accept the move
+                    int oldWriteCount = buf.getInt();
+
+                    Particle newSourceState = peerParticle(id);
+                    if (newSourceState != null && board.onBoard(localSource) && oldWriteCount == board.getCellWriteCount(localSource)) {
+                        board.removeBonds(localSource);
+                        board.writeCell(localSource, newSourceState);
+                        if (renderer != null)
+                            renderer.drawCell(localSource);
+                    }
+                    break;
+                }
+                case UNKNOWN: {
+                    int id = buf.getInt();
+                    synchronized (this) {
+                        namedToPeer.clear(id);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unknown message type " + type);
+            }
+        }
+    }
+
+    // metrics
+    public final long getDatagramsSent() {
+        return datagramsSent.sum();
+    }
+
+    public final long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    public final long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public final long getDatagramsReceived() {
+        return datagramsReceived.sum();
+    }
+
+    public final long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    public final long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    final void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // private methods
+    private final Particle peerParticle(int peerId) {
+        Particle p = peerParticle.get(peerId);
+        if (p == null)
+            sendUnknown(peerId);
+        return p;
+    }
+
+    // reserve: make room for a message of the given size, flushing the batch if necessary
+    private final void reserve(int bytes) {
+        if (batch.remaining() < bytes)
+            flush();
+    }
+
+    // reserve: make room for a message of the given size that names particle p, sending p's NAME first if the peer hasn't had it.
+    // Returns false if the message (with the NAME) can't fit in an empty batch, in which case the caller drops it
+    private final boolean reserve(int bytes, Particle p) {
+        bytes += nameSize(p);
+        if (headerSize + bytes > batch.capacity()) {
+            if (!unsendable.get(p.getId())) {
+                System.err.println("PeerLink: the name of " + p.name + " is too long to send to " + peer + " (a " + bytes + "-byte message, with " + maxDatagramSize + "-byte datagrams); dropping its messages");
+                unsendable.set(p.getId());
+            }
+            return false;
+        }
+        reserve(bytes);
+        return true;
+    }
+
+    private final int nameSize(Particle p) {
+        return namedToPeer.get(p.getId()) ? 0 : 1 + 4 + 2 + utf8(p.name).length;
+    }
+
+    private final void putName(Particle p) {
+        if (!namedToPeer.get(p.getId())) {
+            byte[] b = utf8(p.name);
+            batch.put(NAME);
+            batch.putInt(p.getId());
+            batch.putShort((short)b.length);
+            batch.put(b);
+            namedToPeer.set(p.getId());
+            ++batchMessages;
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getShort() & 0xffff];
+        buf.get(b);
+        try {
+            return new String(b, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -2,48 +2,137 @@ package zoogas.network;
 
 import java.net.*;
 
-import java.util.regex.*;
-
 import java.io.*;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import zoogas.core.Board;
+import zoogas.core.Particle;
+import zoogas.core.Point;
 
 import zoogas.gui.BoardRenderer;
 
+// UpdateServer: receives the batched binary cross-border datagrams described in PeerLink, and owns the PeerLink for each peer Board.
+// Outgoing batches are flushed every flushInterval milliseconds by a background thread.
 public class UpdateServer extends BoardServer {
-    private DatagramSocket socket = null;
-    private static int maxPacketSize = 1024; // needs to be significantly bigger than Particle.maxNameLength
+    public static long flushInterval = 5; // milliseconds
+
+    private DatagramChannel channel = null;
+    private Map<InetSocketAddress, PeerLink> links = new ConcurrentHashMap<InetSocketAddress, PeerLink>();
+    private ScheduledExecutorService flusher = null;
+
+    // metrics, for rates since the last call to statsString()
+    private long lastStatsTime = System.nanoTime();
+    private long lastDatagramsSent = 0, lastMessagesSent = 0, lastDatagramsReceived = 0, lastMessagesReceived = 0;
 
     public UpdateServer(Board board, int port, BoardRenderer renderer) throws IOException {
         super(board, port, renderer);
         if (renderer == null)
             System.out.println("Update server renderer should not be null");
-        socket = new DatagramSocket(port);
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PeerLinkFlusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
     }
 
     public void run() {
-        Boolean listening = true;
-        while (listening) {
+        ByteBuffer buf = ByteBuffer.allocate(PeerLink.maxDatagramSize);
+        while (channel.isOpen()) {
             try {
-                byte[] buf = new byte[maxPacketSize];
-                DatagramPacket packet = new DatagramPacket(buf, maxPacketSize);
-                socket.receive(packet);
-
-                String packetString = new String(packet.getData());
-                Matcher m = commandRegex.matcher(packetString);
-                if (m.find()) {
-                    String command = m.group(1);
-                    processPacket(command, listening);
-                }
-                else {
-                    System.err.println("BoardServer: Ignoring empty or unterminated line " + packetString);
+                buf.clear();
+                InetSocketAddress sender = (InetSocketAddress)channel.receive(buf);
+                buf.flip();
+                if (buf.remaining() < PeerLink.headerSize || buf.getInt() != PeerLink.magic) {
+                    System.err.println("UpdateServer: Ignoring unrecognized datagram from " + sender);
+                    continue;
                 }
+                int returnPort = buf.getShort() & 0xffff;
+                int messages = buf.getShort();
+                getLink(new InetSocketAddress(sender.getAddress(), returnPort)).receive(buf, messages);
+            }
+            catch (RuntimeException e) {
+                // truncated or corrupt datagram
+                System.err.println("UpdateServer: Ignoring bad datagram: " + e);
             }
             catch (IOException e) {
                 e.printStackTrace();
             }
         }
+    }
+
+    // getLink: the PeerLink for the peer Board whose UpdateServer is at the given address, created on first use
+    public PeerLink getLink(InetSocketAddress peer) throws IOException {
+        PeerLink link = links.get(peer);
+        if (link == null) {
+            synchronized (links) {
+                link = links.get(peer);
+                if (link == null) {
+                    link = new PeerLink(board, renderer, peer, port);
+                    links.put(peer, link);
+                }
+            }
+        }
+        return link;
+    }
+
+    // sendEvolve: queue an EVOLVE request for a remote cell
+    public void sendEvolve(RemoteCellCoord remoteCoords, Particle oldSourceState, Point localSource, int dir, double energyBarrier, int writeCount) {
+        try {
+            getLink(remoteCoords.getSocketAddress()).sendEvolve(remoteCoords.getPoint(), oldSourceState, localSource, dir, energyBarrier, writeCount);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        socket.close();
+    // flush: send the pending batch for every peer
+    public void flush() {
+        for (PeerLink link : links.values())
+            link.flush();
+    }
+
+    // statsString: message and datagram rates since the last call, and the mean batch size
+    public synchronized String statsString() {
+        long datagramsSent = 0, messagesSent = 0, bytesSent = 0, datagramsReceived = 0, messagesReceived = 0, bytesReceived = 0;
+        for (PeerLink link : links.values()) {
+            datagramsSent += link.getDatagramsSent();
+            messagesSent += link.getMessagesSent();
+            bytesSent += link.getBytesSent();
+            datagramsReceived += link.getDatagramsReceived();
+            messagesReceived += link.getMessagesReceived();
+            bytesReceived += link.getBytesReceived();
+        }
+        long now = System.nanoTime();
+        double seconds = Math.max(now - lastStatsTime, 1) / 1e9;
+        String stats = links.size() + " peers; sent " + messagesSent + " messages in " + datagramsSent + " datagrams (" + bytesSent + " bytes, " + String.format("%.1f", datagramsSent > 0 ? ((double)messagesSent) / datagramsSent : 0)
+                       + " messages per datagram, " + String.format("%.0f", (messagesSent - lastMessagesSent) / seconds) + " messages/sec, " + String.format("%.0f", (datagramsSent - lastDatagramsSent) / seconds) + " datagrams/sec); received " + messagesReceived
+                       + " messages in " + datagramsReceived + " datagrams (" + bytesReceived + " bytes, " + String.format("%.0f", (messagesReceived - lastMessagesReceived) / seconds) + " messages/sec, "
+                       + String.format("%.0f", (datagramsReceived - lastDatagramsReceived) / seconds) + " datagrams/sec)";
+        lastStatsTime = now;
+        lastDatagramsSent = datagramsSent;
+        lastMessagesSent = messagesSent;
+        lastDatagramsReceived = datagramsReceived;
+        lastMessagesReceived = messagesReceived;
+        return stats;
     }
 }
@@ -2,41 +2,63 @@ package zoogas.network;
 
 import java.awt.Rectangle;
 
+import java.io.EOFException;
 import java.io.IOException;
 
 import java.net.BindException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
-
 import java.nio.channels.SocketChannel;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.zip.DataFormatException;
 
 import zoogas.ZooGas;
 
 import zoogas.core.Point;
 import zoogas.core.rules.RuleSet;
 
+import zoogas.network.NetworkThread.packetCommand;
+
+import static zoogas.network.NetworkThread.collectParameters;
+import static zoogas.network.NetworkThread.getStringFromBuffer;
+import static zoogas.network.NetworkThread.prepareBuffer;
+import static zoogas.network.NetworkThread.writeStringToBuffer;
+
 /**
- * The main server that enables connections between players on a grid
+ * The main server that enables connections between players on a grid.
+ * All clients (players and observers) connect to newConnectionPort, and are served by one Selector-driven I/O thread:
+ * it accepts connections, reassembles incoming frames (see NetworkThread) and writes queued outgoing frames as the sockets allow.
+ * Complete frames are handled on a small fixed pool of worker threads, in order for each client.
  */
 public class WorldServer extends Thread {
     public WorldServer() throws BindException {
-        usedPorts = new HashMap<Integer, ServerToClient>();
-        pointToClient = new HashMap<Point, ServerToClient>();
-        clientLocation = new HashMap<ServerToClient, Point>();
-        lastPinged = new HashMap<Integer, Long>();
-
-        clientParticles = new HashMap<ServerToClient, HashMap<Integer, List<Point>>>();
         try {
+            selector = Selector.open();
             incomingClientsSSC = ServerSocketChannel.open();
             incomingClientsSSC.socket().bind(new InetSocketAddress(newConnectionPort));
+            incomingClientsSSC.configureBlocking(false);
+            incomingClientsSSC.register(selector, SelectionKey.OP_ACCEPT);
         }
         catch (BindException e) {
             throw e;
@@ -45,89 +67,164 @@ public class WorldServer extends Thread {
             e.printStackTrace();
         }
 
+        workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "WorldServerWorker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
         ruleset = new RuleSet(ZooGas.defaultPatternSetFilename);
 
         start();
     }
 
     // Ports
+    private Selector selector;
     private ServerSocketChannel incomingClientsSSC;
     public final static int newConnectionPort = 4440;
-    public final int minPort = newConnectionPort + 1;
+    public final int minPort = newConnectionPort + 1; // board server ports handed out to players
     public final int maxPort = 4450;
 
+    // Threads and limits
+    public static int workerThreads = 2;
+    public static int maxClients = 1024;
+    public static long keepAliveInterval = 5000; // milliseconds
+    private ExecutorService workers;
+    private Queue<ServerToClient> pendingWrites = new ConcurrentLinkedQueue<ServerToClient>(); // clients with new outgoing frames, for the I/O thread
+
     // ZooGas connectivity
     //  Note: the less containers that have ServerToClient, the better
-    private Map<Integer, ServerToClient> usedPorts;
-    private Map<Point, ServerToClient> pointToClient;
-    private Map<ServerToClient, Point> clientLocation;
-    private Map<ServerToClient, HashMap<Integer, List<Point>>> clientParticles; // observers
-    private Map<Integer, Long> lastPinged;
+    private Set<ServerToClient> clients = Collections.newSetFromMap(new ConcurrentHashMap<ServerToClient, Boolean>());
+    private Map<Integer, ServerToClient> usedPorts = new ConcurrentHashMap<Integer, ServerToClient>();
+    private Map<Point, ServerToClient> pointToClient = new ConcurrentHashMap<Point, ServerToClient>();
+    private Map<ServerToClient, Point> clientLocation = new ConcurrentHashMap<ServerToClient, Point>();
+    private Map<ServerToClient, PlayerFeed> feeds = new ConcurrentHashMap<ServerToClient, PlayerFeed>(); // each player's observer feed
+
+    // Observer feeds: each observer gets at most observerBytesPerSecond of deltas (with one second's burst), and nothing more while
+    // maxQueuedBytes are waiting to be written to it. A delta that would break either limit is dropped, and the observer is later resent a keyframe.
+    // A frame is always allowed onto an empty outbox, whatever its size, so that an observer of a large board can still be resynchronized
+    public static int observerBytesPerSecond = 256 * 1024;
+    public static int maxQueuedBytes = 1024 * 1024;
 
     // Validation
     RuleSet ruleset = null;
     // RSA check?
     // rules check (rules for rules?)
 
-    private static enum ThreadStatus {
-        LOADING,
-        CHECKING_IN,
-        READY;
-    }
-
+    // run: the I/O loop
     public void run() {
-        SocketChannel sc;
-        while (true) {
+        while (selector.isOpen()) {
             try {
-                sc = incomingClientsSSC.accept();
-                if (sc != null) {
-                    System.gc();
-                    int newPort = getFirstUnusedPort();
-                    ByteBuffer bb = ByteBuffer.allocate(4);
-                    bb.putInt(newPort);
-                    bb.flip();
-                    sc.configureBlocking(true);
-
-
-                    String newClientAdd = sc.socket().getInetAddress().getHostAddress();
-                    if (newPort != ServerToClient.CONNECTIONS_FULL) {
-                        System.out.println("new Client on " + newPort);
-                        new ServerToClient(new InetSocketAddress(newClientAdd, newPort), newPort, sc, bb);
+                selector.select(keepAliveInterval / 2);
+
+                // clients that have queued frames since the last select
+                ServerToClient ct;
+                while ((ct = pendingWrites.poll()) != null)
+                    if (ct.key.isValid())
+                        ct.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else {
+                        ct = (ServerToClient)key.attachment();
+                        try {
+                            if (key.isReadable())
+                                ct.readFrames();
+                            if (key.isValid() && key.isWritable())
+                                ct.writeFrames();
+                        }
+                        catch (IOException e) {
+                            // includes EOFException when the client disconnects
+                            ct.close();
+                        }
                     }
                 }
-                else {
-                    sleep(50);
-                }
+
+                keepAlive();
             }
             catch (IOException e) {
                 e.printStackTrace();
             }
-            catch (InterruptedException e) {
-                e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel sc;
+        while ((sc = incomingClientsSSC.accept()) != null) {
+            if (clients.size() >= maxClients) {
+                System.err.println("WorldServer: connections full, refusing " + sc.socket().getRemoteSocketAddress());
+                sc.close();
+                continue;
             }
-            finally {
+            sc.configureBlocking(false);
+            sc.socket().setTcpNoDelay(true);
+            ServerToClient ct = new ServerToClient(sc);
+            ct.key = sc.register(selector, SelectionKey.OP_READ, ct);
+            clients.add(ct);
+            System.out.println("new Client from " + sc.socket().getRemoteSocketAddress());
+
+            ct.sendSize();
+            ct.sendCurrentPlayerLocs();
+        }
+    }
+
+    // keepAlive: ping idle clients, and ask players that are not yet streaming their boards for a keyframe
+    private void keepAlive() {
+        long now = System.currentTimeMillis();
+        for (ServerToClient ct : clients) {
+            if (ct.lastPinged < now - keepAliveInterval) {
+                if (ct.getLocation() != null && getFeed(ct).stream == null)
+                    ct.sendRequestCurrentParticles();
+                else
+                    ct.sendPing(); // Keep alive
+                ct.lastPinged = now;
             }
         }
+
+        // resynchronize observers that missed frames from boards that have since gone quiet
+        for (PlayerFeed feed : feeds.values())
+            feed.scheduleResync();
     }
 
-    public int getFirstUnusedPort() {
+    public int getFirstUnusedPort(ServerToClient ct) {
         for (int port = minPort; port <= maxPort; ++port) {
-            synchronized (usedPorts) {
-                if (!usedPorts.containsKey(port)) {
-                    usedPorts.put(port, null);
-                    return port;
-                }
-            }
+            if (usedPorts.putIfAbsent(port, ct) == null)
+                return port;
         }
 
         return ServerToClient.CONNECTIONS_FULL;
     }
 
     public void deregisterClient(ServerToClient ct) {
-        usedPorts.remove(ct.port); // allow this key to be reused now
-        clientLocation.remove(ct.port);
-        clientParticles.remove(ct);
-        pointToClient.remove(ct.getLocation());
+        clients.remove(ct);
+        if (ct.port > 0)
+            usedPorts.remove(ct.port); // allow this key to be reused now
+        feeds.remove(ct);
+        for (PlayerFeed feed : feeds.values())
+            feed.subscribers.remove(ct);
+        Point p = clientLocation.remove(ct);
+        if (p != null)
+            pointToClient.remove(p);
+    }
+
+    // getFeed: a player's observer feed, created on first use
+    PlayerFeed getFeed(ServerToClient player) {
+        PlayerFeed feed = feeds.get(player);
+        if (feed == null) {
+            feed = new PlayerFeed(player);
+            PlayerFeed old = feeds.putIfAbsent(player, feed);
+            if (old != null)
+                feed = old;
+        }
+        return feed;
     }
 
     public int getNumPlayers() {
@@ -189,96 +286,211 @@ public class WorldServer extends Thread {
     }
 
 
-    private class ServerToClient extends NetworkThread {
-        ServerToClient(InetSocketAddress clientAddress, int port, SocketChannel sc, ByteBuffer bb) {
-            this.port = port;
+    // PlayerFeed: the server's copy of a player's board colors (see ObserverStream), and the observers subscribed to it.
+    // Frames from the player are applied to the copy and relayed to each subscriber; a subscriber that has missed frames is resent a keyframe built from the copy
+    private class PlayerFeed implements Runnable {
+        PlayerFeed(ServerToClient player) {
+            this.player = player;
+        }
+
+        ServerToClient player;
+        volatile ObserverStream stream = null; // null until the player's first keyframe
+        Set<ServerToClient> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<ServerToClient, Boolean>());
+        Set<ServerToClient> needKeyframe = Collections.newSetFromMap(new ConcurrentHashMap<ServerToClient, Boolean>());
+        int[] changed = null;
+        private AtomicBoolean resyncScheduled = new AtomicBoolean(false);
+
+        // subscribe: add an observer, and send it a keyframe when its rate limit allows
+        synchronized void subscribe(ServerToClient observer, Point location) {
+            subscribers.add(observer);
+            needKeyframe.add(observer);
+            sendKeyframes(location);
+        }
 
+        // relay: apply a frame from the player (bb is positioned after its grid location), and pass it on to the subscribers
+        synchronized void relay(packetCommand command, ByteBuffer bb, Point location, ServerToClient player) {
+            int body = bb.position();
             try {
-                serverSocketChannel = ServerSocketChannel.open();
-                System.out.println("Binding to " + clientAddress);
-                serverSocketChannel.socket().setSoTimeout(1000);
-                serverSocketChannel.configureBlocking(true);
-                serverSocketChannel.socket().bind(clientAddress);
+                if (command == packetCommand.KEYFRAME) {
+                    int width = bb.getInt(body), height = bb.getInt(body + 4);
+                    if (stream == null || stream.getWidth() != width || stream.getHeight() != height)
+                        stream = new ObserverStream(width, height);
+                }
+                else if (stream == null)
+                    return;
+                changed = stream.applyFrame(command, bb, changed);
+            }
+            catch (DataFormatException e) {
+                System.err.println("WorldServer: bad observer frame from player at " + location + ": " + e.getMessage());
+                stream = null;
+                player.sendRequestCurrentParticles();
+                return;
+            }
 
-                sc.write(bb);
-                sc.close();
-                System.out.println(" waiting for connection..." + port);
-                while (socketChannel == null) {
-                    socketChannel = serverSocketChannel.accept();
+            int bytes = 4 + 4 + 4 + 4 + (bb.limit() - body); // frame length, command, grid location, body
+            for (ServerToClient observer : subscribers) {
+                if (needKeyframe.contains(observer))
+                    continue;
+                if (!observer.allowFeedBytes(bytes)) {
+                    needKeyframe.add(observer);
+                    continue;
                 }
+                ByteBuffer copy = prepareBuffer(command, bytes - 8);
+                copy.putInt(location.x);
+                copy.putInt(location.y);
+                bb.position(body);
+                copy.put(bb);
+                observer.send(copy);
+            }
+            sendKeyframes(location);
+        }
+
+        // scheduleResync: have a worker send the keyframes that are due, unless one is already doing so
+        void scheduleResync() {
+            if (stream != null && !needKeyframe.isEmpty() && resyncScheduled.compareAndSet(false, true))
+                workers.execute(this);
+        }
 
-                System.out.println(" received connection... " + port);
-                isConnected = true;
-                usedPorts.put(port, this);
+        // run: called by a worker thread, for scheduleResync
+        public void run() {
+            resyncScheduled.set(false);
+            Point location = player.getLocation();
+            if (location != null) {
+                synchronized (this) {
+                    sendKeyframes(location);
+                }
             }
-            catch (IOException e) {
-                e.printStackTrace();
+        }
+
+        // sendKeyframes: resynchronize the subscribers that have missed frames, as their rate limits allow
+        private void sendKeyframes(Point location) {
+            if (stream == null || needKeyframe.isEmpty())
+                return;
+            ByteBuffer keyframe = null;
+            for (ServerToClient observer : needKeyframe) {
+                if (!subscribers.contains(observer)) {
+                    needKeyframe.remove(observer);
+                    continue;
+                }
+                if (!observer.allowFeedBytes(0))
+                    continue; // still paying for an earlier frame
+                if (keyframe == null)
+                    keyframe = stream.keyframe(location.x, location.y);
+                if (!observer.allowFeedBytes(keyframe.position()))
+                    continue;
+                ByteBuffer copy = NetworkThread.bufferPool.acquire(keyframe.position());
+                copy.put(keyframe.array(), keyframe.arrayOffset(), keyframe.position());
+                observer.send(copy);
+                needKeyframe.remove(observer);
             }
+            if (keyframe != null)
+                NetworkThread.bufferPool.release(keyframe);
+        }
+    }
 
-            start();
+    // ServerToClient: the server's end of one client's connection (not a thread: its I/O is done by the WorldServer loop)
+    private class ServerToClient implements Runnable {
+        static final int CONNECTIONS_FULL = NetworkThread.CONNECTIONS_FULL;
 
-            sendSize();
-            sendCurrentPlayerLocs();
+        ServerToClient(SocketChannel socketChannel) {
+            this.socketChannel = socketChannel;
+            reader = new FrameReader(NetworkThread.bufferPool);
         }
 
-        private int port;
-        ServerSocketChannel serverSocketChannel;
+        private int port = 0; // board server port, handed out when the client claims a location on the grid
         SocketChannel socketChannel;
-        boolean isConnected = false;
-        //Point location;
-        ThreadStatus status = ThreadStatus.READY;
+        SelectionKey key;
+        volatile long lastPinged = System.currentTimeMillis();
+
+        // observer feed rate limit (see observerBytesPerSecond)
+        private double feedTokens = observerBytesPerSecond;
+        private long feedRefilled = System.nanoTime();
+        private AtomicLong queuedBytes = new AtomicLong(0); // bytes in the outbox
+
+        // framing
+        private FrameReader reader;
+        private Queue<ByteBuffer> inbox = new ConcurrentLinkedQueue<ByteBuffer>(); // complete incoming frames, for the workers
+        private Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<ByteBuffer>(); // outgoing frames, for the I/O thread
+        private AtomicBoolean scheduled = new AtomicBoolean(false); // true while a worker owns the inbox
+
+        // readFrames: called by the I/O thread when the socket is readable
+        void readFrames() throws IOException {
+            ByteBuffer frame;
+            while ((frame = reader.read(socketChannel)) != null) {
+                lastPinged = System.currentTimeMillis();
+                inbox.add(frame);
+            }
+            schedule();
+        }
 
-        public void run() {
-            try {
-                socketChannel.configureBlocking(false);
-                while (socketChannel.isConnected()) {
-                    ByteBuffer bb = ByteBuffer.allocate(allocateBufferSize);
-                    if (socketChannel.read(bb) > 0) {
-                        processPacket(bb);
-                        lastPinged.put(port, System.currentTimeMillis());
-                    }
-                    else {
-                        Long last = lastPinged.get(port);
-                        if (last == null)
-                            lastPinged.put(port, System.currentTimeMillis());
-                        else if (last < System.currentTimeMillis() - 5000) {
-                            if (getLocation() != null)
-                                sendRequestCurrentParticles();
-                            else
-                                sendPing(); // Keep alive
-                            lastPinged.put(port, System.currentTimeMillis());
-                        }
-                    }
-                }
+        // writeFrames: called by the I/O thread when the socket is writable; a partly-written frame stays at the head of the outbox
+        void writeFrames() throws IOException {
+            ByteBuffer bb;
+            while ((bb = outbox.peek()) != null) {
+                socketChannel.write(bb);
+                if (bb.hasRemaining())
+                    return;
+                outbox.poll();
+                queuedBytes.addAndGet(-bb.limit());
+                NetworkThread.bufferPool.release(bb);
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // send: queue a prepared buffer, for the I/O thread to write. May be called on any thread
+        void send(ByteBuffer bb) {
+            queuedBytes.addAndGet(bb.position());
+            outbox.add(NetworkThread.frame(bb));
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
 
+        // allowFeedBytes: take bytes from this observer's feed allowance, returning false (and taking nothing) if it is used up
+        synchronized boolean allowFeedBytes(int bytes) {
+            long now = System.nanoTime();
+            feedTokens = Math.min(observerBytesPerSecond, feedTokens + observerBytesPerSecond * ((now - feedRefilled) / 1e9));
+            feedRefilled = now;
+            long queued = queuedBytes.get();
+            if (feedTokens <= 0 || (queued > 0 && queued + bytes > maxQueuedBytes))
+                return false; // an empty outbox takes any frame, so that a keyframe larger than maxQueuedBytes still gets through
+            feedTokens -= bytes; // may go negative for a large keyframe; it is paid back before anything else is sent
+            return true;
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                socketChannel.close();
             }
             catch (IOException e) {
-                //e.printStackTrace();
+                e.printStackTrace();
             }
-            finally {
+            deregisterClient(this); // unreserve this port, etc.
+            System.out.println("Client disconnected" + (port > 0 ? " from port " + port : ""));
+        }
+
+        // schedule: hand the inbox to a worker, unless one already has it
+        private void schedule() {
+            if (!inbox.isEmpty() && scheduled.compareAndSet(false, true))
+                workers.execute(this);
+        }
+
+        // run: called by a worker thread, to handle this client's frames in order
+        public void run() {
+            ByteBuffer frame;
+            while ((frame = inbox.poll()) != null) {
                 try {
-                    serverSocketChannel.close();
-                    serverSocketChannel = null;
-                    isConnected = false;
+                    processPacket(frame);
                 }
-                catch (Exception e) {
+                catch (RuntimeException e) {
                     e.printStackTrace();
                 }
+                finally {
+                    NetworkThread.bufferPool.release(frame);
+                }
             }
-
-            usedPorts.put(port, null); // keep this key "reserved" while it is still in listening mode
-        }
-
-        protected void finalize() throws Throwable {
-            super.finalize();
-            if (serverSocketChannel != null) {
-                serverSocketChannel.close(); // TODO: close should be handled in run()
-                isConnected = false;
-                System.err.println("Warning: socket is being closed in WorldServer.finalize(), should be closed after run()");
-            }
-
-            deregisterClient(this); // callback to deregister this thread (unreserve this port, etc.)
-            System.out.println("Finalized thread listening on port " + port);
+            scheduled.set(false);
+            schedule(); // in case frames arrived after the last poll
         }
 
         /**
@@ -309,6 +521,7 @@ public class WorldServer extends Thread {
 
             switch (command) {
                 case OBSERVE:
+                    handleObserve(parameters.toArray());
                     return;
                 case CLAIM_GRID:
                     handleSetPlayerLoc(parameters.toArray());
@@ -316,11 +529,9 @@ public class WorldServer extends Thread {
                 case CHECKIN_ALL_RULES:
                     handleCheckRules(bb, parameters.toArray());
                     return;
-                case SEND_PARTICLES:
-                    handleClientParticles(bb, parameters.toArray());
-                    return;
-                case REFRESH_OBSERVED:
-                    handleRefreshObserved(parameters.toArray());
+                case KEYFRAME:
+                case DELTA:
+                    handleObserverFrame(command, bb);
                     return;
                 default:
                     System.err.println("Server: Unhandled command type " + command);
@@ -331,12 +542,13 @@ public class WorldServer extends Thread {
         // Packet senders
         private void sendPing() {
             ByteBuffer bb = prepareBuffer(packetCommand.PING);
-            verifyAndSend(bb, packetCommand.PING, socketChannel);
+            send(bb);
         }
 
         private void sendLaunch() {
             ByteBuffer bb = prepareBuffer(packetCommand.LAUNCH);
-            verifyAndSend(bb, packetCommand.LAUNCH, socketChannel);
+            bb.putInt(port);
+            send(bb);
         }
 
         private void sendSize() {
@@ -344,72 +556,34 @@ public class WorldServer extends Thread {
             Rectangle rect = getDimensions();
             bb.putInt(rect.width);
             bb.putInt(rect.height);
-            System.out.println("sending size to " + this.port);
-            verifyAndSend(bb, packetCommand.SEND_SIZE, socketChannel);
+            send(bb);
         }
 
         private void sendCurrentPlayerLocs() {
             // send an x, y coordinate for every client:
-            ByteBuffer bb = prepareBuffer(packetCommand.CURRENT_CLIENTS, 4 + (4 + 4) * pointToClient.size());
-            bb.putInt(pointToClient.size());
-            for (Point p : pointToClient.keySet()) {
+            List<Point> points = new ArrayList<Point>(pointToClient.keySet());
+            ByteBuffer bb = prepareBuffer(packetCommand.CURRENT_CLIENTS, 4 + (4 + 4) * points.size());
+            bb.putInt(points.size());
+            for (Point p : points) {
                 bb.putInt(p.x);
                 bb.putInt(p.y);
             }
-            verifyAndSend(bb, packetCommand.CURRENT_CLIENTS, socketChannel);
+            send(bb);
         }
 
         private void sendRequestCurrentParticles() {
             ByteBuffer bb = prepareBuffer(packetCommand.REQUEST_PARTICLES);
-            verifyAndSend(bb, packetCommand.REQUEST_PARTICLES, socketChannel);
-        }
-        private void sendClientParticles(Point p) {
-            int byteSize = 12;
-            HashMap<Integer, List<Point>> sentParticles = new HashMap<Integer, List<Point>>();
-            ServerToClient selectedClient = pointToClient.get(p);
-            HashMap<Integer, List<Point>> particles = clientParticles.get(selectedClient);
-            for (Integer part : particles.keySet()) {
-                ArrayList<Point> list = new ArrayList<Point>(particles.get(part));
-                //byteSize += part.getBytes().length + 1; // name
-                byteSize += 4; // color
-                byteSize += 4; // number of particles
-                byteSize += particles.get(part).size() * (4 + 4); // x,y coordinates
-                sentParticles.put(part, list);
-            }
-
-            ByteBuffer bb = prepareBuffer(packetCommand.SEND_PARTICLES, byteSize);
-            bb.putInt(sentParticles.size());
-            //System.err.println("Observer is paging " + p);
-            bb.putInt(p.x);
-            bb.putInt(p.y);
-            for (Integer c : sentParticles.keySet()) {
-                //writeStringToBuffer(bb, part);
-                //bb.put((byte)(c & 0xFF));
-                //bb.put((byte)((c & 0xFF00) >> 8));
-                //bb.put((byte)((c & 0xFF0000) >> 16));
-
-                bb.putInt(c);
-
-                List<Point> list = sentParticles.get(c);
-                bb.putInt(list.size());
-                for (Point q : list) {
-                    bb.putInt(q.x);
-                    bb.putInt(q.y);
-                }
-            }
-            verifyAndSend(bb, packetCommand.SEND_PARTICLES, socketChannel);
+            send(bb);
         }
-
         private void sendConnectPeer(ServerToClient neighbor, int dir) {
-            ServerSocket socket = neighbor.serverSocketChannel.socket();
-            String address = socket.getInetAddress().getHostAddress();
+            String address = neighbor.socketChannel.socket().getInetAddress().getHostAddress();
             int port = neighbor.port;
 
             ByteBuffer bb = prepareBuffer(packetCommand.CONNECT_PEER, address.getBytes().length + 1 + 4 + 4);
             writeStringToBuffer(bb, address);
             bb.putInt(port);
             bb.putInt(dir);
-            verifyAndSend(bb, packetCommand.CONNECT_PEER, socketChannel);
+            send(bb);
         }
 
         // Packet handlers
@@ -426,6 +600,15 @@ public class WorldServer extends Thread {
                 if (pointToClient.containsKey(requestedPoint))
                     return;
 
+                // The client needs a port for its board server
+                if (port <= 0)
+                    port = getFirstUnusedPort(this);
+                if (port == CONNECTIONS_FULL) {
+                    System.err.println("WorldServer: no free board ports for " + socketChannel.socket().getRemoteSocketAddress());
+                    port = 0;
+                    return;
+                }
+
                 pointToClient.put(requestedPoint, this);
             }
 
@@ -434,7 +617,7 @@ public class WorldServer extends Thread {
             sendLaunch();
 
             // tell other observers a new client has connected
-            for (ServerToClient ct : usedPorts.values()) {
+            for (ServerToClient ct : clients) {
                 if (ct != this && !clientLocation.containsKey(ct))
                     ct.sendCurrentPlayerLocs();
             }
@@ -458,36 +641,24 @@ public class WorldServer extends Thread {
         }
 
 
-        private void handleClientParticles(ByteBuffer bb, Object... args) {
-            int color = (Integer)args[0];
-            //HashMap<String, List<Point>> particleMap = new HashMap<String, List<Point>>();
-            HashMap<Integer, List<Point>> particleMap = new HashMap<Integer, List<Point>>();
-            for (int i = 0; i < color; ++i) {
-                //String name = getStringFromBuffer(bb);
-
-                //int c = (bb.get() << 16) | (bb.get() << 8) | bb.get();
-                int c = bb.getInt();
-
-                ArrayList<Point> list = new ArrayList<Point>();
-                int numPoints = bb.getInt();
-                for (int j = 0; j < numPoints; ++j) {
-                    int x = bb.getInt();
-                    int y = bb.getInt();
-                    list.add(new Point(x, y));
-                }
-                //particleMap.put(name, list);
-                particleMap.put(c, list);
+        private void handleObserverFrame(packetCommand command, ByteBuffer bb) {
+            Point p = getLocation();
+            if (p == null) {
+                System.err.println("Observer frame from a client that is not on the grid");
+                return;
             }
-            clientParticles.put(this, particleMap);
+
+            getFeed(this).relay(command, bb, p, this);
         }
-        private void handleRefreshObserved(Object... args) {
+        private void handleObserve(Object... args) {
             Point p = new Point((Integer)args[0], (Integer)args[1]);
-            if (!pointToClient.containsKey(p)) {
-                System.err.println("Observer is paging for a client that does not exist");
+            ServerToClient player = pointToClient.get(p);
+            if (player == null) {
+                System.err.println("Observer is subscribing to a client that does not exist");
                 return;
             }
 
-            sendClientParticles(p);
+            getFeed(player).subscribe(this, p);
         }
     }
 }